@@ -0,0 +1,240 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/*****************************************************
+ * Remembers which api keys the Electric Imp server
+ * accepted or rejected, persisted across app restarts.
+ * Known good keys skip local validation, known bad keys
+ * fail without a network trip. Keys are stored hashed.
+ *
+ * Only errors saying the server rejected the key
+ * count as rejections, see isInvalidKeyError. They
+ * still expire much sooner, keys can be fixed.
+ *
+ * Verdicts are written when they change, or when a
+ * confirmed one is half way to expiring, and the write
+ * happens off the calling thread, coalesced like
+ * PlanIdStore's. A key in constant use isn't rewritten
+ * on every session.
+ *****************************************************/
+class ApiKeyCache {
+    private static final String TAG = "ApiKeyCache";
+
+    private static final String VERDICT_VALID_KEY = "valid";
+    private static final String VERDICT_TIME_KEY = "time";
+
+    private static final long PERSIST_DELAY_MS = 500;
+
+    // The SDK's ServerErrorHandler.onError and TokenAcquireCallback.onError only pass a message,
+    // there is no error code or exception to key off. A message counts as a rejection of the key
+    // if it has the HTTP status "401", the reason phrase "Unauthorized" (either spelling), or says
+    // "invalid API key", "API key is invalid" or "API key not valid", case and the space in
+    // "API key" aside. Everything else, timeouts, unreachable hosts and other statuses included,
+    // is a network or server problem. A wording missing here only costs a verification round
+    // trip, it never marks a key bad. ApiKeyCacheTest holds the messages checked both ways.
+    private static final Pattern INVALID_KEY_PATTERN =
+            Pattern.compile("\\b401\\b|unauthori[sz]ed|invalid api ?key|api ?key (is )?(invalid|not valid)",
+                    Pattern.CASE_INSENSITIVE);
+
+    enum Verdict { UNKNOWN, KNOWN_GOOD, KNOWN_BAD }
+
+    private static class Entry {
+        final boolean valid;
+        final long timeMs;
+
+        Entry(boolean valid, long timeMs) {
+            this.valid = valid;
+            this.timeMs = timeMs;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Entry> sEntries = new ConcurrentHashMap<String, Entry>();
+    private static Context sContext;
+    private static boolean sPersistScheduled = false;
+
+    private static final Runnable sPersistRunnable = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+
+    // sessions almost always reuse the same key, so skip hashing it again
+    private static volatile String[] sLastHashed = new String[] { null, null };
+
+    /*************************************
+     * loads the persisted verdicts, call once before use
+     *************************************/
+    static synchronized void init(Context context) {
+        if (sContext != null) {
+            return;
+        }
+        sContext = context.getApplicationContext();
+
+        String verdictsJson = PreferencesHelper.getApiKeyVerdicts(sContext);
+        if (verdictsJson == null) {
+            return;
+        }
+
+        try {
+            JSONObject verdicts = new JSONObject(verdictsJson);
+            Iterator<String> hashes = verdicts.keys();
+            while (hashes.hasNext()) {
+                String hash = hashes.next();
+                JSONObject verdict = verdicts.getJSONObject(hash);
+                sEntries.put(hash, new Entry(verdict.getBoolean(VERDICT_VALID_KEY), verdict.getLong(VERDICT_TIME_KEY)));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Discarding unreadable api key cache", e);
+        }
+    }
+
+    static Verdict lookup(String apiKey) {
+        String hash = hash(apiKey);
+        Entry entry = (hash != null) ? sEntries.get(hash) : null;
+        if (entry == null) {
+            return Verdict.UNKNOWN;
+        }
+
+        if (System.currentTimeMillis() - entry.timeMs >= ttlMs(entry.valid)) {
+            return Verdict.UNKNOWN;
+        }
+        return entry.valid ? Verdict.KNOWN_GOOD : Verdict.KNOWN_BAD;
+    }
+
+    private static long ttlMs(boolean valid) {
+        return valid ? PluginConfig.getApiKeyCacheTtlMs() : PluginConfig.getApiKeyFailureTtlMs();
+    }
+
+    /*************************************
+     * called when the server accepted the key
+     *************************************/
+    static void recordGood(String apiKey) {
+        record(apiKey, true);
+    }
+
+    /*************************************
+     * @return true if the SDK's error says the server
+     * rejected the key, not that it couldn't be reached
+     *************************************/
+    static boolean isInvalidKeyError(String errorMsg) {
+        return errorMsg != null && INVALID_KEY_PATTERN.matcher(errorMsg).find();
+    }
+
+    /*************************************
+     * called when the server rejected the key, see
+     * isInvalidKeyError. A key the
+     * server accepted recently is not downgraded, the
+     * failure was more likely a connectivity issue.
+     *************************************/
+    static void recordBad(String apiKey) {
+        if (lookup(apiKey) != Verdict.KNOWN_GOOD) {
+            record(apiKey, false);
+        }
+    }
+
+    private static void record(String apiKey, boolean valid) {
+        String hash = hash(apiKey);
+        if (hash == null) {
+            return;
+        }
+
+        // the same verdict is only renewed once it is half way to expiring, so it isn't rewritten every time
+        long nowMs = System.currentTimeMillis();
+        Entry previous = sEntries.get(hash);
+        if (previous != null && previous.valid == valid && nowMs - previous.timeMs < ttlMs(valid) / 2) {
+            return;
+        }
+
+        // the time is persisted too, the verdict expires from its last renewal after a restart
+        sEntries.put(hash, new Entry(valid, nowMs));
+        schedulePersist();
+    }
+
+    private static synchronized void schedulePersist() {
+        if (sContext == null || sPersistScheduled) {
+            return;
+        }
+        sPersistScheduled = true;
+        TokenStatusPoller.getScheduler().schedule(sPersistRunnable, PERSIST_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized void persist() {
+        sPersistScheduled = false;
+
+        JSONObject verdicts = new JSONObject();
+        try {
+            for (Map.Entry<String, Entry> entry : sEntries.entrySet()) {
+                JSONObject verdict = new JSONObject();
+                verdict.put(VERDICT_VALID_KEY, entry.getValue().valid);
+                verdict.put(VERDICT_TIME_KEY, entry.getValue().timeMs);
+                verdicts.put(entry.getKey(), verdict);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "", e);
+            return;
+        }
+        PreferencesHelper.setApiKeyVerdicts(sContext, verdicts.toString());
+    }
+
+    /*************************************
+     * @return hex SHA-256 of the key, keys are never stored in the clear
+     *************************************/
+    static String hash(String apiKey) {
+        if (apiKey == null) {
+            return null;
+        }
+
+        String[] lastHashed = sLastHashed;
+        if (apiKey.equals(lastHashed[0])) {
+            return lastHashed[1];
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(apiKey.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            sLastHashed = new String[] { apiKey, hex.toString() };
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "", e);
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "", e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*****************************************************
+ * State of a production-line batch started with
+ * startBatchBlinkUp. The API key is validated and the
+ * plan ID resolved once, then every device session
+ * reuses them and draws its setup token from the pool.
+ *****************************************************/
+class BatchRun {
+    private final Activity mActivity;
+    private final BlinkUpBackend mController;
+    private final int mSessionId;
+    private final String mApiKey;
+    private final String mPlanId;
+    private final String mDeveloperPlanId;
+    private final int mTimeoutMs;
+    private final SetupTokenPool mTokenPool;
+    private final WifiCredentialStore.Credentials mWifi;
+    private final AtomicInteger mSequence = new AtomicInteger(0);
+    private volatile boolean mStopped = false;
+
+    BatchRun(Activity activity, BlinkUpBackend controller, int sessionId, String apiKey, String planId,
+             String developerPlanId, int timeoutMs, SetupTokenPool tokenPool,
+             WifiCredentialStore.Credentials wifi) {
+        mActivity = activity;
+        mController = controller;
+        mSessionId = sessionId;
+        mApiKey = apiKey;
+        mPlanId = planId;
+        mDeveloperPlanId = developerPlanId;
+        mTimeoutMs = timeoutMs;
+        mTokenPool = tokenPool;
+        mWifi = wifi;
+    }
+
+    Activity getActivity() { return mActivity; }
+    BlinkUpBackend getController() { return mController; }
+    int getSessionId() { return mSessionId; }
+    String getApiKey() { return mApiKey; }
+    String getPlanId() { return mPlanId; }
+    String getDeveloperPlanId() { return mDeveloperPlanId; }
+    int getTimeoutMs() { return mTimeoutMs; }
+    SetupTokenPool getTokenPool() { return mTokenPool; }
+    // null unless the batch is headless
+    WifiCredentialStore.Credentials getWifi() { return mWifi; }
+
+    int nextSequence() {
+        return mSequence.incrementAndGet();
+    }
+
+    boolean isStopped() {
+        return mStopped;
+    }
+
+    void stop() {
+        mStopped = true;
+        mTokenPool.close();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.text.TextUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.regex.Pattern;
+
+/*****************************************************
+ * Arguments of one BlinkUp call from javascript.
+ * Parsing and validation have no side effects, so each
+ * session keeps its own copy instead of sharing fields
+ * on the plugin, and they can be exercised on their own.
+ *****************************************************/
+class BlinkUpArguments {
+    // argument indexes from BlinkUp.js, the plugin's JS interface to Cordova
+    private static final int INVOKE_BLINKUP_ARG_API_KEY = 0;
+    private static final int INVOKE_BLINKUP_ARG_DEVELOPER_PLAN_ID = 1;
+    private static final int INVOKE_BLINKUP_ARG_TIMEOUT_MS = 2;
+    private static final int INVOKE_BLINKUP_ARG_GENERATE_PLAN_ID = 3;
+
+    private static final int START_BLINKUP_ARG_API_KEY = 0;
+    private static final int START_BLINKUP_ARG_DEVELOPER_PLAN_ID = 1;
+    private static final int START_BLINKUP_IS_IN_DEVELOPMENT = 2;
+    private static final int START_BLINKUP_ARG_TIMEOUT_MS = 3;
+    private static final int START_BLINKUP_ARG_WIFI = 4;
+
+    // startBatchBlinkUp takes the startBlinkUp arguments followed by these
+    private static final int START_BATCH_BLINKUP_ARG_TOKEN_TTL_MS = 4;
+    private static final int START_BATCH_BLINKUP_ARG_WIFI = 5;
+
+    // keys of the optional wifi object, which makes the session headless
+    private static final String WIFI_SITE = "site";
+    private static final String WIFI_SSID = "ssid";
+    private static final String WIFI_PASSWORD = "password";
+
+    static final long DEFAULT_TOKEN_TTL_MS = 10 * 60 * 1000;
+
+    // compiled once, String.matches would recompile it on every call
+    private static final Pattern ALPHA_NUMERIC_PATTERN = Pattern.compile("^[a-zA-Z0-9]*$");
+
+    final String apiKey;
+    final String developerPlanId;
+    final boolean isInDevelopment;
+    final boolean generatePlanId;
+    final int timeoutMs;
+    final long tokenTtlMs;
+
+    // headless sessions flash either a saved site's network or the given one
+    final String wifiSite;
+    final String wifiSsid;
+    final String wifiPassword;
+    private final boolean mHeadless;
+
+    private BlinkUpArguments(String apiKey, String developerPlanId, boolean isInDevelopment,
+                             boolean generatePlanId, int timeoutMs, long tokenTtlMs, JSONObject wifi) {
+        this.apiKey = apiKey;
+        this.developerPlanId = developerPlanId;
+        this.isInDevelopment = isInDevelopment;
+        this.generatePlanId = generatePlanId;
+        this.timeoutMs = timeoutMs;
+        this.tokenTtlMs = tokenTtlMs;
+        this.mHeadless = (wifi != null);
+        this.wifiSite = (wifi != null) ? wifi.optString(WIFI_SITE, null) : null;
+        this.wifiSsid = (wifi != null) ? wifi.optString(WIFI_SSID, null) : null;
+        this.wifiPassword = (wifi != null) ? wifi.optString(WIFI_PASSWORD, "") : null;
+    }
+
+    static BlinkUpArguments fromStartBlinkUp(JSONArray data) throws JSONException {
+        return new BlinkUpArguments(
+                data.getString(START_BLINKUP_ARG_API_KEY),
+                data.getString(START_BLINKUP_ARG_DEVELOPER_PLAN_ID),
+                data.getBoolean(START_BLINKUP_IS_IN_DEVELOPMENT),
+                false,
+                data.getInt(START_BLINKUP_ARG_TIMEOUT_MS),
+                0,
+                data.optJSONObject(START_BLINKUP_ARG_WIFI));
+    }
+
+    /**
+     * Old Style of BlinkUp invocation.
+     *
+     * @deprecated use {@link #fromStartBlinkUp(JSONArray)} instead.
+     */
+    @Deprecated
+    static BlinkUpArguments fromInvokeBlinkUp(JSONArray data) throws JSONException {
+        return new BlinkUpArguments(
+                data.getString(INVOKE_BLINKUP_ARG_API_KEY),
+                data.getString(INVOKE_BLINKUP_ARG_DEVELOPER_PLAN_ID),
+                false,
+                data.getBoolean(INVOKE_BLINKUP_ARG_GENERATE_PLAN_ID),
+                data.getInt(INVOKE_BLINKUP_ARG_TIMEOUT_MS),
+                0, null);
+    }
+
+    static BlinkUpArguments fromStartBatchBlinkUp(JSONArray data) throws JSONException {
+        return new BlinkUpArguments(
+                data.getString(START_BLINKUP_ARG_API_KEY),
+                data.getString(START_BLINKUP_ARG_DEVELOPER_PLAN_ID),
+                data.getBoolean(START_BLINKUP_IS_IN_DEVELOPMENT),
+                false,
+                data.getInt(START_BLINKUP_ARG_TIMEOUT_MS),
+                data.optLong(START_BATCH_BLINKUP_ARG_TOKEN_TTL_MS, DEFAULT_TOKEN_TTL_MS),
+                data.optJSONObject(START_BATCH_BLINKUP_ARG_WIFI));
+    }
+
+    boolean hasDeveloperPlanId() {
+        return !TextUtils.isEmpty(developerPlanId);
+    }
+
+    /**********************************************************
+     * @return true if the session skips the wifi selection
+     *********************************************************/
+    boolean isHeadless() {
+        return mHeadless;
+    }
+
+    /**********************************************************
+     * @return true if a headless session names either a
+     * saved site or a network, not both
+     *********************************************************/
+    boolean wifiValid() {
+        return TextUtils.isEmpty(wifiSite) != TextUtils.isEmpty(wifiSsid);
+    }
+
+    /**********************************************************
+     * @return true if apiKey is 32 alpha-numeric characters
+     *********************************************************/
+    static boolean apiKeyFormatValid(String apiKey) {
+        if (TextUtils.isEmpty(apiKey) || TextUtils.getTrimmedLength(apiKey) != 32) {
+            return false;
+        }
+
+        return ALPHA_NUMERIC_PATTERN.matcher(apiKey).matches();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import com.electricimp.blinkup.ServerErrorHandler;
+import com.electricimp.blinkup.TokenAcquireCallback;
+import com.electricimp.blinkup.TokenStatusCallback;
+
+/*****************************************************
+ * The BlinkUp SDK calls the plugin makes. SdkBackend
+ * forwards them to the Electric Imp SDK. tools/loadtest
+ * swaps in a simulated backend through PluginConfig
+ * for load and latency testing.
+ *****************************************************/
+interface BlinkUpBackend {
+    /*************************************
+     * intent started once the device has been flashed
+     *************************************/
+    void setBlinkUpCompleteIntent(Intent intent);
+    Intent getBlinkUpCompleteIntent();
+
+    /*************************************
+     * intent started once the device's wifi has been cleared
+     *************************************/
+    void setClearCompleteIntent(Intent intent);
+
+    void setPlanID(String planId);
+
+    void acquireSetupToken(Activity activity, String apiKey, TokenAcquireCallback callback);
+
+    /*************************************
+     * the SDK flashes the setup token it acquired last.
+     * @return that token, null if none was acquired
+     * since the last takeFlashedToken()
+     *************************************/
+    String getCurrentToken();
+
+    /*************************************
+     * called once a flash is done
+     * @return the token it used, see getCurrentToken(),
+     * null if only the SDK knows it
+     *************************************/
+    String takeFlashedToken();
+
+    void selectWifiAndSetupDevice(Activity activity, String apiKey, ServerErrorHandler errorHandler);
+
+    void clearDevice(Activity activity);
+
+    /*************************************
+     * closes the SDK's wifi selection or flash screen if
+     * it is showing, the flash is abandoned
+     *************************************/
+    void dismissUi();
+
+    /*************************************
+     * polls for the token acquired most recently
+     *************************************/
+    void getTokenStatus(TokenStatusCallback callback, long timeoutMs);
+
+    void getTokenStatus(String token, TokenStatusCallback callback, long timeoutMs);
+
+    void cancelTokenStatusPolling();
+
+    /*************************************
+     * flashes the given network without showing
+     * the wifi selection, see headless sessions
+     *************************************/
+    void setupDevice(Activity activity, String ssid, String password, String apiKey,
+                     ServerErrorHandler errorHandler);
+
+    /*************************************
+     * sets up whatever the first real call would,
+     * used by the eager startup mode
+     *************************************/
+    void warmUp();
+}
@@ -19,84 +19,23 @@ package com.macadamian.blinkup;
 
 import android.app.Activity;
 import android.os.Bundle;
-import android.text.TextUtils;
-
-import com.electricimp.blinkup.BlinkupController;
-import com.electricimp.blinkup.TokenStatusCallback;
-import com.macadamian.blinkup.util.PreferencesHelper;
-
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /*****************************************************
  * When the BlinkUpPlugin process completes, it executes the
  * BlinkUpCompleteIntent set in BlinkUpPlugin.java, starting
- * this activity, which requests the setup info from
- * the Electric Imp server, dismisses itself, and
- * sends the info back to the callback when received.
+ * this activity, which hands the intent to CompletionHandler
+ * and dismisses itself. It uses Theme.NoDisplay, so it
+ * never draws a window or runs a transition.
  *****************************************************/
 public class BlinkUpCompleteActivity extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-
-        String developerPlanId = getIntent().getStringExtra(Extras.EXTRA_DEVELOPER_PLAN_ID);
-        int timeoutMs = getIntent().getIntExtra(Extras.EXTRA_TIMEOUT_MS, 30000);
-        getDeviceInfo(developerPlanId, timeoutMs);
-
-        BlinkUpPluginResult pluginResult = new BlinkUpPluginResult();
-        pluginResult.setState(BlinkUpPluginResult.STATE_STARTED);
-        pluginResult.setStatusCode(BlinkUpPlugin.STATUS_GATHERING_INFO);
-        pluginResult.sendResultsToCallback();
-
+        int sessionId = getIntent().getIntExtra(Extras.EXTRA_SESSION_ID, SessionRegistry.NO_SESSION);
+        Tracer.begin(Tracer.BLINKUP_COMPLETE_ACTIVITY, sessionId);
+        CompletionHandler.onBlinkUpComplete(this, getIntent(), BlinkUpMetrics.Phase.COMPLETION_ACTIVITY);
         finish();
-    }
-
-    private void getDeviceInfo(final String developerPlanId, int timeoutMs) {
-        final TokenStatusCallback tokenStatusCallback= new TokenStatusCallback() {
-
-            //---------------------------------
-            // give connection info to Cordova
-            //---------------------------------
-            @Override public void onSuccess(JSONObject json) {
-                BlinkUpPluginResult successResult = new BlinkUpPluginResult();
-                successResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
-                successResult.setStatusCode(BlinkUpPlugin.STATUS_DEVICE_CONNECTED);
-                successResult.setDeviceInfoFromJson(json);
-                successResult.sendResultsToCallback();
-
-                // cache planID if not development ID (see electricimp.com/docs/manufacturing/planids/)
-                try {
-                    String planId = json.getString(BlinkUpPluginResult.SDK_PLAN_ID_KEY);
-                    if (!TextUtils.equals(planId, developerPlanId)) {
-                        PreferencesHelper.setPlanId(BlinkUpCompleteActivity.this, planId);
-                    }
-                } catch (JSONException e) {
-                    BlinkUpPluginResult.sendPluginErrorToCallback(BlinkUpPlugin.ERROR_JSON_ERROR);
-                }
-            }
-
-            //---------------------------------
-            // give error msg to Cordova
-            //---------------------------------
-            @Override public void onError(String errorMsg) {
-                // can't use "sendPluginErrorToCallback" since this is an SDK error
-                BlinkUpPluginResult errorResult = new BlinkUpPluginResult();
-                errorResult.setState(BlinkUpPluginResult.STATE_ERROR);
-                errorResult.setBlinkUpError(errorMsg);
-                errorResult.sendResultsToCallback();
-            }
-
-            //---------------------------------
-            // give timeout message to Cordova
-            //---------------------------------
-            @Override public void onTimeout() {
-                BlinkUpPluginResult.sendPluginErrorToCallback(BlinkUpPlugin.ERROR_PROCESS_TIMED_OUT);
-            }
-        };
-
-        // request the device info from the server
-        BlinkupController.getInstance().getTokenStatus(tokenStatusCallback, timeoutMs);
+        Tracer.end(Tracer.BLINKUP_COMPLETE_ACTIVITY, sessionId);
     }
 }
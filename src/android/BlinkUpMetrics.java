@@ -0,0 +1,265 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import com.macadamian.blinkup.util.JsonWriter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*****************************************************
+ * Latency of each provisioning phase, kept in fixed
+ * bucket histograms along with success, error and
+ * timeout counters. Recording is a few atomic adds,
+ * so it's always on. Read and reset from javascript
+ * through getBlinkUpMetrics.
+ *****************************************************/
+class BlinkUpMetrics {
+    enum Outcome { SUCCESS, ERROR, TIMEOUT }
+
+    enum Phase {
+        // time execute() holds the WebCore thread
+        EXECUTE("execute"),
+        // execute() argument parsing and validation
+        PARSE("parse"),
+        // from runOnUiThread until the runnable starts
+        UI_HOP("uiHop"),
+        // time the plugin's runnables hold the UI thread
+        UI_WORK("uiWork"),
+        // acquireSetupToken round trip
+        TOKEN_ACQUIRE("tokenAcquire"),
+        // selectWifiAndSetupDevice until the flash completion is delivered, includes the SDK UI
+        FLASH("flash"),
+        // end of a flash or clear until its session gets the first result, delivered in-process
+        COMPLETION("completion"),
+        // the same through BlinkUpCompleteActivity or ClearCompleteActivity, which the SDK always uses
+        COMPLETION_ACTIVITY("completionActivity"),
+        // token status polling until the device is claimed
+        POLL("poll"),
+        // wait of a server call for its API key's rate limit, see RateLimiter
+        RATE_LIMIT_WAIT("rateLimitWait");
+
+        private final String key;
+        private final Histogram histogram = new Histogram();
+        Phase(String key) { this.key = key; }
+    }
+
+    private static final String SESSIONS_KEY = "sessions";
+    private static final String STARTUP_KEY = "startup";
+    private static final String RATE_LIMITER_KEY = "rateLimiter";
+    private static final String EVENT_BUS_KEY = "eventBus";
+    private static final String TRANSITIONS_KEY = "transitions";
+    private static final String REJECTED_TRANSITIONS_KEY = "rejectedTransitions";
+    private static final String DROPPED_RESULTS_KEY = "droppedResults";
+    private static final String DEADLINE_MISSES_KEY = "deadlineMisses";
+
+    // session state changes, one counter per from and to state pair
+    private static final int STATE_COUNT = BlinkUpSession.State.values().length;
+    private static final AtomicLongArray sTransitions = new AtomicLongArray(STATE_COUNT * STATE_COUNT);
+    private static final AtomicLong sRejectedTransitions = new AtomicLong(0);
+    private static final AtomicLong sDroppedResults = new AtomicLong(0);
+
+    // sessions failed by their deadline, one counter per phase they were in
+    private static final AtomicLongArray sDeadlineMisses = new AtomicLongArray(Deadline.Phase.values().length);
+
+    // upper bounds of the histogram buckets in microseconds, last bucket is unbounded
+    private static final long[] BUCKET_BOUNDS_US = {
+            50, 100, 250, 500,
+            1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+            1000000, 2500000, 5000000, 10000000, 30000000, 60000000
+    };
+
+    // JSON keys of the getBlinkUpMetrics result
+    private static final String KEY_COUNT = "count";
+    private static final String KEY_SUCCESS = "success";
+    private static final String KEY_ERROR = "error";
+    private static final String KEY_TIMEOUT = "timeout";
+    private static final String KEY_P50_US = "p50Us";
+    private static final String KEY_P95_US = "p95Us";
+    private static final String KEY_P99_US = "p99Us";
+    private static final String KEY_MAX_US = "maxUs";
+
+    /*************************************
+     * @return start time to pass to record(), monotonic
+     *************************************/
+    static long startTimer() {
+        return System.nanoTime();
+    }
+
+    static void record(Phase phase, long startNs, Outcome outcome) {
+        phase.histogram.add((System.nanoTime() - startNs) / 1000, outcome);
+    }
+
+    /*************************************
+     * @return every phase's counters and percentiles as a
+     * JSON object. Phases are read one counter at a time,
+     * so a snapshot taken during a session may be off by
+     * the samples recorded while it was read.
+     *************************************/
+    static String snapshotJson(boolean reset) {
+        JsonWriter writer = new JsonWriter(1024);
+        writer.beginObject();
+        for (Phase phase : Phase.values()) {
+            writer.name(phase.key);
+            phase.histogram.writeJson(writer);
+            if (reset) {
+                phase.histogram.reset();
+            }
+        }
+        writer.name(SESSIONS_KEY);
+        writeSessionsJson(writer, reset);
+        writer.name(STARTUP_KEY);
+        PluginStartup.writeJson(writer);
+        writer.name(RATE_LIMITER_KEY);
+        RateLimiter.writeJson(writer, reset);
+        writer.name(EVENT_BUS_KEY);
+        EventBus.writeJson(writer, reset);
+        writer.endObject();
+        return writer.toString();
+    }
+
+    /*************************************
+     * counts a session state change
+     *************************************/
+    static void recordTransition(BlinkUpSession.State from, BlinkUpSession.State to) {
+        sTransitions.incrementAndGet(from.ordinal() * STATE_COUNT + to.ordinal());
+    }
+
+    /*************************************
+     * counts a state change that lost to another one,
+     * what it would have done was dropped
+     *************************************/
+    static void recordRejectedTransition() {
+        sRejectedTransitions.incrementAndGet();
+    }
+
+    /*************************************
+     * counts a result that had no session to go to
+     *************************************/
+    static void recordDroppedResult() {
+        sDroppedResults.incrementAndGet();
+    }
+
+    /*************************************
+     * counts a session failed by its deadline
+     *************************************/
+    static void recordDeadlineMiss(Deadline.Phase phase) {
+        sDeadlineMisses.incrementAndGet(phase.ordinal());
+    }
+
+    private static void writeSessionsJson(JsonWriter writer, boolean reset) {
+        BlinkUpSession.State[] states = BlinkUpSession.State.values();
+        writer.beginObject();
+        writer.name(TRANSITIONS_KEY).beginObject();
+        for (int i = 0; i < sTransitions.length(); i++) {
+            long count = reset ? sTransitions.getAndSet(i, 0) : sTransitions.get(i);
+            if (count > 0) {
+                writer.name(states[i / STATE_COUNT].key + ">" + states[i % STATE_COUNT].key).valueAsString(count);
+            }
+        }
+        writer.endObject();
+        writer.name(REJECTED_TRANSITIONS_KEY).valueAsString(
+                reset ? sRejectedTransitions.getAndSet(0) : sRejectedTransitions.get());
+        writer.name(DROPPED_RESULTS_KEY).valueAsString(reset ? sDroppedResults.getAndSet(0) : sDroppedResults.get());
+        writer.name(DEADLINE_MISSES_KEY).beginObject();
+        for (Deadline.Phase phase : Deadline.Phase.values()) {
+            writer.name(phase.key).valueAsString(
+                    reset ? sDeadlineMisses.getAndSet(phase.ordinal(), 0) : sDeadlineMisses.get(phase.ordinal()));
+        }
+        writer.endObject();
+        writer.endObject();
+    }
+
+    /*************************************
+     * Lock free histogram of one phase
+     *************************************/
+    private static class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_BOUNDS_US.length + 1);
+        private final AtomicLongArray mOutcomes = new AtomicLongArray(Outcome.values().length);
+        private final AtomicLong mMaxUs = new AtomicLong(0);
+
+        void add(long durationUs, Outcome outcome) {
+            mBuckets.incrementAndGet(bucketOf(durationUs));
+            mOutcomes.incrementAndGet(outcome.ordinal());
+
+            long maxUs = mMaxUs.get();
+            while (durationUs > maxUs && !mMaxUs.compareAndSet(maxUs, durationUs)) {
+                maxUs = mMaxUs.get();
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < mBuckets.length(); i++) {
+                mBuckets.set(i, 0);
+            }
+            for (int i = 0; i < mOutcomes.length(); i++) {
+                mOutcomes.set(i, 0);
+            }
+            mMaxUs.set(0);
+        }
+
+        void writeJson(JsonWriter writer) {
+            long[] counts = new long[mBuckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = mBuckets.get(i);
+                total += counts[i];
+            }
+            long maxUs = mMaxUs.get();
+
+            writer.beginObject();
+            writer.name(KEY_COUNT).valueAsString(total);
+            writer.name(KEY_SUCCESS).valueAsString(mOutcomes.get(Outcome.SUCCESS.ordinal()));
+            writer.name(KEY_ERROR).valueAsString(mOutcomes.get(Outcome.ERROR.ordinal()));
+            writer.name(KEY_TIMEOUT).valueAsString(mOutcomes.get(Outcome.TIMEOUT.ordinal()));
+            writer.name(KEY_P50_US).valueAsString(percentile(counts, total, maxUs, 0.50));
+            writer.name(KEY_P95_US).valueAsString(percentile(counts, total, maxUs, 0.95));
+            writer.name(KEY_P99_US).valueAsString(percentile(counts, total, maxUs, 0.99));
+            writer.name(KEY_MAX_US).valueAsString(maxUs);
+            writer.endObject();
+        }
+
+        private static int bucketOf(long durationUs) {
+            for (int i = 0; i < BUCKET_BOUNDS_US.length; i++) {
+                if (durationUs <= BUCKET_BOUNDS_US[i]) {
+                    return i;
+                }
+            }
+            return BUCKET_BOUNDS_US.length;
+        }
+
+        /*************************************
+         * @return upper bound of the bucket holding the
+         * percentile, capped by the largest sample seen
+         *************************************/
+        private static long percentile(long[] counts, long total, long maxUs, double fraction) {
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_US.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(BUCKET_BOUNDS_US[i], maxUs);
+                }
+            }
+            return maxUs;
+        }
+    }
+}
@@ -19,19 +19,26 @@ package com.macadamian.blinkup;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.electricimp.blinkup.BlinkupController;
 import com.electricimp.blinkup.TokenStatusCallback;
 import com.electricimp.blinkup.TokenAcquireCallback;
 import com.electricimp.blinkup.ServerErrorHandler;
-import com.macadamian.blinkup.util.PreferencesHelper;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /*********************************************
  * execute() called from Javascript interface,
@@ -45,151 +52,1161 @@ public class BlinkUpPlugin extends CordovaPlugin {
     private static final String INVOKE_BLINKUP = "invokeBlinkUp";
     private static final String ABORT_BLINKUP = "abortBlinkUp";
     private static final String CLEAR_BLINKUP_DATA = "clearBlinkUpData";
+    private static final String START_BATCH_BLINKUP = "startBatchBlinkUp";
+    private static final String PREPARE_BLINKUP = "prepareBlinkUp";
+    private static final String CONFIGURE_BLINKUP = "configureBlinkUp";
+    private static final String GET_BLINKUP_METRICS = "getBlinkUpMetrics";
+    private static final String QUERY_BLINKUP_JOURNAL = "queryBlinkUpJournal";
+    private static final String EXPORT_BLINKUP_JOURNAL = "exportBlinkUpJournal";
+    private static final String GET_RECOVERED_SESSIONS = "getRecoveredSessions";
+    private static final String SAVE_WIFI_CREDENTIALS = "saveWifiCredentials";
+    private static final String FORGET_WIFI_CREDENTIALS = "forgetWifiCredentials";
+    private static final String DUMP_BLINKUP_TRACE = "dumpBlinkUpTrace";
+    private static final String SUBSCRIBE_BLINKUP = "subscribeBlinkUp";
+    private static final String UNSUBSCRIBE_BLINKUP = "unsubscribeBlinkUp";
+    private static final String REPROVISION_BLINKUP = "reprovisionBlinkUp";
+
+    private static final String[] ACTIONS = {
+            START_BLINKUP, INVOKE_BLINKUP, ABORT_BLINKUP, CLEAR_BLINKUP_DATA, START_BATCH_BLINKUP,
+            PREPARE_BLINKUP, CONFIGURE_BLINKUP, GET_BLINKUP_METRICS, QUERY_BLINKUP_JOURNAL, EXPORT_BLINKUP_JOURNAL,
+            GET_RECOVERED_SESSIONS, SAVE_WIFI_CREDENTIALS, FORGET_WIFI_CREDENTIALS, DUMP_BLINKUP_TRACE,
+            SUBSCRIBE_BLINKUP, UNSUBSCRIBE_BLINKUP, REPROVISION_BLINKUP
+    };
 
-    private static CallbackContext sCallbackContext;
-    private static boolean sClearCache = false;
+    // config.xml preference, when set a setup token is acquired for this key at startup
+    private static final String PREF_PREFETCH_API_KEY = "BlinkUpPrefetchApiKey";
+    private static final String PREF_STARTUP_MODE = "BlinkUpStartupMode";
 
-    // only needed in this class
-    private String mApiKey;
-    private Boolean mGeneratePlanId = false;
-    private Boolean mIsInDevelopment = false;
-    private String mDeveloperPlanId;
+    private static volatile boolean sClearCache = false;
+    private static volatile BatchRun sBatchRun;
+    private static SetupTokenPool sPrefetchPool;
 
     static final int STATUS_DEVICE_CONNECTED = 0;
     static final int STATUS_GATHERING_INFO = 200;
     static final int STATUS_CLEAR_WIFI_COMPLETE = 201;
     static final int STATUS_CLEAR_WIFI_AND_CACHE_COMPLETE = 202;
+    static final int STATUS_BLINKUP_PREPARED = 203;
+    static final int STATUS_SESSION_STARTED = 204;
+    static final int STATUS_PROGRESS = 205;
+    static final int STATUS_CONFIGURED = 206;
+    static final int STATUS_METRICS = 207;
+    static final int STATUS_JOURNAL_PAGE = 208;
+    static final int STATUS_JOURNAL_EXPORT_CHUNK = 209;
+    static final int STATUS_JOURNAL_EXPORT_COMPLETE = 210;
+    static final int STATUS_RECOVERED_SESSIONS = 211;
+    static final int STATUS_WIFI_CREDENTIALS_SAVED = 212;
+    static final int STATUS_WIFI_CREDENTIALS_FORGOTTEN = 213;
+    static final int STATUS_TRACE = 214;
+    static final int STATUS_WAITING_FOR_NETWORK = 215;
+    static final int STATUS_SUBSCRIBED = 216;
+    static final int STATUS_UNSUBSCRIBED = 217;
+    static final int STATUS_EVENTS_DROPPED = 218;
+    static final int STATUS_REPROVISION_CLEARED = 219;
 
     static final int ERROR_INVALID_ARGUMENTS = 100;
     static final int ERROR_PROCESS_TIMED_OUT = 101;
     static final int ERROR_CANCELLED_BY_USER = 102;
     static final int ERROR_INVALID_API_KEY = 103;
-    static final int ERROR_VERIFY_API_KEY_FAIL = 301; // android only
-    static final int ERROR_JSON_ERROR = 302;          // android only
+    static final int ERROR_VERIFY_API_KEY_FAIL = 301;     // android only
+    static final int ERROR_JSON_ERROR = 302;              // android only
+    static final int ERROR_JOURNAL_IO = 303;              // android only
+    static final int ERROR_WIFI_CREDENTIALS = 304;        // android only
+    static final int ERROR_DEADLINE_VERIFY = 305;         // android only
+    static final int ERROR_DEADLINE_UI_HOP = 306;         // android only
+    static final int ERROR_DEADLINE_TOKEN_ACQUIRE = 307;  // android only
+    static final int ERROR_DEADLINE_FLASH = 308;          // android only
+    static final int ERROR_DEADLINE_DEVICE_INFO = 309;    // android only
+    static final int ERROR_FLASH_IN_PROGRESS = 310;       // android only
+
+    // argument indexes from BlinkUp.js, see BlinkUpArguments for the provisioning calls
+    private static final int PREPARE_BLINKUP_ARG_API_KEY = 0;
+    private static final int CONFIGURE_BLINKUP_ARG_OPTIONS = 0;
+    private static final int GET_BLINKUP_METRICS_ARG_RESET = 0;
+    private static final int QUERY_BLINKUP_JOURNAL_ARG_QUERY = 0;
+    private static final int EXPORT_BLINKUP_JOURNAL_ARG_CHUNK_SIZE = 0;
+    private static final int SAVE_WIFI_CREDENTIALS_ARG_SITE = 0;
+    private static final int SAVE_WIFI_CREDENTIALS_ARG_SSID = 1;
+    private static final int SAVE_WIFI_CREDENTIALS_ARG_PASSWORD = 2;
+    private static final int FORGET_WIFI_CREDENTIALS_ARG_SITE = 0;
+    private static final int DUMP_BLINKUP_TRACE_ARG_CLEAR = 0;
+    private static final int SUBSCRIBE_BLINKUP_ARG_FILTER = 0;
+    private static final int UNSUBSCRIBE_BLINKUP_ARG_SUBSCRIPTION_ID = 0;
+
+    // keys of the queryBlinkUpJournal query object, all optional
+    private static final String JOURNAL_QUERY_DEVICE_ID = "deviceId";
+    private static final String JOURNAL_QUERY_FROM_MS = "fromMs";
+    private static final String JOURNAL_QUERY_TO_MS = "toMs";
+    private static final String JOURNAL_QUERY_CURSOR = "cursor";
+    private static final String JOURNAL_QUERY_PAGE_SIZE = "pageSize";
 
-    // argument indexes from BlinkUp.js, the plugin's JS interface to Cordova
-    private static final int INVOKE_BLINKUP_ARG_API_KEY = 0;
-    private static final int INVOKE_BLINKUP_ARG_DEVELOPER_PLAN_ID = 1;
-    private static final int INVOKE_BLINKUP_ARG_TIMEOUT_MS = 2;
-    private static final int INVOKE_BLINKUP_ARG_GENERATE_PLAN_ID = 3;
+    // keys of the subscribeBlinkUp filter object, all optional
+    private static final String SUBSCRIBE_FILTER_EVENTS = "events";
+    private static final String SUBSCRIBE_FILTER_SESSION_ID = "sessionId";
+    private static final String SUBSCRIBE_FILTER_BUFFER_SIZE = "bufferSize";
+
+    // optional, aborts every provisioning session when omitted
+    private static final int ABORT_BLINKUP_ARG_SESSION_ID = 0;
+
+    /**********************************************************
+     * runs when the app starts, only initializes the plugin
+     * there in eager startup mode, see PluginStartup
+     *********************************************************/
+    @Override
+    protected void pluginInitialize() {
+        String startupMode = preferences.getString(PREF_STARTUP_MODE, PluginStartup.MODE_LAZY);
+        if (!PluginStartup.isValidMode(startupMode)) {
+            Log.w(TAG, PREF_STARTUP_MODE + " must be " + PluginStartup.MODE_LAZY + " or "
+                    + PluginStartup.MODE_EAGER + ", using " + PluginStartup.MODE_LAZY);
+        }
 
-    private static final int START_BLINKUP_ARG_API_KEY = 0;
-    private static final int START_BLINKUP_ARG_DEVELOPER_PLAN_ID = 1;
-    private static final int START_BLINKUP_IS_IN_DEVELOPMENT = 2;
-    private static final int START_BLINKUP_ARG_TIMEOUT_MS = 3;
+        if (PluginStartup.onPluginInitialize(cordova.getActivity(), startupMode)) {
+            onInitialized();
+        }
+    }
+
+    /**********************************************************
+     * in lazy startup mode, the first call that needs the
+     * plugin's caches initializes it
+     *********************************************************/
+    private void initialize(String action) {
+        if (PluginStartup.initialize(cordova.getActivity(), action)) {
+            onInitialized();
+        }
+    }
+
+    /**********************************************************
+     * starts the speculative token prefetch if opted in via config.xml
+     *********************************************************/
+    private void onInitialized() {
+        String prefetchApiKey = preferences.getString(PREF_PREFETCH_API_KEY, null);
+        if (!TextUtils.isEmpty(prefetchApiKey)) {
+            if (BlinkUpArguments.apiKeyFormatValid(prefetchApiKey)) {
+                startPrefetch(cordova.getActivity(), PluginConfig.getBackend(), prefetchApiKey);
+            } else {
+                Log.w(TAG, PREF_PREFETCH_API_KEY + " is not a valid api key, not prefetching");
+            }
+        }
+    }
 
     /**********************************************************
      * method called by Cordova javascript
      *********************************************************/
     @Override
-    public boolean execute(String action, JSONArray data, CallbackContext callbackContext) throws JSONException {
-        sCallbackContext = callbackContext;
+    public boolean execute(final String action, final JSONArray data, CallbackContext callbackContext)
+            throws JSONException {
+        long executeStartNs = BlinkUpMetrics.startTimer();
+
+        // every call gets its own session so results go back to the callback that asked for them
+        boolean isProvisioning = START_BLINKUP.equalsIgnoreCase(action)
+                || INVOKE_BLINKUP.equalsIgnoreCase(action)
+                || START_BATCH_BLINKUP.equalsIgnoreCase(action)
+                || REPROVISION_BLINKUP.equalsIgnoreCase(action);
+        final int sessionId = SessionRegistry.register(callbackContext, isProvisioning).getId();
+        Tracer.begin(Tracer.EXECUTE, sessionId);
+
+        // async mode only holds the WebCore thread long enough to hand the call over
+        if (PluginConfig.isAsyncExecution() && isKnownAction(action)) {
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(action, data, sessionId);
+                }
+            });
+            BlinkUpMetrics.record(BlinkUpMetrics.Phase.EXECUTE, executeStartNs, BlinkUpMetrics.Outcome.SUCCESS);
+            Tracer.end(Tracer.EXECUTE, sessionId);
+            return true;
+        }
+
+        boolean handled = dispatch(action, data, sessionId);
+        BlinkUpMetrics.record(BlinkUpMetrics.Phase.EXECUTE, executeStartNs,
+                handled ? BlinkUpMetrics.Outcome.SUCCESS : BlinkUpMetrics.Outcome.ERROR);
+        Tracer.end(Tracer.EXECUTE, sessionId);
+        return handled;
+    }
+
+    /**********************************************************
+     * aborting, configuring, subscribing and reading metrics or the trace
+     * don't touch the caches, so they don't initialize the plugin in lazy mode
+     *********************************************************/
+    private static boolean needsInitialization(String action) {
+        return isKnownAction(action)
+                && !ABORT_BLINKUP.equalsIgnoreCase(action)
+                && !CONFIGURE_BLINKUP.equalsIgnoreCase(action)
+                && !GET_BLINKUP_METRICS.equalsIgnoreCase(action)
+                && !DUMP_BLINKUP_TRACE.equalsIgnoreCase(action)
+                && !SUBSCRIBE_BLINKUP.equalsIgnoreCase(action)
+                && !UNSUBSCRIBE_BLINKUP.equalsIgnoreCase(action);
+    }
+
+    private static boolean isKnownAction(String action) {
+        for (String knownAction : ACTIONS) {
+            if (knownAction.equalsIgnoreCase(action)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**********************************************************
+     * runs the action, on the WebCore thread or a Cordova
+     * pool thread depending on the execution mode
+     *********************************************************/
+    private boolean dispatch(String action, JSONArray data, int sessionId) {
+        if (needsInitialization(action)) {
+            initialize(action);
+        }
+
         final Activity activity = cordova.getActivity();
-        final BlinkupController controller = BlinkupController.getInstance();
+        final BlinkUpBackend controller = PluginConfig.getBackend();
 
         if (START_BLINKUP.equalsIgnoreCase(action)) {
-            return startBlinkUp(activity, controller, data);
+            return startBlinkUp(activity, controller, data, sessionId);
         } else if (INVOKE_BLINKUP.equalsIgnoreCase(action)) {
-            return invokeBlinkup(activity, controller, data);
+            return invokeBlinkup(activity, controller, data, sessionId);
+        } else if (START_BATCH_BLINKUP.equalsIgnoreCase(action)) {
+            return startBatchBlinkUp(activity, controller, data, sessionId);
+        } else if (REPROVISION_BLINKUP.equalsIgnoreCase(action)) {
+            return reprovisionBlinkUp(activity, controller, data, sessionId);
+        } else if (PREPARE_BLINKUP.equalsIgnoreCase(action)) {
+            return prepareBlinkUp(activity, controller, data, sessionId);
         } else if (ABORT_BLINKUP.equalsIgnoreCase(action)) {
-            return abortBlinkup(controller);
+            return abortBlinkup(controller, data, sessionId);
         } else if (CLEAR_BLINKUP_DATA.equalsIgnoreCase(action)) {
-            return clearBlinkupData(activity, controller);
+            return clearBlinkupData(activity, controller, sessionId);
+        } else if (CONFIGURE_BLINKUP.equalsIgnoreCase(action)) {
+            return configureBlinkUp(data, sessionId);
+        } else if (GET_BLINKUP_METRICS.equalsIgnoreCase(action)) {
+            return getBlinkUpMetrics(data, sessionId);
+        } else if (QUERY_BLINKUP_JOURNAL.equalsIgnoreCase(action)) {
+            return queryBlinkUpJournal(data, sessionId);
+        } else if (EXPORT_BLINKUP_JOURNAL.equalsIgnoreCase(action)) {
+            return exportBlinkUpJournal(data, sessionId);
+        } else if (GET_RECOVERED_SESSIONS.equalsIgnoreCase(action)) {
+            return getRecoveredSessions(sessionId);
+        } else if (SAVE_WIFI_CREDENTIALS.equalsIgnoreCase(action)) {
+            return saveWifiCredentials(activity, data, sessionId);
+        } else if (FORGET_WIFI_CREDENTIALS.equalsIgnoreCase(action)) {
+            return forgetWifiCredentials(activity, data, sessionId);
+        } else if (DUMP_BLINKUP_TRACE.equalsIgnoreCase(action)) {
+            return dumpBlinkUpTrace(data, sessionId);
+        } else if (SUBSCRIBE_BLINKUP.equalsIgnoreCase(action)) {
+            return subscribeBlinkUp(data, sessionId);
+        } else if (UNSUBSCRIBE_BLINKUP.equalsIgnoreCase(action)) {
+            return unsubscribeBlinkUp(data, sessionId);
         }
+
+        SessionRegistry.remove(sessionId);
         return false;
     }
 
-    private boolean startBlinkUp(final Activity activity, final BlinkupController controller, JSONArray data) {
-        int timeoutMs;
-        try {
-            mApiKey = data.getString(START_BLINKUP_ARG_API_KEY);
-            mDeveloperPlanId = data.getString(START_BLINKUP_ARG_DEVELOPER_PLAN_ID);
-            mIsInDevelopment = data.getBoolean(START_BLINKUP_IS_IN_DEVELOPMENT);
-            timeoutMs = data.getInt(START_BLINKUP_ARG_TIMEOUT_MS);
-        } catch (JSONException exc) {
-            BlinkUpPluginResult.sendPluginErrorToCallback(ERROR_INVALID_ARGUMENTS);
+    /**********************************************************
+     * webview is navigating away, its callbacks are no longer valid
+     *********************************************************/
+    @Override
+    public void onReset() {
+        stopBatch();
+        EventBus.clear();
+        SessionRegistry.clear();
+    }
+
+    /**********************************************************
+     * the SDK's screens cover the app's activity, see
+     * SessionRegistry.onSdkUiShown
+     *********************************************************/
+    @Override
+    public void onPause(boolean multitasking) {
+        SessionRegistry.onAppPaused();
+    }
+
+    @Override
+    public void onResume(boolean multitasking) {
+        SessionRegistry.onAppResumed();
+    }
+
+    private boolean startBlinkUp(final Activity activity, final BlinkUpBackend controller, JSONArray data,
+                                 final int sessionId) {
+        ValidatedCall call = validateCall(activity, START_BLINKUP, data, sessionId);
+        if (call == null || !openSession(sessionId, call)) {
             return false;
         }
+        controller.setBlinkUpCompleteIntent(createBlinkUpCompleteIntent(activity, call.args, sessionId));
 
-        // if api key not valid, send error message and quit
-        if (!apiKeyFormatValid()) {
-            BlinkUpPluginResult.sendPluginErrorToCallback(ERROR_INVALID_API_KEY);
+        presentBlinkUp(activity, controller, call.args, sessionId, call.wifi);
+        return true;
+    }
+
+    /**
+     * Old Style of BlinkUp invocation.
+     *
+     * @deprecated use {@link #startBlinkUp()} instead.
+     */
+    @Deprecated
+    private boolean invokeBlinkup(final Activity activity, final BlinkUpBackend controller, JSONArray data,
+                                  final int sessionId) {
+        ValidatedCall call = validateCall(activity, INVOKE_BLINKUP, data, sessionId);
+        if (call == null || !openSession(sessionId, call)) {
             return false;
-        } else if( mDeveloperPlanId == null || mDeveloperPlanId.isEmpty()) {
-            BlinkUpPluginResult.sendPluginErrorToCallback(ERROR_INVALID_ARGUMENTS);
+        }
+        controller.setBlinkUpCompleteIntent(createBlinkUpCompleteIntent(activity, call.args, sessionId));
+
+        presentBlinkUp(activity, controller, call.args, sessionId, null);
+        return true;
+    }
+
+    /**
+     * Production-line mode: validates the api key and resolves the plan ID once,
+     * then runs device sessions back to back until abortBlinkUp is called. Each
+     * device's setup token is acquired while the previous one is polled.
+     */
+    private boolean startBatchBlinkUp(final Activity activity, final BlinkUpBackend controller, JSONArray data,
+                                      final int sessionId) {
+        ValidatedCall call = validateCall(activity, START_BATCH_BLINKUP, data, sessionId);
+        if (call == null) {
             return false;
         }
 
-        controller.intentBlinkupComplete = createBlinkUpCompleteIntent(activity, timeoutMs);
+        // one batch at a time, the running one is told it was replaced
+        BatchRun runningBatch = sBatchRun;
+        if (runningBatch != null) {
+            cancelSession(runningBatch.getSessionId());
+        }
+        if (!openSession(sessionId, call)) {
+            return false;
+        }
+        SessionRegistry.get(sessionId).setLongLived(true);
 
-        // default is to run on WebCore thread, we have UI so need UI thread
-        activity.runOnUiThread(new Runnable() {
+        // plan ID must be set before tokens are acquired for it
+        BlinkUpArguments args = call.args;
+        String planId = resolvePlanId(activity, args);
+        if (!TextUtils.isEmpty(planId)) {
+            controller.setPlanID(planId);
+        }
+
+        // the first device acquires its own token, the pool fills once its flash is done
+        SetupTokenPool tokenPool = new SetupTokenPool(activity, controller, args.apiKey, args.tokenTtlMs);
+        BatchRun batchRun = new BatchRun(activity, controller, sessionId, args.apiKey, planId,
+                args.developerPlanId, args.timeoutMs, tokenPool, call.wifi);
+        sBatchRun = batchRun;
+        presentNextBatchDevice(batchRun);
+        return true;
+    }
+
+    /**
+     * Clears a returned device's wifi and provisions it again in one session. The plan ID
+     * and setup token are resolved while the device is being cleared, and the flash starts
+     * as soon as the clear is done, without a result round trip through javascript.
+     */
+    private boolean reprovisionBlinkUp(final Activity activity, final BlinkUpBackend controller, JSONArray data,
+                                       final int sessionId) {
+        ValidatedCall call = validateCall(activity, REPROVISION_BLINKUP, data, sessionId);
+        if (call == null) {
+            return false;
+        }
+
+        final BlinkUpArguments args = call.args;
+        final ReprovisionRun run = new ReprovisionRun(activity, controller, args, sessionId, call.wifi);
+        SessionRegistry.get(sessionId).setReprovisionRun(run);
+        if (!openSession(sessionId, call)) {
+            return false;
+        }
+        controller.setBlinkUpCompleteIntent(createBlinkUpCompleteIntent(activity, args, sessionId));
+        Intent clearCompleteIntent = new Intent(activity, ClearCompleteActivity.class);
+        clearCompleteIntent.putExtra(Extras.EXTRA_SESSION_ID, sessionId);
+        controller.setClearCompleteIntent(clearCompleteIntent);
+
+        // the clear flash takes the longest, it goes first
+        run.begin(ReprovisionRun.Stage.CLEAR);
+        runOnUiThread(activity, sessionId, new Runnable() {
             @Override
             public void run() {
-                presentBlinkUp(activity, controller);
+                BlinkUpSession session = SessionRegistry.get(sessionId);
+                if (session != null) {
+                    session.setPhase(Deadline.Phase.FLASH);
+                }
+                SessionRegistry.onSdkUiShown(sessionId);
+                controller.clearDevice(activity);
+            }
+        });
+
+        // plan ID must be set before the token is acquired for it
+        run.begin(ReprovisionRun.Stage.PLAN_ID);
+        final String planId = resolvePlanId(activity, args);
+        if (!TextUtils.isEmpty(planId)) {
+            controller.setPlanID(planId);
+        }
+        run.setPlanId(planId);
+        run.end(ReprovisionRun.Stage.PLAN_ID);
+
+        run.begin(ReprovisionRun.Stage.TOKEN_ACQUIRE);
+        SetupTokenPool.SetupToken prefetchedToken = takePrefetchedToken(args.apiKey, planId);
+        if (prefetchedToken != null) {
+            run.setSetupToken(prefetchedToken);
+            onReprovisionTokenDone(run);
+            return true;
+        }
+
+        runOnUiThread(activity, sessionId, new Runnable() {
+            @Override
+            public void run() {
+                final long acquireStartNs = BlinkUpMetrics.startTimer();
+                final int traceCookie = Tracer.beginAsync(Tracer.TOKEN_ACQUIRE, sessionId);
+                acquireSetupToken(activity, controller, args.apiKey, sessionId, new TokenAcquireCallback() {
+                    @Override
+                    public void onSuccess(String tokenPlanId, String id) {
+                        BlinkUpMetrics.record(BlinkUpMetrics.Phase.TOKEN_ACQUIRE, acquireStartNs,
+                                BlinkUpMetrics.Outcome.SUCCESS);
+                        Tracer.endAsync(Tracer.TOKEN_ACQUIRE, sessionId, traceCookie);
+                        ApiKeyCache.recordGood(args.apiKey);
+                        run.setSetupToken(new SetupTokenPool.SetupToken(tokenPlanId, id,
+                                SystemClock.elapsedRealtime()));
+                        onReprovisionTokenDone(run);
+                    }
+
+                    @Override
+                    public void onError(String s) {
+                        BlinkUpMetrics.record(BlinkUpMetrics.Phase.TOKEN_ACQUIRE, acquireStartNs,
+                                BlinkUpMetrics.Outcome.ERROR);
+                        Tracer.endAsync(Tracer.TOKEN_ACQUIRE, sessionId, traceCookie);
+                        Log.e(TAG, s);
+                        onReprovisionTokenDone(run);
+                    }
+                });
             }
         });
         return true;
     }
 
-    /**
-     * Old Style of BlinkUp invocation.
+    private static void onReprovisionTokenDone(ReprovisionRun run) {
+        run.end(ReprovisionRun.Stage.TOKEN_ACQUIRE);
+        if (run.getSetupToken() != null) {
+            ProgressReporter.report(run.getSessionId(), ProgressReporter.EVENT_TOKEN_ACQUIRED);
+        }
+        if (run.prerequisiteDone()) {
+            flashReprovisionedDevice(run);
+        }
+    }
+
+    /**********************************************************
+     * called by CompletionHandler once a reprovisioned device's
+     * wifi is cleared, flashes it unless the token is still on its way
+     **********************************************************/
+    static void onReprovisionCleared(ReprovisionRun run) {
+        run.end(ReprovisionRun.Stage.CLEAR);
+
+        BlinkUpPluginResult clearedResult = new BlinkUpPluginResult();
+        clearedResult.setSessionId(run.getSessionId());
+        clearedResult.setState(BlinkUpPluginResult.STATE_STARTED);
+        clearedResult.setStatusCode(STATUS_REPROVISION_CLEARED);
+        clearedResult.setStages(run.stagesJson());
+        clearedResult.sendResultsToCallback();
+
+        // set first, the token may arrive right after the check
+        BlinkUpSession session = SessionRegistry.get(run.getSessionId());
+        if (session != null) {
+            session.setPhase(Deadline.Phase.TOKEN_ACQUIRE);
+        }
+        if (run.prerequisiteDone()) {
+            flashReprovisionedDevice(run);
+        }
+    }
+
+    private static void flashReprovisionedDevice(ReprovisionRun run) {
+        BlinkUpSession session = SessionRegistry.get(run.getSessionId());
+        if (session == null || session.getState() != BlinkUpSession.State.FLASHING) {
+            // aborted during the clear
+            return;
+        }
+
+        run.begin(ReprovisionRun.Stage.FLASH);
+        showBlinkUp(run.getActivity(), run.getController(), run.getArgs(), run.getSessionId(), run.getPlanId(),
+                run.getSetupToken(), run.getWifi());
+    }
+
+    /**********************************************************
+     * called by CompletionHandler once the SDK flashed its setup
+     * token, the next device's can be acquired while this one polls
+     **********************************************************/
+    static void onFlashCompleted(int sessionId) {
+        BatchRun batchRun = sBatchRun;
+        if (batchRun != null && batchRun.getSessionId() == sessionId) {
+            batchRun.getTokenPool().resume();
+        }
+    }
+
+    /**********************************************************
+     * called once a session's device reached a final result,
+     * presents BlinkUp for the batch's next device unless the
+     * session isn't the batch run or the batch was stopped
+     **********************************************************/
+    static void onBatchDeviceFinished(int sessionId) {
+        BatchRun batchRun = sBatchRun;
+        if (batchRun == null || batchRun.getSessionId() != sessionId || batchRun.isStopped()) {
+            return;
+        }
+
+        presentNextBatchDevice(batchRun);
+    }
+
+    private static void presentNextBatchDevice(BatchRun batchRun) {
+        if (batchRun.isStopped()) {
+            return;
+        }
+
+        // forget the previous device's retries
+        BlinkUpSession session = SessionRegistry.get(batchRun.getSessionId());
+        if (session == null) {
+            return;
+        }
+        session.resetRetryBudget();
+
+        // a pooled token saves the acquireSetupToken round trip, the pool stays paused until the flash is done
+        presentBatchDevice(batchRun, batchRun.nextSequence(), batchRun.getTokenPool().take());
+    }
+
+    private static void presentBatchDevice(final BatchRun batchRun, final int sequence,
+                                           final SetupTokenPool.SetupToken setupToken) {
+        if (batchRun.isStopped()) {
+            return;
+        }
+
+        final Activity activity = batchRun.getActivity();
+        final BlinkUpBackend controller = batchRun.getController();
+        final int sessionId = batchRun.getSessionId();
+        final BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null) {
+            return;
+        }
+
+        Intent blinkupCompleteIntent = new Intent(activity, BlinkUpCompleteActivity.class);
+        blinkupCompleteIntent.putExtra(Extras.EXTRA_SESSION_ID, batchRun.getSessionId());
+        blinkupCompleteIntent.putExtra(Extras.EXTRA_DEVELOPER_PLAN_ID, batchRun.getDeveloperPlanId());
+        blinkupCompleteIntent.putExtra(Extras.EXTRA_TIMEOUT_MS, batchRun.getTimeoutMs());
+        blinkupCompleteIntent.putExtra(Extras.EXTRA_BATCH_SEQUENCE, sequence);
+        if (setupToken != null) {
+            blinkupCompleteIntent.putExtra(Extras.EXTRA_SETUP_TOKEN, setupToken.token);
+        }
+        controller.setBlinkUpCompleteIntent(blinkupCompleteIntent);
+
+        if (setupToken != null) {
+            if (TextUtils.isEmpty(batchRun.getPlanId())) {
+                // no cached plan yet, flash with the plan the token was issued for
+                controller.setPlanID(setupToken.planId);
+            }
+            ProgressReporter.report(sessionId, ProgressReporter.EVENT_TOKEN_ACQUIRED);
+        }
+
+        runOnUiThread(activity, sessionId, new Runnable() {
+            @Override
+            public void run() {
+                if (setupToken == null) {
+                    acquireBatchToken(batchRun, session);
+                }
+
+                ProgressReporter.report(sessionId, ProgressReporter.EVENT_FLASH_STARTED);
+                final long flashStartNs = BlinkUpMetrics.startTimer();
+                session.setFlashStartNs(flashStartNs);
+                setupDevice(activity, controller, sessionId, batchRun.getApiKey(), batchRun.getWifi(),
+                        new ServerErrorHandler() {
+                    @Override
+                    public void onError(String s) {
+                        BlinkUpMetrics.record(BlinkUpMetrics.Phase.FLASH, flashStartNs,
+                                BlinkUpMetrics.Outcome.ERROR);
+                        retryVerification(activity, controller, batchRun.getApiKey(), sessionId, s,
+                                new TokenAcquireCallback() {
+                            @Override
+                            public void onSuccess(String planId, String id) {
+                                // same device, it wasn't flashed yet
+                                presentBatchDevice(batchRun, sequence,
+                                        new SetupTokenPool.SetupToken(planId, id, SystemClock.elapsedRealtime()));
+                            }
+
+                            @Override
+                            public void onError(String errorMsg) {
+                                // out of retries, no point in continuing the batch
+                                if (ApiKeyCache.isInvalidKeyError(errorMsg)) {
+                                    ApiKeyCache.recordBad(batchRun.getApiKey());
+                                }
+                                BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_VERIFY_API_KEY_FAIL);
+                                stopBatch();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**********************************************************
+     * pool ran dry or the SDK acquired another token since, the
+     * device's token is acquired during the flash
+     **********************************************************/
+    private static void acquireBatchToken(final BatchRun batchRun, final BlinkUpSession session) {
+        final long acquireStartNs = BlinkUpMetrics.startTimer();
+        final int traceCookie = Tracer.beginAsync(Tracer.TOKEN_ACQUIRE, session.getId());
+        acquireSetupToken(batchRun.getActivity(), batchRun.getController(), batchRun.getApiKey(), session.getId(),
+                new TokenAcquireCallback() {
+            @Override
+            public void onSuccess(String planId, String id) {
+                BlinkUpMetrics.record(BlinkUpMetrics.Phase.TOKEN_ACQUIRE, acquireStartNs,
+                        BlinkUpMetrics.Outcome.SUCCESS);
+                Tracer.endAsync(Tracer.TOKEN_ACQUIRE, session.getId(), traceCookie);
+                ApiKeyCache.recordGood(batchRun.getApiKey());
+                ProgressReporter.report(session.getId(), ProgressReporter.EVENT_TOKEN_ACQUIRED);
+            }
+
+            @Override
+            public void onError(String s) {
+                BlinkUpMetrics.record(BlinkUpMetrics.Phase.TOKEN_ACQUIRE, acquireStartNs,
+                        BlinkUpMetrics.Outcome.ERROR);
+                Tracer.endAsync(Tracer.TOKEN_ACQUIRE, session.getId(), traceCookie);
+                Log.e(TAG, s);
+            }
+        });
+    }
+
+    /**********************************************************
+     * the server didn't verify the key. Asks it again, only that,
+     * as often as the retry policy allows. The callback gets the
+     * first token the server issues, or the last error once out of retries.
+     **********************************************************/
+    private static void retryVerification(final Activity activity, final BlinkUpBackend controller,
+                                          final String apiKey, final int sessionId, String errorMsg,
+                                          final TokenAcquireCallback callback) {
+        long retryDelayMs = RetryPolicy.nextRetryDelayMs(sessionId, RetryPolicy.ErrorClass.VERIFY_FAILURE);
+        if (retryDelayMs < 0) {
+            callback.onError(errorMsg);
+            return;
+        }
+
+        // the retry wouldn't even start before the deadline
+        if (Deadline.cannotMeet(sessionId, retryDelayMs)) {
+            Deadline.fail(sessionId, Deadline.Phase.VERIFY);
+            return;
+        }
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session != null) {
+            session.setPhase(Deadline.Phase.VERIFY);
+        }
+
+        TokenStatusPoller.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                runOnUiThread(activity, sessionId, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (SessionRegistry.get(sessionId) == null) {
+                            // aborted meanwhile
+                            return;
+                        }
+
+                        final long acquireStartNs = BlinkUpMetrics.startTimer();
+                        final int traceCookie = Tracer.beginAsync(Tracer.TOKEN_ACQUIRE, sessionId);
+                        acquireSetupToken(activity, controller, apiKey, sessionId, new TokenAcquireCallback() {
+                            @Override
+                            public void onSuccess(String planId, String id) {
+                                BlinkUpMetrics.record(BlinkUpMetrics.Phase.TOKEN_ACQUIRE, acquireStartNs,
+                                        BlinkUpMetrics.Outcome.SUCCESS);
+                                Tracer.endAsync(Tracer.TOKEN_ACQUIRE, sessionId, traceCookie);
+                                ApiKeyCache.recordGood(apiKey);
+                                callback.onSuccess(planId, id);
+                            }
+
+                            @Override
+                            public void onError(String errorMsg) {
+                                BlinkUpMetrics.record(BlinkUpMetrics.Phase.TOKEN_ACQUIRE, acquireStartNs,
+                                        BlinkUpMetrics.Outcome.ERROR);
+                                Tracer.endAsync(Tracer.TOKEN_ACQUIRE, sessionId, traceCookie);
+                                Log.e(TAG, errorMsg);
+                                retryVerification(activity, controller, apiKey, sessionId, errorMsg, callback);
+                            }
+                        });
+                    }
+                });
+            }
+        }, retryDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static void stopBatch() {
+        BatchRun batchRun = sBatchRun;
+        sBatchRun = null;
+        if (batchRun != null) {
+            batchRun.stop();
+            BlinkUpSession session = SessionRegistry.get(batchRun.getSessionId());
+            if (session != null) {
+                session.terminate();
+            }
+            SessionRegistry.remove(batchRun.getSessionId());
+        }
+    }
+
+    /**********************************************************
+     * first result of a provisioning session, gives javascript
+     * the session ID it can pass to abortBlinkUp
+     **********************************************************/
+    private static void sendSessionStarted(int sessionId) {
+        BlinkUpPluginResult startedResult = new BlinkUpPluginResult();
+        startedResult.setSessionId(sessionId);
+        startedResult.setState(BlinkUpPluginResult.STATE_STARTED);
+        startedResult.setStatusCode(STATUS_SESSION_STARTED);
+        startedResult.sendResultsToCallback();
+    }
+
+    /**********************************************************
+     * final result of a call that only reports its status
+     **********************************************************/
+    private static void sendCompleted(int sessionId, int statusCode) {
+        BlinkUpPluginResult completedResult = new BlinkUpPluginResult();
+        completedResult.setSessionId(sessionId);
+        completedResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
+        completedResult.setStatusCode(statusCode);
+        completedResult.sendResultsToCallback();
+    }
+
+    /**********************************************************
+     * arguments of a provisioning call that passed its checks,
+     * and the network to flash if it is headless
+     **********************************************************/
+    private static class ValidatedCall {
+        final BlinkUpArguments args;
+        final WifiCredentialStore.Credentials wifi;
+
+        ValidatedCall(BlinkUpArguments args, WifiCredentialStore.Credentials wifi) {
+            this.args = args;
+            this.wifi = wifi;
+        }
+    }
+
+    /**********************************************************
+     * the checks every provisioning call starts with: parses its
+     * arguments, arms the deadline, checks the api key and reads
+     * the network of a headless session
      *
-     * @deprecated use {@link #startBlinkUp()} instead.
+     * @return null if the call was rejected, its error is sent
+     **********************************************************/
+    private static ValidatedCall validateCall(Activity activity, String action, JSONArray data, int sessionId) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        session.transition(BlinkUpSession.State.IDLE, BlinkUpSession.State.VALIDATING);
+        boolean isBatch = START_BATCH_BLINKUP.equalsIgnoreCase(action);
+        boolean isInvoke = INVOKE_BLINKUP.equalsIgnoreCase(action);
+
+        final BlinkUpArguments args;
+        long parseStartNs = BlinkUpMetrics.startTimer();
+        try {
+            if (isBatch) {
+                args = BlinkUpArguments.fromStartBatchBlinkUp(data);
+            } else if (isInvoke) {
+                args = BlinkUpArguments.fromInvokeBlinkUp(data);
+            } else {
+                args = BlinkUpArguments.fromStartBlinkUp(data);
+            }
+        } catch (JSONException exc) {
+            BlinkUpMetrics.record(BlinkUpMetrics.Phase.PARSE, parseStartNs, BlinkUpMetrics.Outcome.ERROR);
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+            return null;
+        }
+        BlinkUpMetrics.record(BlinkUpMetrics.Phase.PARSE, parseStartNs, BlinkUpMetrics.Outcome.SUCCESS);
+
+        // a batch run's timeoutMs is each device's wait for device info
+        if (!isBatch) {
+            Deadline.start(session, args.timeoutMs);
+        }
+
+        // if api key not valid, send error message and quit
+        int apiKeyError = checkApiKey(args.apiKey);
+        if (apiKeyError != 0) {
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, apiKeyError);
+            return null;
+        }
+
+        boolean argsValid = isBatch ? args.tokenTtlMs > 0
+                : (isInvoke || args.hasDeveloperPlanId());
+        if (!argsValid || (args.isHeadless() && !args.wifiValid())) {
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+            return null;
+        }
+
+        // every device of a headless batch is flashed with the same network
+        WifiCredentialStore.Credentials wifi = null;
+        if (args.isHeadless()) {
+            wifi = resolveWifi(activity, args);
+            if (wifi == null) {
+                BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_WIFI_CREDENTIALS);
+                return null;
+            }
+        }
+        return new ValidatedCall(args, wifi);
+    }
+
+    /**********************************************************
+     * takes the flash slot and tells javascript the session started
+     *
+     * @return false if another session is flashing, the error is sent
+     **********************************************************/
+    private static boolean openSession(int sessionId, ValidatedCall call) {
+        if (!claimFlash(sessionId)) {
+            return false;
+        }
+
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        session.setApiKey(call.args.apiKey);
+        session.setHeadless(call.wifi != null);
+        session.transition(BlinkUpSession.State.VALIDATING, BlinkUpSession.State.FLASHING);
+        sendSessionStarted(sessionId);
+        ProgressReporter.report(sessionId, ProgressReporter.EVENT_KEY_VALIDATED);
+        return true;
+    }
+
+    /**
+     * Validates the api key and acquires a setup token ahead of the next
+     * startBlinkUp, taking the server round trip off the critical path.
      */
-    @Deprecated
-    private boolean invokeBlinkup(final Activity activity, final BlinkupController controller, JSONArray data) {
-        int timeoutMs;
+    private boolean prepareBlinkUp(Activity activity, BlinkUpBackend controller, JSONArray data, int sessionId) {
+        String apiKey;
         try {
-            mApiKey = data.getString(INVOKE_BLINKUP_ARG_API_KEY);
-            mDeveloperPlanId = data.getString(INVOKE_BLINKUP_ARG_DEVELOPER_PLAN_ID);
-            timeoutMs = data.getInt(INVOKE_BLINKUP_ARG_TIMEOUT_MS);
-            mGeneratePlanId = data.getBoolean(INVOKE_BLINKUP_ARG_GENERATE_PLAN_ID);
+            apiKey = data.getString(PREPARE_BLINKUP_ARG_API_KEY);
         } catch (JSONException exc) {
-            BlinkUpPluginResult.sendPluginErrorToCallback(ERROR_INVALID_ARGUMENTS);
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
             return false;
         }
 
-        // if api key not valid, send error message and quit
-        if (!apiKeyFormatValid()) {
-            BlinkUpPluginResult.sendPluginErrorToCallback(ERROR_INVALID_API_KEY);
+        int apiKeyError = checkApiKey(apiKey);
+        if (apiKeyError != 0) {
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, apiKeyError);
             return false;
         }
 
-        controller.intentBlinkupComplete = createBlinkUpCompleteIntent(activity, timeoutMs);
+        startPrefetch(activity, controller, apiKey);
 
-        // default is to run on WebCore thread, we have UI so need UI thread
-        activity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                presentBlinkUp(activity, controller);
+        sendCompleted(sessionId, STATUS_BLINKUP_PREPARED);
+        return true;
+    }
+
+    private boolean configureBlinkUp(JSONArray data, int sessionId) {
+        JSONObject options = data.optJSONObject(CONFIGURE_BLINKUP_ARG_OPTIONS);
+        if (options == null || !PluginConfig.update(options)) {
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+            return false;
+        }
+
+        sendCompleted(sessionId, STATUS_CONFIGURED);
+        return true;
+    }
+
+    private boolean getBlinkUpMetrics(JSONArray data, int sessionId) {
+        boolean reset = data.optBoolean(GET_BLINKUP_METRICS_ARG_RESET, false);
+
+        BlinkUpPluginResult metricsResult = new BlinkUpPluginResult();
+        metricsResult.setSessionId(sessionId);
+        metricsResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
+        metricsResult.setStatusCode(STATUS_METRICS);
+        metricsResult.setMetrics(BlinkUpMetrics.snapshotJson(reset));
+        metricsResult.sendResultsToCallback();
+        return true;
+    }
+
+    /**
+     * One page of the provisioning journal, by device or by time range.
+     */
+    private boolean queryBlinkUpJournal(JSONArray data, int sessionId) {
+        JSONObject query = data.optJSONObject(QUERY_BLINKUP_JOURNAL_ARG_QUERY);
+        if (query == null) {
+            query = new JSONObject();
+        }
+
+        String deviceId = query.optString(JOURNAL_QUERY_DEVICE_ID, null);
+        long fromMs = query.optLong(JOURNAL_QUERY_FROM_MS, 0);
+        long toMs = query.optLong(JOURNAL_QUERY_TO_MS, Long.MAX_VALUE);
+        int cursor = query.optInt(JOURNAL_QUERY_CURSOR, 0);
+        int pageSize = query.optInt(JOURNAL_QUERY_PAGE_SIZE, ProvisioningJournal.DEFAULT_PAGE_SIZE);
+        if (fromMs > toMs || cursor < 0 || pageSize <= 0 || pageSize > ProvisioningJournal.MAX_PAGE_SIZE) {
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+            return false;
+        }
+
+        ProvisioningJournal.query(sessionId, deviceId, fromMs, toMs, cursor, pageSize);
+        return true;
+    }
+
+    /**
+     * Streams the whole provisioning journal, chunkSize records per result.
+     */
+    private boolean exportBlinkUpJournal(JSONArray data, int sessionId) {
+        int chunkSize = data.optInt(EXPORT_BLINKUP_JOURNAL_ARG_CHUNK_SIZE, ProvisioningJournal.DEFAULT_EXPORT_CHUNK_SIZE);
+        if (chunkSize <= 0 || chunkSize > ProvisioningJournal.MAX_PAGE_SIZE) {
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+            return false;
+        }
+
+        ProvisioningJournal.export(sessionId, chunkSize);
+        return true;
+    }
+
+    /**
+     * Results of the device info polls resumed after the app was killed mid-session.
+     */
+    private boolean getRecoveredSessions(int sessionId) {
+        BlinkUpPluginResult recoveredResult = new BlinkUpPluginResult();
+        recoveredResult.setSessionId(sessionId);
+        recoveredResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
+        recoveredResult.setStatusCode(STATUS_RECOVERED_SESSIONS);
+        recoveredResult.setRecoveredSessions(PollRecovery.report());
+        recoveredResult.sendResultsToCallback();
+        return true;
+    }
+
+    /**
+     * Encrypts a network's password with a Keystore key and saves it under
+     * the site name, so headless sessions can flash it without the wifi UI.
+     */
+    private boolean saveWifiCredentials(Activity activity, JSONArray data, int sessionId) {
+        String site = data.optString(SAVE_WIFI_CREDENTIALS_ARG_SITE, "");
+        String ssid = data.optString(SAVE_WIFI_CREDENTIALS_ARG_SSID, "");
+        String password = data.optString(SAVE_WIFI_CREDENTIALS_ARG_PASSWORD, "");
+        if (TextUtils.isEmpty(site) || TextUtils.isEmpty(ssid)) {
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+            return false;
+        }
+
+        try {
+            WifiCredentialStore.save(activity, site, ssid, password);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Could not save wifi credentials of " + site, e);
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_WIFI_CREDENTIALS);
+            return false;
+        }
+
+        sendCompleted(sessionId, STATUS_WIFI_CREDENTIALS_SAVED);
+        return true;
+    }
+
+    /**
+     * Deletes a site's saved network, completes even if nothing was saved.
+     */
+    private boolean forgetWifiCredentials(Activity activity, JSONArray data, int sessionId) {
+        String site = data.optString(FORGET_WIFI_CREDENTIALS_ARG_SITE, "");
+        if (TextUtils.isEmpty(site)) {
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+            return false;
+        }
+
+        WifiCredentialStore.forget(activity, site);
+
+        sendCompleted(sessionId, STATUS_WIFI_CREDENTIALS_FORGOTTEN);
+        return true;
+    }
+
+    /**
+     * Buffered trace events in the Chrome trace event format, see configureBlinkUp's tracing option.
+     */
+    private boolean dumpBlinkUpTrace(JSONArray data, int sessionId) {
+        boolean clear = data.optBoolean(DUMP_BLINKUP_TRACE_ARG_CLEAR, false);
+
+        BlinkUpPluginResult traceResult = new BlinkUpPluginResult();
+        traceResult.setSessionId(sessionId);
+        traceResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
+        traceResult.setStatusCode(STATUS_TRACE);
+        traceResult.setTrace(Tracer.dumpJson(clear));
+        traceResult.sendResultsToCallback();
+        return true;
+    }
+
+    /**
+     * Keeps the callback open for every result matching the filter, whichever call it belongs to.
+     */
+    private boolean subscribeBlinkUp(JSONArray data, int sessionId) {
+        JSONObject filterJson = data.optJSONObject(SUBSCRIBE_BLINKUP_ARG_FILTER);
+        if (filterJson == null) {
+            filterJson = new JSONObject();
+        }
+
+        Set<String> events = null;
+        JSONArray eventsJson = filterJson.optJSONArray(SUBSCRIBE_FILTER_EVENTS);
+        if (eventsJson != null) {
+            events = new HashSet<String>();
+            for (int i = 0; i < eventsJson.length(); i++) {
+                String event = eventsJson.optString(i);
+                if (!EventBus.isEventType(event)) {
+                    BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+                    return false;
+                }
+                events.add(event);
             }
-        });
+        }
+
+        int filterSessionId = filterJson.optInt(SUBSCRIBE_FILTER_SESSION_ID, SessionRegistry.NO_SESSION);
+        int bufferSize = filterJson.optInt(SUBSCRIBE_FILTER_BUFFER_SIZE, EventBus.DEFAULT_BUFFER_SIZE);
+        if (filterSessionId < 0 || bufferSize <= 0 || bufferSize > EventBus.MAX_BUFFER_SIZE) {
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+            return false;
+        }
+
+        EventBus.subscribe(SessionRegistry.get(sessionId), new EventBus.Filter(events, filterSessionId, bufferSize));
+
+        BlinkUpPluginResult subscribedResult = new BlinkUpPluginResult();
+        subscribedResult.setSessionId(sessionId);
+        subscribedResult.setState(BlinkUpPluginResult.STATE_STARTED);
+        subscribedResult.setStatusCode(STATUS_SUBSCRIBED);
+        subscribedResult.sendResultsToCallback();
+        return true;
+    }
+
+    /**
+     * Ends a subscription, its callback gets a last completed result.
+     */
+    private boolean unsubscribeBlinkUp(JSONArray data, int sessionId) {
+        int subscriptionId = data.optInt(UNSUBSCRIBE_BLINKUP_ARG_SUBSCRIPTION_ID, SessionRegistry.NO_SESSION);
+        if (!EventBus.unsubscribe(subscriptionId)) {
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+            return false;
+        }
+
+        sendCompleted(sessionId, STATUS_UNSUBSCRIBED);
+        return true;
+    }
+
+    /**********************************************************
+     * @return false if another session is flashing or clearing,
+     * see SessionRegistry.claimFlash. A session whose SDK screens
+     * the operator closed without finishing is cancelled, it
+     * would hold the slot forever. The prefetch stops until the
+     * flash is done, a token arriving meanwhile would be flashed
+     * in place of the session's.
+     **********************************************************/
+    private static boolean claimFlash(int sessionId) {
+        if (!SessionRegistry.claimFlash(sessionId)) {
+            int abandonedSessionId = SessionRegistry.getAbandonedFlash();
+            if (abandonedSessionId != SessionRegistry.NO_SESSION) {
+                Log.w(TAG, "Session " + abandonedSessionId + " left the SDK without completing, cancelling it");
+                cancelSession(abandonedSessionId);
+            }
+            if (!SessionRegistry.claimFlash(sessionId)) {
+                BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_FLASH_IN_PROGRESS);
+                return false;
+            }
+        }
+        pausePrefetch();
         return true;
     }
 
-    private Intent createBlinkUpCompleteIntent(Activity activity, int timeoutMs) {
+    private static synchronized void pausePrefetch() {
+        if (sPrefetchPool != null) {
+            sPrefetchPool.pause();
+        }
+    }
+
+    /**********************************************************
+     * called by SessionRegistry once no session is flashing,
+     * the prefetch replaces the token if the SDK used it
+     **********************************************************/
+    static synchronized void onFlashReleased() {
+        if (sPrefetchPool != null) {
+            sPrefetchPool.resume();
+        }
+    }
+
+    private static synchronized void startPrefetch(Activity activity, BlinkUpBackend controller, String apiKey) {
+        stopPrefetch();
+
+        // tokens are issued for the controller's plan, so use the cached one if there is one
+        String cachedPlanId = PlanIdStore.get(activity, apiKey, null);
+        if (!TextUtils.isEmpty(cachedPlanId)) {
+            controller.setPlanID(cachedPlanId);
+        }
+
+        sPrefetchPool = new SetupTokenPool(activity, controller, apiKey, BlinkUpArguments.DEFAULT_TOKEN_TTL_MS);
+        if (SessionRegistry.isFlashing()) {
+            sPrefetchPool.pause();
+        }
+        sPrefetchPool.refill();
+    }
+
+    private static synchronized void stopPrefetch() {
+        if (sPrefetchPool != null) {
+            sPrefetchPool.close();
+            sPrefetchPool = null;
+        }
+    }
+
+    /**********************************************************
+     * @return the prefetched token if one is ready for this key and
+     * plan and the SDK will flash it, null if the session has to
+     * acquire its own
+     **********************************************************/
+    private static synchronized SetupTokenPool.SetupToken takePrefetchedToken(String apiKey, String planId) {
+        if (sPrefetchPool == null || !TextUtils.equals(sPrefetchPool.getApiKey(), apiKey)) {
+            return null;
+        }
+
+        SetupTokenPool.SetupToken setupToken = sPrefetchPool.take();
+        if (setupToken != null && !TextUtils.isEmpty(planId) && !TextUtils.equals(planId, setupToken.planId)) {
+            // issued for another plan, can't be used for this session
+            return null;
+        }
+        return setupToken;
+    }
+
+    private Intent createBlinkUpCompleteIntent(Activity activity, BlinkUpArguments args, int sessionId) {
         Intent blinkupCompleteIntent = new Intent(activity, BlinkUpCompleteActivity.class);
-        blinkupCompleteIntent.putExtra(Extras.EXTRA_DEVELOPER_PLAN_ID, mDeveloperPlanId);
-        blinkupCompleteIntent.putExtra(Extras.EXTRA_TIMEOUT_MS, timeoutMs);
+        blinkupCompleteIntent.putExtra(Extras.EXTRA_SESSION_ID, sessionId);
+        blinkupCompleteIntent.putExtra(Extras.EXTRA_DEVELOPER_PLAN_ID, args.developerPlanId);
+        blinkupCompleteIntent.putExtra(Extras.EXTRA_TIMEOUT_MS, args.timeoutMs);
         return blinkupCompleteIntent;
     }
 
-    private boolean abortBlinkup(BlinkupController controller) {
-        controller.cancelTokenStatusPolling();
-        BlinkUpPluginResult.sendPluginErrorToCallback(ERROR_CANCELLED_BY_USER);
+    private boolean abortBlinkup(BlinkUpBackend controller, JSONArray data, int sessionId) {
+        List<BlinkUpSession> targetSessions;
+        if (data.isNull(ABORT_BLINKUP_ARG_SESSION_ID)) {
+            targetSessions = SessionRegistry.getAbortableSessions();
+        } else {
+            BlinkUpSession targetSession = SessionRegistry.get(data.optInt(ABORT_BLINKUP_ARG_SESSION_ID));
+            if (targetSession == null || !SessionRegistry.isAbortable(targetSession)) {
+                BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_INVALID_ARGUMENTS);
+                return false;
+            }
+            targetSessions = Collections.singletonList(targetSession);
+        }
+
+        for (BlinkUpSession targetSession : targetSessions) {
+            cancelSession(targetSession.getId());
+        }
+
+        BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_CANCELLED_BY_USER);
         return true;
     }
 
-    private boolean clearBlinkupData(final Activity activity, final BlinkupController controller) {
-        PreferencesHelper.setPlanId(activity, null);
+    /**********************************************************
+     * ends a session with ERROR_CANCELLED_BY_USER, only its
+     * own polling and queued server calls are stopped
+     **********************************************************/
+    private static void cancelSession(int targetSessionId) {
+        TokenStatusPoller.cancel(targetSessionId);
+        PollRecovery.untrackSession(targetSessionId);
+        PendingLookups.forgetSession(targetSessionId);
+        RateLimiter.cancel(targetSessionId);
+        BlinkUpPluginResult.sendPluginErrorToCallback(targetSessionId, ERROR_CANCELLED_BY_USER);
+        BatchRun batchRun = sBatchRun;
+        if (batchRun != null && batchRun.getSessionId() == targetSessionId) {
+            stopBatch();
+        }
+    }
+
+    private boolean clearBlinkupData(final Activity activity, final BlinkUpBackend controller,
+                                     final int sessionId) {
+        if (!claimFlash(sessionId)) {
+            return false;
+        }
+        stopPrefetch();
+        PlanIdStore.clear(activity);
         sClearCache = true;
-        controller.intentClearComplete = new Intent(activity, ClearCompleteActivity.class);
+        Intent clearCompleteIntent = new Intent(activity, ClearCompleteActivity.class);
+        clearCompleteIntent.putExtra(Extras.EXTRA_SESSION_ID, sessionId);
+        controller.setClearCompleteIntent(clearCompleteIntent);
 
-        // default is to run on WebCore thread, clearing shows UI so needs UI thread
-        activity.runOnUiThread(new Runnable() {
+        // clearing shows UI so needs UI thread
+        runOnUiThread(activity, sessionId, new Runnable() {
             @Override
             public void run() {
+                SessionRegistry.onSdkUiShown(sessionId);
                 controller.clearDevice(activity);
             }
         });
@@ -197,57 +1214,245 @@ public class BlinkUpPlugin extends CordovaPlugin {
     }
 
     /**********************************************************
-     * shows BlinkUpPlugin activity and handles appropriate callbacks
+     * shows BlinkUpPlugin activity and handles appropriate callbacks.
+     * Only the SDK calls run on the UI thread.
      **********************************************************/
-    private void presentBlinkUp(Activity activity, BlinkupController controller) {
+    private void presentBlinkUp(Activity activity, BlinkUpBackend controller, BlinkUpArguments args,
+                                int sessionId, WifiCredentialStore.Credentials wifi) {
+        String planId = resolvePlanId(activity, args);
+        showBlinkUp(activity, controller, args, sessionId, planId, takePrefetchedToken(args.apiKey, planId), wifi);
+    }
 
-        // show toast if can't acquire token
-        final TokenAcquireCallback tokenAcquireCallback = new TokenAcquireCallback() {
+    /**********************************************************
+     * shows the SDK's wifi selection, or flashes straight away
+     * for a headless session, with a setup token acquired
+     * ahead of time if there is one
+     **********************************************************/
+    private static void showBlinkUp(final Activity activity, final BlinkUpBackend controller,
+                                    final BlinkUpArguments args, final int sessionId, String planId,
+                                    final SetupTokenPool.SetupToken setupToken,
+                                    final WifiCredentialStore.Credentials wifi) {
+        if (setupToken != null && (planId == null || planId.isEmpty())) {
+            planId = setupToken.planId;
+        }
+
+        if(planId != null && !planId.isEmpty()) {
+            controller.setPlanID(planId);
+        }
+
+        // a prefetched token skips the acquireSetupToken round trip
+        if (setupToken != null) {
+            controller.getBlinkUpCompleteIntent().putExtra(Extras.EXTRA_SETUP_TOKEN, setupToken.token);
+            ProgressReporter.report(sessionId, ProgressReporter.EVENT_TOKEN_ACQUIRED);
+        }
+
+        runOnUiThread(activity, sessionId, new Runnable() {
             @Override
-            public void onSuccess(String planId, String id) { }
+            public void run() {
+                // the token is acquired while the SDK shows its UI, both start here
+                final long startNs = BlinkUpMetrics.startTimer();
+                BlinkUpSession session = SessionRegistry.get(sessionId);
+                if (session != null) {
+                    session.setFlashStartNs(startNs);
+                }
 
+                if (setupToken == null) {
+                    final int traceCookie = Tracer.beginAsync(Tracer.TOKEN_ACQUIRE, sessionId);
+                    acquireSetupToken(activity, controller, args.apiKey, sessionId, new TokenAcquireCallback() {
+                        @Override
+                        public void onSuccess(String planId, String id) {
+                            BlinkUpMetrics.record(BlinkUpMetrics.Phase.TOKEN_ACQUIRE, startNs,
+                                    BlinkUpMetrics.Outcome.SUCCESS);
+                            Tracer.endAsync(Tracer.TOKEN_ACQUIRE, sessionId, traceCookie);
+                            ApiKeyCache.recordGood(args.apiKey);
+                            ProgressReporter.report(sessionId, ProgressReporter.EVENT_TOKEN_ACQUIRED);
+                        }
+
+                        @Override
+                        public void onError(String s) {
+                            BlinkUpMetrics.record(BlinkUpMetrics.Phase.TOKEN_ACQUIRE, startNs,
+                                    BlinkUpMetrics.Outcome.ERROR);
+                            Tracer.endAsync(Tracer.TOKEN_ACQUIRE, sessionId, traceCookie);
+                            Log.e(TAG, s);
+                        }
+                    });
+                }
+
+                ProgressReporter.report(sessionId, ProgressReporter.EVENT_FLASH_STARTED);
+
+                // send back error if connectivity issue
+                setupDevice(activity, controller, sessionId, args.apiKey, wifi, new ServerErrorHandler() {
+                    @Override
+                    public void onError(String s) {
+                        BlinkUpMetrics.record(BlinkUpMetrics.Phase.FLASH, startNs, BlinkUpMetrics.Outcome.ERROR);
+                        retryVerification(activity, controller, args.apiKey, sessionId, s,
+                                new TokenAcquireCallback() {
+                            @Override
+                            public void onSuccess(String planId, String id) {
+                                // nothing was flashed yet, show the wifi selection again with the new token
+                                showBlinkUp(activity, controller, args, sessionId, resolvePlanId(activity, args),
+                                        new SetupTokenPool.SetupToken(planId, id, SystemClock.elapsedRealtime()),
+                                        wifi);
+                            }
+
+                            @Override
+                            public void onError(String errorMsg) {
+                                if (ApiKeyCache.isInvalidKeyError(errorMsg)) {
+                                    ApiKeyCache.recordBad(args.apiKey);
+                                }
+                                BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, ERROR_VERIFY_API_KEY_FAIL);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**********************************************************
+     * headless sessions skip the SDK's wifi selection. The flash
+     * span ends with the error, or in CompletionHandler
+     **********************************************************/
+    private static void setupDevice(final Activity activity, final BlinkUpBackend controller, final int sessionId,
+                                    final String apiKey, final WifiCredentialStore.Credentials wifi,
+                                    ServerErrorHandler errorHandler) {
+        if (Tracer.isEnabled()) {
+            final int traceCookie = Tracer.beginAsync(Tracer.FLASH, sessionId);
+            BlinkUpSession session = SessionRegistry.get(sessionId);
+            if (session != null) {
+                session.setFlashTraceCookie(traceCookie);
+            }
+            final ServerErrorHandler tracedErrorHandler = errorHandler;
+            errorHandler = new ServerErrorHandler() {
+                @Override
+                public void onError(String s) {
+                    Tracer.endAsync(Tracer.FLASH, sessionId, traceCookie);
+                    tracedErrorHandler.onError(s);
+                }
+            };
+        }
+
+        // the SDK verifies the key with the server before showing anything
+        final ServerErrorHandler failedFlashHandler = errorHandler;
+        final ServerErrorHandler flashErrorHandler = new ServerErrorHandler() {
             @Override
             public void onError(String s) {
-                Log.e(TAG, s);
+                SessionRegistry.onSdkUiDone(sessionId);
+                Deadline.resume(sessionId);
+                failedFlashHandler.onError(s);
             }
         };
+        RateLimiter.submit(ApiKeyCache.hash(apiKey), sessionId, RateLimiter.uiThread(activity), new Runnable() {
+            @Override
+            public void run() {
+                BlinkUpSession session = SessionRegistry.get(sessionId);
+                if (session == null) {
+                    // aborted or out of time while waiting for the rate limit
+                    return;
+                }
+                session.setPhase(Deadline.Phase.FLASH);
 
-        // send back error if connectivity issue
-        ServerErrorHandler serverErrorHandler= new ServerErrorHandler() {
+                SessionRegistry.onSdkUiShown(sessionId);
+                if (wifi != null) {
+                    controller.setupDevice(activity, wifi.ssid, wifi.password, apiKey, flashErrorHandler);
+                } else {
+                    // the operator's time in the wifi selection isn't the session's, see Deadline
+                    Deadline.pause(sessionId);
+                    controller.selectWifiAndSetupDevice(activity, apiKey, flashErrorHandler);
+                }
+            }
+        });
+    }
+
+    /**********************************************************
+     * requests a setup token once the api key's rate limit lets
+     * it through. Called on the UI thread, the SDK call stays there.
+     **********************************************************/
+    private static void acquireSetupToken(final Activity activity, final BlinkUpBackend controller,
+                                          final String apiKey, int sessionId,
+                                          final TokenAcquireCallback callback) {
+        RateLimiter.submit(ApiKeyCache.hash(apiKey), sessionId, RateLimiter.uiThread(activity), new Runnable() {
             @Override
-            public void onError(String s) {
-                BlinkUpPluginResult.sendPluginErrorToCallback(ERROR_VERIFY_API_KEY_FAIL);
+            public void run() {
+                controller.acquireSetupToken(activity, apiKey, callback);
             }
-        };
+        });
+    }
 
-        // load cached planId if available. Otherwise, SDK generates new one automatically
-        // see electricimp.com/docs/manufacturing/planids/ for info about planIDs
-        String planId = null;
-        if (mIsInDevelopment || org.apache.cordova.BuildConfig.DEBUG) {
-            Log.w(TAG, "WARNING - Using Developer Plan. For production, set isInDevelopment flag to false.");
-            planId = mDeveloperPlanId;
-        } else if (!mGeneratePlanId){
-            planId = PreferencesHelper.getPlanId(activity);
+    /**********************************************************
+     * @return the inline network, or the one saved for the site,
+     * null if the site's credentials can't be read
+     **********************************************************/
+    private static WifiCredentialStore.Credentials resolveWifi(Activity activity, BlinkUpArguments args) {
+        if (TextUtils.isEmpty(args.wifiSite)) {
+            return new WifiCredentialStore.Credentials(args.wifiSsid, args.wifiPassword);
         }
 
-        if(planId != null && !planId.isEmpty()) {
-            controller.setPlanID(planId);
+        try {
+            return WifiCredentialStore.load(activity, args.wifiSite);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Could not decrypt wifi credentials of " + args.wifiSite, e);
+            return null;
         }
+    }
+
+    /**********************************************************
+     * the SDK calls that show UI must be made on the UI thread,
+     * everything else runs before the hop on the calling thread
+     **********************************************************/
+    private static void runOnUiThread(Activity activity, final int sessionId, final Runnable runnable) {
+        final long hopStartNs = BlinkUpMetrics.startTimer();
+        final int traceCookie = Tracer.beginAsync(Tracer.UI_HOP, sessionId);
+        final BlinkUpSession session = SessionRegistry.get(sessionId);
+        final Deadline.Phase previousPhase = (session != null) ? session.enterPhase(Deadline.Phase.UI_HOP) : null;
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                BlinkUpMetrics.record(BlinkUpMetrics.Phase.UI_HOP, hopStartNs, BlinkUpMetrics.Outcome.SUCCESS);
+                Tracer.endAsync(Tracer.UI_HOP, sessionId, traceCookie);
+                if (session != null) {
+                    if (SessionRegistry.get(sessionId) == null) {
+                        // the session ended while waiting, its deadline may have passed
+                        return;
+                    }
+                    session.leavePhase(Deadline.Phase.UI_HOP, previousPhase);
+                }
+                long workStartNs = BlinkUpMetrics.startTimer();
+                runnable.run();
+                BlinkUpMetrics.record(BlinkUpMetrics.Phase.UI_WORK, workStartNs, BlinkUpMetrics.Outcome.SUCCESS);
+            }
+        });
+    }
 
-        controller.acquireSetupToken(activity, mApiKey, tokenAcquireCallback);
-        controller.selectWifiAndSetupDevice(activity, mApiKey, serverErrorHandler);
+    /**********************************************************
+     * load cached planId if available. Otherwise, SDK generates new one automatically
+     * see electricimp.com/docs/manufacturing/planids/ for info about planIDs
+     **********************************************************/
+    private static String resolvePlanId(Activity activity, BlinkUpArguments args) {
+        String planId = null;
+        if (args.isInDevelopment || org.apache.cordova.BuildConfig.DEBUG) {
+            Log.w(TAG, "WARNING - Using Developer Plan. For production, set isInDevelopment flag to false.");
+            planId = args.developerPlanId;
+        } else if (!args.generatePlanId){
+            planId = PlanIdStore.get(activity, args.apiKey, args.developerPlanId);
+        }
+        return planId;
     }
 
     /**********************************************************
-     * @return true if mApiKey is 32 alpha-numeric characters
+     * @return error code if the key must be rejected, 0 if it can be used.
+     * Keys the server accepted recently skip local validation, keys it
+     * rejected recently fail right away instead of making a network trip.
      *********************************************************/
-    private boolean apiKeyFormatValid() {
-        if (TextUtils.isEmpty(mApiKey) || TextUtils.getTrimmedLength(mApiKey) != 32) {
-            return false;
+    private static int checkApiKey(String apiKey) {
+        switch (ApiKeyCache.lookup(apiKey)) {
+            case KNOWN_GOOD:
+                return 0;
+            case KNOWN_BAD:
+                return ERROR_VERIFY_API_KEY_FAIL;
+            default:
+                return BlinkUpArguments.apiKeyFormatValid(apiKey) ? 0 : ERROR_INVALID_API_KEY;
         }
-
-        String isAlphaNumericPattern = "^[a-zA-Z0-9]*$";
-        return mApiKey.matches(isAlphaNumericPattern);
     }
 
     static boolean getClearCache() {
@@ -257,8 +1462,4 @@ public class BlinkUpPlugin extends CordovaPlugin {
     static void setClearCache(boolean val) {
         sClearCache = val;
     }
-
-    static CallbackContext getCallbackContext() {
-        return sCallbackContext;
-    }
 }
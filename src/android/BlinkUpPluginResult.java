@@ -21,11 +21,15 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.macadamian.blinkup.util.DebugUtils;
+import com.macadamian.blinkup.util.JsonWriter;
 
 import org.apache.cordova.PluginResult;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
 // see README.md for format of JSON string to be sent to callback
 
 public class BlinkUpPluginResult {
@@ -33,16 +37,20 @@ public class BlinkUpPluginResult {
 
     // the JSON keys are from the Android BlinkUp SDK, documented at:
     // https://electricimp.com/docs/manufacturing/sdkdocs/android/callbacks/
-    private static final String SDK_IMPEE_ID_KEY = "impee_id";
+    static final String SDK_IMPEE_ID_KEY = "impee_id";
     static final String SDK_PLAN_ID_KEY = "plan_id";
-    private static final String SDK_AGENT_URL_KEY = "agent_url";
-    private static final String SDK_CLAIMED_AT_KEY = "claimed_at";
+    static final String SDK_AGENT_URL_KEY = "agent_url";
+    static final String SDK_CLAIMED_AT_KEY = "claimed_at";
 
     // possible states
     static final String STATE_STARTED = "started";
     static final String STATE_COMPLETED = "completed";
     static final String STATE_ERROR = "error";
 
+    // whether the setup token was acquired ahead of time or during the session
+    static final String TOKEN_SOURCE_WARM = "warm";
+    static final String TOKEN_SOURCE_COLD = "cold";
+
     // possible error types
     private static final String ERROR_TYPE_BLINK_UP_SDK_ERROR = "blinkup";
     private static final String ERROR_TYPE_PLUGIN_ERROR = "plugin";
@@ -51,8 +59,31 @@ public class BlinkUpPluginResult {
     // JSON keys for results
     //=====================================
     private enum ResultKeys {
+        SESSION_ID("sessionId"),
         STATE("state"),
         STATUS_CODE("statusCode"),
+        BATCH_SEQUENCE("batchSequence"),
+        TOKEN_SOURCE("tokenSource"),
+        TIME_SAVED_MS("timeSavedMs"),
+
+        PROGRESS("progress"),
+        PROGRESS_EVENT("event"),
+        PROGRESS_ELAPSED_MS("elapsedMs"),
+        PROGRESS_ATTEMPT("attempt"),
+
+        METRICS("metrics"),
+
+        JOURNAL_RECORDS("records"),
+        JOURNAL_NEXT_CURSOR("nextCursor"),
+        JOURNAL_RECORDED_AT("recordedAt"),
+
+        RECOVERED("recovered"),
+
+        TRACE("trace"),
+
+        DROPPED("dropped"),
+
+        STAGES("stages"),
 
         ERROR("error"),
         ERROR_TYPE("errorType"),
@@ -70,11 +101,34 @@ public class BlinkUpPluginResult {
         public String getKey() { return this.key; }
     }
 
+    // results are serialized on several threads, each reuses its own buffer
+    private static final ThreadLocal<JsonWriter> sWriter = new ThreadLocal<JsonWriter>() {
+        @Override
+        protected JsonWriter initialValue() {
+            return new JsonWriter(512);
+        }
+    };
+
+    // serialized error object of each plugin error code sent so far
+    private static final ConcurrentHashMap<Integer, String> sPluginErrorJson = new ConcurrentHashMap<Integer, String>();
+
     //====================================
     // BlinkUp Results
     //====================================
+    private int mSessionId = SessionRegistry.NO_SESSION;
     private String mState;
     private int mStatusCode;
+    private int mBatchSequence;
+    private String mTokenSource;
+    private long mTimeSavedMs = -1;
+    private List<ProgressReporter.ProgressEvent> mProgressEvents;
+    private String mMetricsJson;
+    private List<ProvisioningJournal.Record> mJournalRecords;
+    private int mJournalNextCursor = -1;
+    private String mRecoveredJson;
+    private String mTraceJson;
+    private int mDroppedEvents;
+    private String mStagesJson;
     private String mErrorType;
     private int mErrorCode;
     private String mErrorMsg;
@@ -88,6 +142,9 @@ public class BlinkUpPluginResult {
     /*************************************
      * Setters for our Results
      *************************************/
+    public void setSessionId(int sessionId) {
+        mSessionId = sessionId;
+    }
     public void setState(String state) {
         DebugUtils.checkAssert(TextUtils.equals(state, STATE_COMPLETED)
                 || TextUtils.equals(state, STATE_ERROR)
@@ -97,6 +154,37 @@ public class BlinkUpPluginResult {
     public void setStatusCode(int statusCode) {
         mStatusCode = statusCode;
     }
+    public void setBatchSequence(int batchSequence) {
+        mBatchSequence = batchSequence;
+    }
+    public void setTokenSource(String tokenSource) {
+        mTokenSource = tokenSource;
+    }
+    public void setTimeSavedMs(long timeSavedMs) {
+        mTimeSavedMs = timeSavedMs;
+    }
+    public void setProgressEvents(List<ProgressReporter.ProgressEvent> progressEvents) {
+        mProgressEvents = progressEvents;
+    }
+    public void setMetrics(String metricsJson) {
+        mMetricsJson = metricsJson;
+    }
+    public void setJournalRecords(List<ProvisioningJournal.Record> records, int nextCursor) {
+        mJournalRecords = records;
+        mJournalNextCursor = nextCursor;
+    }
+    public void setRecoveredSessions(String recoveredJson) {
+        mRecoveredJson = recoveredJson;
+    }
+    public void setTrace(String traceJson) {
+        mTraceJson = traceJson;
+    }
+    public void setDroppedEvents(int droppedEvents) {
+        mDroppedEvents = droppedEvents;
+    }
+    public void setStages(String stagesJson) {
+        mStagesJson = stagesJson;
+    }
     public void setPluginError(int errorCode) {
         mState = STATE_ERROR;
         mErrorType = ERROR_TYPE_PLUGIN_ERROR;
@@ -115,26 +203,59 @@ public class BlinkUpPluginResult {
             mAgentURL = deviceInfo.getString(SDK_AGENT_URL_KEY);
             mVerificationDate = deviceInfo.getString(SDK_CLAIMED_AT_KEY).replace("Z", "+0:00"); // match date format to iOS
             mHasDeviceInfo = true;
+            ProvisioningJournal.append(mDeviceId, mPlanId, mAgentURL, mVerificationDate);
         } catch (JSONException e) {
-            mState = STATE_ERROR;
+            // sent by the caller in place of the device info
             setPluginError(BlinkUpPlugin.ERROR_JSON_ERROR);
-            sendResultsToCallback();
         }
     }
 
-    static void sendPluginErrorToCallback(int error) {
+    static void sendPluginErrorToCallback(int sessionId, int error) {
+        sendPluginErrorToCallback(sessionId, error, 0);
+    }
+
+    static void sendPluginErrorToCallback(int sessionId, int error, int batchSequence) {
         BlinkUpPluginResult argErrorResult = new BlinkUpPluginResult();
+        argErrorResult.setSessionId(sessionId);
         argErrorResult.setState(STATE_ERROR);
         argErrorResult.setPluginError(error);
+        argErrorResult.setBatchSequence(batchSequence);
         argErrorResult.sendResultsToCallback();
     }
 
     /*************************************
      * Generates JSON of our plugin results
-     * and sends back to the callback
+     * and sends back to the session's callback
      *************************************/
     public void sendResultsToCallback() {
-        JSONObject resultJSON = new JSONObject();
+        Tracer.begin(Tracer.SEND_RESULT, mSessionId);
+        try {
+            deliver();
+        } finally {
+            Tracer.end(Tracer.SEND_RESULT, mSessionId);
+        }
+    }
+
+    private void deliver() {
+        BlinkUpSession session = SessionRegistry.get(mSessionId);
+        if (session == null) {
+            Log.w(TAG, "No callback for session " + mSessionId + ", dropping result");
+            BlinkUpMetrics.recordDroppedResult();
+            return;
+        }
+
+        // only the first final result of a session is delivered
+        boolean isFinal = !TextUtils.equals(mState, STATE_STARTED);
+        if (isFinal && !session.isLongLived() && !session.terminate()) {
+            Log.w(TAG, "Session " + mSessionId + " already has its final result, dropping result");
+            BlinkUpMetrics.recordDroppedResult();
+            return;
+        }
+
+        // javascript must see pending progress before the final result
+        if (mProgressEvents == null) {
+            ProgressReporter.flush(mSessionId);
+        }
 
         // set result status
         PluginResult.Status cordovaResultStatus;
@@ -145,67 +266,151 @@ public class BlinkUpPluginResult {
             cordovaResultStatus = PluginResult.Status.OK;
         }
 
-        try {
-            resultJSON.put(ResultKeys.STATE.getKey(), mState);
+        String json = toJson();
+        PluginResult pluginResult = new PluginResult(cordovaResultStatus, json);
+        pluginResult.setKeepCallback(true); // uses same BlinkUpPlugin object across calls, so need to keep callback
+        session.getCallbackContext().sendPluginResult(pluginResult);
+        EventBus.publish(mSessionId, getEventType(), cordovaResultStatus, json);
 
-            if (TextUtils.equals(mState, STATE_ERROR)) {
-                resultJSON.put(ResultKeys.ERROR.getKey(), generateErrorJson());
-            }
-            else {
-                resultJSON.put(ResultKeys.STATUS_CODE.getKey(), ("" + mStatusCode));
-                if (mHasDeviceInfo) {
-                    resultJSON.put(ResultKeys.DEVICE_INFO.getKey(), generateDeviceInfoJson());
-                }
-            }
-        } catch (JSONException e) {
-            // don't want endless loop calling ourselves so just log error (don't send to callback)
-            Log.e(TAG, "", e);
+        // session is done once it gets a final result
+        if (isFinal && !session.isLongLived()) {
+            SessionRegistry.remove(mSessionId);
         }
+    }
 
-        PluginResult pluginResult = new PluginResult(cordovaResultStatus, resultJSON.toString());
-        pluginResult.setKeepCallback(true); // uses same BlinkUpPlugin object across calls, so need to keep callback
-        BlinkUpPlugin.getCallbackContext().sendPluginResult(pluginResult);
+    private String getEventType() {
+        if (mProgressEvents != null) {
+            return EventBus.EVENT_PROGRESS;
+        }
+        return mState;
     }
 
     /*************************************
-     * Returns JSON containing error
+     * Serializes the result straight into the calling
+     * thread's reusable buffer, no intermediate JSONObjects
      *************************************/
-    private JSONObject generateErrorJson() {
-        JSONObject errorJson = new JSONObject();
+    String toJson() {
+        JsonWriter writer = sWriter.get().reset();
+        writer.beginObject();
+        writer.name(ResultKeys.SESSION_ID.getKey()).valueAsString(mSessionId);
+        writer.optField(ResultKeys.STATE.getKey(), mState);
+        if (mBatchSequence > 0) {
+            writer.name(ResultKeys.BATCH_SEQUENCE.getKey()).valueAsString(mBatchSequence);
+        }
 
-        try {
-            errorJson.put(ResultKeys.ERROR_TYPE.getKey(), mErrorType);
-            errorJson.put(ResultKeys.ERROR_CODE.getKey(), "" + mErrorCode);
+        if (TextUtils.equals(mState, STATE_ERROR)) {
+            writer.name(ResultKeys.ERROR.getKey());
+            writeErrorJson(writer);
+        }
+        else {
+            writer.name(ResultKeys.STATUS_CODE.getKey()).valueAsString(mStatusCode);
+            if (mHasDeviceInfo) {
+                writer.name(ResultKeys.DEVICE_INFO.getKey());
+                writeDeviceInfoJson(writer);
+            }
+            writer.optField(ResultKeys.TOKEN_SOURCE.getKey(), mTokenSource);
+            if (mTimeSavedMs >= 0) {
+                writer.name(ResultKeys.TIME_SAVED_MS.getKey()).valueAsString(mTimeSavedMs);
+            }
+            if (mProgressEvents != null) {
+                writer.name(ResultKeys.PROGRESS.getKey());
+                writeProgressJson(writer);
+            }
+            if (mMetricsJson != null) {
+                writer.name(ResultKeys.METRICS.getKey()).rawValue(mMetricsJson);
+            }
+            if (mJournalRecords != null) {
+                writer.name(ResultKeys.JOURNAL_RECORDS.getKey());
+                writeJournalRecordsJson(writer);
+                if (mJournalNextCursor >= 0) {
+                    writer.name(ResultKeys.JOURNAL_NEXT_CURSOR.getKey()).valueAsString(mJournalNextCursor);
+                }
+            }
+            if (mRecoveredJson != null) {
+                writer.name(ResultKeys.RECOVERED.getKey()).rawValue(mRecoveredJson);
+            }
+            if (mTraceJson != null) {
+                writer.name(ResultKeys.TRACE.getKey()).rawValue(mTraceJson);
+            }
+            if (mDroppedEvents > 0) {
+                writer.name(ResultKeys.DROPPED.getKey()).valueAsString(mDroppedEvents);
+            }
+            if (mStagesJson != null) {
+                writer.name(ResultKeys.STAGES.getKey()).rawValue(mStagesJson);
+            }
+        }
+        writer.endObject();
+        return writer.toString();
+    }
 
-            if (TextUtils.equals(mErrorType, ERROR_TYPE_BLINK_UP_SDK_ERROR)) {
-                errorJson.put(ResultKeys.ERROR_MSG.getKey(), mErrorMsg);
+    /*************************************
+     * Writes JSON containing error. Plugin errors
+     * only depend on their code, so they're serialized once
+     *************************************/
+    private void writeErrorJson(JsonWriter writer) {
+        if (TextUtils.equals(mErrorType, ERROR_TYPE_PLUGIN_ERROR)) {
+            String pluginErrorJson = sPluginErrorJson.get(mErrorCode);
+            if (pluginErrorJson == null) {
+                pluginErrorJson = new JsonWriter(64).beginObject()
+                        .optField(ResultKeys.ERROR_TYPE.getKey(), mErrorType)
+                        .name(ResultKeys.ERROR_CODE.getKey()).valueAsString(mErrorCode)
+                        .endObject().toString();
+                sPluginErrorJson.put(mErrorCode, pluginErrorJson);
             }
-        } catch (JSONException e) {
-            mState = STATE_ERROR;
-            setPluginError(BlinkUpPlugin.ERROR_JSON_ERROR);
-            sendResultsToCallback();
+            writer.rawValue(pluginErrorJson);
+            return;
         }
 
-        return errorJson;
+        writer.beginObject();
+        writer.optField(ResultKeys.ERROR_TYPE.getKey(), mErrorType);
+        writer.name(ResultKeys.ERROR_CODE.getKey()).valueAsString(mErrorCode);
+        writer.optField(ResultKeys.ERROR_MSG.getKey(), mErrorMsg);
+        writer.endObject();
     }
 
     /*************************************
-     * Returns deviceInfo in JSON
+     * Writes progress events in JSON
      *************************************/
-    private JSONObject generateDeviceInfoJson() {
-        JSONObject deviceInfoJson = new JSONObject();
+    private void writeProgressJson(JsonWriter writer) {
+        writer.beginArray();
+        for (ProgressReporter.ProgressEvent progressEvent : mProgressEvents) {
+            writer.beginObject();
+            writer.optField(ResultKeys.PROGRESS_EVENT.getKey(), progressEvent.name);
+            writer.name(ResultKeys.PROGRESS_ELAPSED_MS.getKey()).valueAsString(progressEvent.elapsedMs);
+            if (progressEvent.attempt > 0) {
+                writer.name(ResultKeys.PROGRESS_ATTEMPT.getKey()).valueAsString(progressEvent.attempt);
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+    }
 
-        try {
-            deviceInfoJson.put(ResultKeys.DEVICE_ID.getKey(), mDeviceId);
-            deviceInfoJson.put(ResultKeys.PLAN_ID.getKey(), mPlanId);
-            deviceInfoJson.put(ResultKeys.AGENT_URL.getKey(), mAgentURL);
-            deviceInfoJson.put(ResultKeys.VERIFICATION_DATE.getKey(), mVerificationDate);
-        } catch (JSONException e) {
-            mState = STATE_ERROR;
-            setPluginError(BlinkUpPlugin.ERROR_JSON_ERROR);
-            sendResultsToCallback();
+    /*************************************
+     * Writes journal records in JSON, same keys as deviceInfo
+     *************************************/
+    private void writeJournalRecordsJson(JsonWriter writer) {
+        writer.beginArray();
+        for (ProvisioningJournal.Record record : mJournalRecords) {
+            writer.beginObject();
+            writer.optField(ResultKeys.DEVICE_ID.getKey(), record.deviceId);
+            writer.optField(ResultKeys.PLAN_ID.getKey(), record.planId);
+            writer.optField(ResultKeys.AGENT_URL.getKey(), record.agentUrl);
+            writer.optField(ResultKeys.VERIFICATION_DATE.getKey(), record.verificationDate);
+            writer.name(ResultKeys.JOURNAL_RECORDED_AT.getKey()).valueAsString(record.recordedAtMs);
+            writer.endObject();
         }
+        writer.endArray();
+    }
 
-        return deviceInfoJson;
+    /*************************************
+     * Writes deviceInfo in JSON
+     *************************************/
+    private void writeDeviceInfoJson(JsonWriter writer) {
+        writer.beginObject();
+        writer.optField(ResultKeys.DEVICE_ID.getKey(), mDeviceId);
+        writer.optField(ResultKeys.PLAN_ID.getKey(), mPlanId);
+        writer.optField(ResultKeys.AGENT_URL.getKey(), mAgentURL);
+        writer.optField(ResultKeys.VERIFICATION_DATE.getKey(), mVerificationDate);
+        writer.endObject();
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*****************************************************
+ * One call from javascript and the callback its
+ * results are delivered to. Provisioning sessions
+ * (startBlinkUp, invokeBlinkUp, startBatchBlinkUp,
+ * reprovisionBlinkUp) can be targeted by abortBlinkUp,
+ * and so can a clearBlinkUpData call until it is done.
+ *****************************************************/
+class BlinkUpSession {
+    /*************************************
+     * Lifecycle of a session. Only provisioning sessions
+     * go through validating, flashing and polling, a batch
+     * run goes back to flashing after each device.
+     *************************************/
+    enum State {
+        IDLE("idle"),
+        VALIDATING("validating"),
+        FLASHING("flashing"),
+        POLLING("polling"),
+        TERMINAL("terminal");
+
+        final String key;
+        State(String key) { this.key = key; }
+    }
+
+    private final int mId;
+    private final CallbackContext mCallbackContext;
+    private final boolean mProvisioning;
+    private final long mStartTimeMs = SystemClock.elapsedRealtime();
+    private volatile boolean mLongLived = false;
+    private volatile String mApiKey;
+    private volatile long mFlashStartNs;
+    private volatile int mFlashTraceCookie = Tracer.NO_COOKIE;
+    private volatile boolean mHeadless = false;
+    private volatile ReprovisionRun mReprovisionRun;
+    private volatile long mDeadlineMs = 0;
+    private volatile long mDeadlinePausedAtMs = 0;
+    private ScheduledFuture<?> mDeadlineTimer;
+    private final AtomicReference<Deadline.Phase> mPhase = new AtomicReference<Deadline.Phase>(Deadline.Phase.VERIFY);
+    private RetryPolicy.Budget mRetryBudget;
+    private final AtomicReference<State> mState = new AtomicReference<State>(State.IDLE);
+
+    BlinkUpSession(int id, CallbackContext callbackContext, boolean provisioning) {
+        mId = id;
+        mCallbackContext = callbackContext;
+        mProvisioning = provisioning;
+    }
+
+    int getId() { return mId; }
+    CallbackContext getCallbackContext() { return mCallbackContext; }
+    boolean isProvisioning() { return mProvisioning; }
+    long getStartTimeMs() { return mStartTimeMs; }
+
+    State getState() { return mState.get(); }
+
+    /*************************************
+     * @return false if the session wasn't in the from
+     * state, in which case nothing changes and the
+     * caller must drop what it was about to do
+     *************************************/
+    boolean transition(State from, State to) {
+        if (mState.compareAndSet(from, to)) {
+            BlinkUpMetrics.recordTransition(from, to);
+            return true;
+        }
+        BlinkUpMetrics.recordRejectedTransition();
+        return false;
+    }
+
+    /*************************************
+     * @return true for exactly one caller, the one
+     * whose final result the session delivers
+     *************************************/
+    boolean terminate() {
+        State state;
+        do {
+            state = mState.get();
+            if (state == State.TERMINAL) {
+                BlinkUpMetrics.recordRejectedTransition();
+                return false;
+            }
+        } while (!mState.compareAndSet(state, State.TERMINAL));
+        BlinkUpMetrics.recordTransition(state, State.TERMINAL);
+        return true;
+    }
+
+    /*************************************
+     * long lived sessions (batch runs) stay registered
+     * after a final result, until explicitly removed
+     *************************************/
+    boolean isLongLived() { return mLongLived; }
+    void setLongLived(boolean longLived) { mLongLived = longLived; }
+
+    String getApiKey() { return mApiKey; }
+    void setApiKey(String apiKey) { mApiKey = apiKey; }
+
+    /*************************************
+     * when selectWifiAndSetupDevice was called, 0 if
+     * the session isn't flashing, see BlinkUpMetrics
+     *************************************/
+    long getFlashStartNs() { return mFlashStartNs; }
+    void setFlashStartNs(long flashStartNs) { mFlashStartNs = flashStartNs; }
+    int getFlashTraceCookie() { return mFlashTraceCookie; }
+    void setFlashTraceCookie(int flashTraceCookie) { mFlashTraceCookie = flashTraceCookie; }
+
+    /*************************************
+     * flashes skip the SDK's wifi selection
+     *************************************/
+    boolean isHeadless() { return mHeadless; }
+    void setHeadless(boolean headless) { mHeadless = headless; }
+
+    /*************************************
+     * set for reprovisionBlinkUp sessions, whose clear
+     * is followed by the flash instead of a final result
+     *************************************/
+    ReprovisionRun getReprovisionRun() { return mReprovisionRun; }
+    void setReprovisionRun(ReprovisionRun reprovisionRun) { mReprovisionRun = reprovisionRun; }
+
+    /*************************************
+     * elapsedRealtime the session must be done by,
+     * 0 if it has no deadline, see Deadline
+     *************************************/
+    long getDeadlineMs() { return mDeadlineMs; }
+    void setDeadlineMs(long deadlineMs) { mDeadlineMs = deadlineMs; }
+
+    /*************************************
+     * elapsedRealtime the deadline was paused at,
+     * 0 while it runs, see Deadline.pause
+     *************************************/
+    long getDeadlinePausedAtMs() { return mDeadlinePausedAtMs; }
+    void setDeadlinePausedAtMs(long pausedAtMs) { mDeadlinePausedAtMs = pausedAtMs; }
+
+    // guarded by the session, see Deadline
+    ScheduledFuture<?> getDeadlineTimer() { return mDeadlineTimer; }
+    void setDeadlineTimer(ScheduledFuture<?> deadlineTimer) { mDeadlineTimer = deadlineTimer; }
+
+    /*************************************
+     * phase the session is in, names the error
+     * it fails with if the deadline passes
+     *************************************/
+    Deadline.Phase getPhase() { return mPhase.get(); }
+    void setPhase(Deadline.Phase phase) { mPhase.set(phase); }
+
+    /*************************************
+     * @return the phase replaced, to pass to leavePhase
+     *************************************/
+    Deadline.Phase enterPhase(Deadline.Phase phase) { return mPhase.getAndSet(phase); }
+
+    /*************************************
+     * goes back to the previous phase, unless the
+     * session moved on to another one meanwhile
+     *************************************/
+    void leavePhase(Deadline.Phase phase, Deadline.Phase previous) { mPhase.compareAndSet(phase, previous); }
+
+    /*************************************
+     * retries left, under the policy configured when
+     * the first one was needed. Reset for each device
+     * of a batch.
+     *************************************/
+    synchronized RetryPolicy.Budget getRetryBudget() {
+        if (mRetryBudget == null) {
+            mRetryBudget = new RetryPolicy.Budget(PluginConfig.getRetryPolicy());
+        }
+        return mRetryBudget;
+    }
+
+    synchronized void resetRetryBudget() { mRetryBudget = null; }
+}
@@ -23,30 +23,19 @@ import android.os.Bundle;
 /*****************************************************
  * When the clearing BlinkUpPlugin process completes, it
  * executes the BlinkUpClearIntent set in BlinkUpPlugin.java,
- * starting this activity, which tells the callback
- * that clearing is complete, then dismisses
+ * starting this activity, which hands the intent to
+ * CompletionHandler, then dismisses. Like
+ * BlinkUpCompleteActivity, it never draws a window.
  ******************************************************/
 public class ClearCompleteActivity extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-
-        // send callback that we've cleared device
-        BlinkUpPluginResult clearResult = new BlinkUpPluginResult();
-        clearResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
-
-        // set the status code depending if we just cleared the cache
-        if (BlinkUpPlugin.getClearCache()) {
-            clearResult.setStatusCode(BlinkUpPlugin.STATUS_CLEAR_WIFI_AND_CACHE_COMPLETE);
-            BlinkUpPlugin.setClearCache(false);
-        }
-        else {
-            clearResult.setStatusCode(BlinkUpPlugin.STATUS_CLEAR_WIFI_COMPLETE);
-        }
-
-        clearResult.sendResultsToCallback();
-
+        int sessionId = getIntent().getIntExtra(Extras.EXTRA_SESSION_ID, SessionRegistry.NO_SESSION);
+        Tracer.begin(Tracer.CLEAR_COMPLETE_ACTIVITY, sessionId);
+        CompletionHandler.onClearComplete(getIntent(), BlinkUpMetrics.Phase.COMPLETION_ACTIVITY);
         finish();
+        Tracer.end(Tracer.CLEAR_COMPLETE_ACTIVITY, sessionId);
     }
 }
@@ -0,0 +1,344 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+package com.macadamian.blinkup;
+
+import android.content.Context;
+import android.content.Intent;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.electricimp.blinkup.TokenStatusCallback;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+
+/*****************************************************
+ * Delivers the end of a flash or a clear to its session.
+ * The SDK reports it by starting the intents set on the
+ * controller, so with the SDK every completion still goes
+ * through BlinkUpCompleteActivity or ClearCompleteActivity,
+ * which only forward here. Only the simulated backend in
+ * tools/loadtest calls this directly, skipping the activity start. Each path records
+ * its own metric phase, so the two can be compared.
+ *****************************************************/
+class CompletionHandler {
+    private static final String TAG = "CompletionHandler";
+
+    /*************************************
+     * requests the setup info from the Electric Imp
+     * server and tells the session it's on its way.
+     * completionPhase is the metric of the path that
+     * delivered the completion.
+     *************************************/
+    static void onBlinkUpComplete(Context context, Intent intent, BlinkUpMetrics.Phase completionPhase) {
+        long completedAtNs = intent.getLongExtra(Extras.EXTRA_COMPLETED_AT_NS, 0);
+        if (completedAtNs == 0) {
+            completedAtNs = BlinkUpMetrics.startTimer();
+        }
+
+        int sessionId = intent.getIntExtra(Extras.EXTRA_SESSION_ID, SessionRegistry.NO_SESSION);
+        SessionRegistry.onSdkUiDone(sessionId);
+        String developerPlanId = intent.getStringExtra(Extras.EXTRA_DEVELOPER_PLAN_ID);
+        int timeoutMs = intent.getIntExtra(Extras.EXTRA_TIMEOUT_MS, 30000);
+        int batchSequence = intent.getIntExtra(Extras.EXTRA_BATCH_SEQUENCE, 0);
+        String handedOverToken = intent.getStringExtra(Extras.EXTRA_SETUP_TOKEN);
+
+        // the SDK flashed the token it acquired last, which is the one the plugin
+        // handed over only if nothing was acquired after it. That's the one polled
+        String setupToken = PluginConfig.getBackend().takeFlashedToken();
+        String tokenSource = (setupToken != null && setupToken.equals(handedOverToken))
+                ? BlinkUpPluginResult.TOKEN_SOURCE_WARM : BlinkUpPluginResult.TOKEN_SOURCE_COLD;
+
+        // aborted or reset while the SDK was flashing, nobody is waiting for the device info
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null || !session.transition(BlinkUpSession.State.FLASHING, BlinkUpSession.State.POLLING)) {
+            Log.w(TAG, "Session " + sessionId + " no longer flashing, not polling");
+            BlinkUpMetrics.recordDroppedResult();
+            return;
+        }
+
+        // the completion intent is no longer needed, the next session may flash while this one polls
+        if (!session.isLongLived()) {
+            SessionRegistry.releaseFlash(sessionId);
+        }
+        BlinkUpPlugin.onFlashCompleted(sessionId);
+
+        // a flash that used up the budget leaves no time to find the device
+        Deadline.resume(sessionId);
+        session.setPhase(Deadline.Phase.DEVICE_INFO);
+        if (Deadline.cannotMeet(sessionId, Deadline.MIN_POLL_BUDGET_MS)) {
+            Deadline.fail(sessionId, Deadline.Phase.FLASH);
+            return;
+        }
+
+        String apiKey = session.getApiKey();
+        long timeSavedMs = -1;
+        if (session.getFlashStartNs() != 0) {
+            BlinkUpMetrics.record(BlinkUpMetrics.Phase.FLASH, session.getFlashStartNs(),
+                    BlinkUpMetrics.Outcome.SUCCESS);
+            long flashMs = TimeUnit.NANOSECONDS.toMillis(BlinkUpMetrics.startTimer() - session.getFlashStartNs());
+            timeSavedMs = FlashBaseline.record(session.isHeadless(), flashMs);
+            session.setFlashStartNs(0);
+        }
+        Tracer.endAsync(Tracer.FLASH, sessionId, session.getFlashTraceCookie());
+        session.setFlashTraceCookie(Tracer.NO_COOKIE);
+        ReprovisionRun reprovisionRun = session.getReprovisionRun();
+        if (reprovisionRun != null) {
+            reprovisionRun.end(ReprovisionRun.Stage.FLASH);
+            reprovisionRun.begin(ReprovisionRun.Stage.DEVICE_INFO);
+        }
+        ProgressReporter.report(sessionId, ProgressReporter.EVENT_FLASH_FINISHED);
+        getDeviceInfo(context.getApplicationContext(), sessionId, batchSequence, tokenSource,
+                apiKey, developerPlanId, setupToken, timeoutMs, timeSavedMs);
+
+        BlinkUpPluginResult pluginResult = new BlinkUpPluginResult();
+        pluginResult.setSessionId(sessionId);
+        pluginResult.setState(BlinkUpPluginResult.STATE_STARTED);
+        pluginResult.setStatusCode(BlinkUpPlugin.STATUS_GATHERING_INFO);
+        pluginResult.setBatchSequence(batchSequence);
+        pluginResult.sendResultsToCallback();
+        BlinkUpMetrics.record(completionPhase, completedAtNs, BlinkUpMetrics.Outcome.SUCCESS);
+    }
+
+    /*************************************
+     * tells the session that clearing is complete
+     *************************************/
+    static void onClearComplete(Intent intent, BlinkUpMetrics.Phase completionPhase) {
+        long completedAtNs = intent.getLongExtra(Extras.EXTRA_COMPLETED_AT_NS, 0);
+        if (completedAtNs == 0) {
+            completedAtNs = BlinkUpMetrics.startTimer();
+        }
+
+        // a reprovisioning session goes on to the flash instead of completing
+        int sessionId = intent.getIntExtra(Extras.EXTRA_SESSION_ID, SessionRegistry.NO_SESSION);
+        SessionRegistry.onSdkUiDone(sessionId);
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session != null && session.getReprovisionRun() != null) {
+            BlinkUpPlugin.onReprovisionCleared(session.getReprovisionRun());
+            BlinkUpMetrics.record(completionPhase, completedAtNs, BlinkUpMetrics.Outcome.SUCCESS);
+            return;
+        }
+
+        // send callback that we've cleared device
+        BlinkUpPluginResult clearResult = new BlinkUpPluginResult();
+        clearResult.setSessionId(sessionId);
+        clearResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
+
+        // set the status code depending if we just cleared the cache
+        if (BlinkUpPlugin.getClearCache()) {
+            clearResult.setStatusCode(BlinkUpPlugin.STATUS_CLEAR_WIFI_AND_CACHE_COMPLETE);
+            BlinkUpPlugin.setClearCache(false);
+        }
+        else {
+            clearResult.setStatusCode(BlinkUpPlugin.STATUS_CLEAR_WIFI_COMPLETE);
+        }
+
+        clearResult.sendResultsToCallback();
+        BlinkUpMetrics.record(completionPhase, completedAtNs, BlinkUpMetrics.Outcome.SUCCESS);
+    }
+
+    private static void getDeviceInfo(final Context context, final int sessionId, final int batchSequence,
+                                      final String tokenSource, final String apiKey,
+                                      final String developerPlanId, final String setupToken,
+                                      final int timeoutMs, final long timeSavedMs) {
+        final long pollStartNs = BlinkUpMetrics.startTimer();
+        final TokenStatusCallback tokenStatusCallback= new TokenStatusCallback() {
+
+            //---------------------------------
+            // give connection info to Cordova
+            //---------------------------------
+            @Override public void onSuccess(JSONObject json) {
+                BlinkUpMetrics.record(BlinkUpMetrics.Phase.POLL, pollStartNs, BlinkUpMetrics.Outcome.SUCCESS);
+                PollRecovery.untrack(setupToken);
+                if (!finishPoll(sessionId)) {
+                    return;
+                }
+                ProgressReporter.report(sessionId, ProgressReporter.EVENT_DEVICE_CLAIMED);
+                BlinkUpPluginResult successResult = new BlinkUpPluginResult();
+                successResult.setSessionId(sessionId);
+                successResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
+                successResult.setStatusCode(BlinkUpPlugin.STATUS_DEVICE_CONNECTED);
+                successResult.setDeviceInfoFromJson(json);
+                successResult.setBatchSequence(batchSequence);
+                successResult.setTokenSource(tokenSource);
+                successResult.setTimeSavedMs(timeSavedMs);
+                successResult.setStages(reprovisionStages(sessionId));
+                successResult.sendResultsToCallback();
+
+                // cache planID if not development ID (see electricimp.com/docs/manufacturing/planids/),
+                // a missing one was already reported in place of the device info
+                String planId = json.optString(BlinkUpPluginResult.SDK_PLAN_ID_KEY, null);
+                if (planId != null && !TextUtils.equals(planId, developerPlanId)) {
+                    PlanIdStore.put(context, apiKey, developerPlanId, planId);
+                }
+                BlinkUpPlugin.onBatchDeviceFinished(sessionId);
+            }
+
+            //---------------------------------
+            // give error msg to Cordova
+            //---------------------------------
+            @Override public void onError(String errorMsg) {
+                BlinkUpMetrics.record(BlinkUpMetrics.Phase.POLL, pollStartNs, BlinkUpMetrics.Outcome.ERROR);
+                PollRecovery.untrack(setupToken);
+                if (holdUntilOnline(sessionId, batchSequence, apiKey, developerPlanId, setupToken, timeoutMs)) {
+                    return;
+                }
+                if (!finishPoll(sessionId)) {
+                    return;
+                }
+                // can't use "sendPluginErrorToCallback" since this is an SDK error
+                BlinkUpPluginResult errorResult = new BlinkUpPluginResult();
+                errorResult.setSessionId(sessionId);
+                errorResult.setState(BlinkUpPluginResult.STATE_ERROR);
+                errorResult.setBlinkUpError(errorMsg);
+                errorResult.setBatchSequence(batchSequence);
+                errorResult.sendResultsToCallback();
+                BlinkUpPlugin.onBatchDeviceFinished(sessionId);
+            }
+
+            //---------------------------------
+            // give timeout message to Cordova
+            //---------------------------------
+            @Override public void onTimeout() {
+                BlinkUpMetrics.record(BlinkUpMetrics.Phase.POLL, pollStartNs, BlinkUpMetrics.Outcome.TIMEOUT);
+
+                // offline, polling again now would only time out again
+                if (holdUntilOnline(sessionId, batchSequence, apiKey, developerPlanId, setupToken, timeoutMs)) {
+                    PollRecovery.untrack(setupToken);
+                    return;
+                }
+
+                // the device was flashed, polling again is all it takes
+                long retryDelayMs = RetryPolicy.nextRetryDelayMs(sessionId, RetryPolicy.ErrorClass.POLL_TIMEOUT);
+                if (retryDelayMs >= 0
+                        && Deadline.cannotMeet(sessionId, retryDelayMs + Deadline.MIN_POLL_BUDGET_MS)) {
+                    // hopeless, the retry would end past the deadline
+                    PollRecovery.untrack(setupToken);
+                    Deadline.fail(sessionId, Deadline.Phase.DEVICE_INFO);
+                    return;
+                }
+                if (retryDelayMs >= 0) {
+                    TokenStatusPoller.getScheduler().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            BlinkUpSession session = SessionRegistry.get(sessionId);
+                            if (session == null || session.getState() != BlinkUpSession.State.POLLING) {
+                                // aborted meanwhile
+                                PollRecovery.untrack(setupToken);
+                                return;
+                            }
+                            getDeviceInfo(context, sessionId, batchSequence, tokenSource, apiKey,
+                                    developerPlanId, setupToken, timeoutMs, timeSavedMs);
+                        }
+                    }, retryDelayMs, TimeUnit.MILLISECONDS);
+                    return;
+                }
+
+                PollRecovery.untrack(setupToken);
+                if (!finishPoll(sessionId)) {
+                    return;
+                }
+                BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, BlinkUpPlugin.ERROR_PROCESS_TIMED_OUT, batchSequence);
+                BlinkUpPlugin.onBatchDeviceFinished(sessionId);
+            }
+        };
+
+        // request the device info from the server, resumed on next launch if the app is killed meanwhile
+        PollRecovery.track(sessionId, setupToken, apiKey, developerPlanId, timeoutMs, batchSequence);
+        TokenStatusPoller.start(sessionId, setupToken, ApiKeyCache.hash(apiKey),
+                Deadline.budgetMs(sessionId, timeoutMs), tokenStatusCallback);
+    }
+
+    /*************************************
+     * looks the device info up again for a session whose
+     * lookup was put on hold while offline
+     *************************************/
+    static void resumeDeviceInfo(Context context, int sessionId, int batchSequence, String developerPlanId,
+                                 String setupToken, int timeoutMs) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null || session.getState() != BlinkUpSession.State.POLLING) {
+            // aborted meanwhile
+            BlinkUpMetrics.recordDroppedResult();
+            return;
+        }
+        Deadline.resume(sessionId);
+        getDeviceInfo(context, sessionId, batchSequence, null, session.getApiKey(), developerPlanId,
+                setupToken, timeoutMs, -1);
+    }
+
+    /*************************************
+     * without a network the poll's outcome says nothing about
+     * the device, so the session keeps waiting for its device
+     * info until the network is back, see PendingLookups
+     *
+     * @return true if the lookup was put on hold
+     *************************************/
+    private static boolean holdUntilOnline(int sessionId, int batchSequence, String apiKey,
+                                           String developerPlanId, String setupToken, int timeoutMs) {
+        if (setupToken == null || !PendingLookups.isOffline()) {
+            return false;
+        }
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null || session.getState() != BlinkUpSession.State.POLLING) {
+            return false;
+        }
+
+        // the wait for a network doesn't count towards the deadline
+        Deadline.pause(sessionId);
+        PendingLookups.hold(sessionId, setupToken, ApiKeyCache.hash(apiKey), developerPlanId, timeoutMs,
+                batchSequence);
+        BlinkUpPluginResult waitingResult = new BlinkUpPluginResult();
+        waitingResult.setSessionId(sessionId);
+        waitingResult.setState(BlinkUpPluginResult.STATE_STARTED);
+        waitingResult.setStatusCode(BlinkUpPlugin.STATUS_WAITING_FOR_NETWORK);
+        waitingResult.setBatchSequence(batchSequence);
+        waitingResult.sendResultsToCallback();
+        return true;
+    }
+
+    /*************************************
+     * @return the stage timings of a reprovisioning
+     * session, null for the other sessions
+     *************************************/
+    private static String reprovisionStages(int sessionId) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        ReprovisionRun reprovisionRun = (session != null) ? session.getReprovisionRun() : null;
+        if (reprovisionRun == null) {
+            return null;
+        }
+        reprovisionRun.end(ReprovisionRun.Stage.DEVICE_INFO);
+        return reprovisionRun.stagesJson();
+    }
+
+    /*************************************
+     * @return false if the session stopped waiting for
+     * the device info meanwhile, the result is dropped
+     *************************************/
+    private static boolean finishPoll(int sessionId) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null) {
+            BlinkUpMetrics.recordDroppedResult();
+            return false;
+        }
+
+        // a batch run goes on with its next device, other sessions end with this result
+        if (session.isLongLived()) {
+            return session.transition(BlinkUpSession.State.POLLING, BlinkUpSession.State.FLASHING);
+        }
+        return session.getState() == BlinkUpSession.State.POLLING;
+    }
+}
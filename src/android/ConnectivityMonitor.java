@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+package com.macadamian.blinkup;
+
+/*****************************************************
+ * Whether the Electric Imp servers can be reached.
+ * DeviceConnectivityMonitor asks Android, tools/loadtest
+ * swaps in a simulated network for testing. PendingLookups
+ * holds the one in use.
+ *****************************************************/
+interface ConnectivityMonitor {
+    /*************************************
+     * told each time a network comes up, on any thread.
+     * isConnected() is already true when it is called.
+     *************************************/
+    interface Listener {
+        void onConnected();
+    }
+
+    boolean isConnected();
+
+    void start(Listener listener);
+
+    void stop();
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*****************************************************
+ * End-to-end deadline of a provisioning session: the
+ * timeoutMs javascript passed, counted from the call.
+ * Off unless configured, see PluginConfig. Every phase
+ * runs with whatever budget is left. A single timer
+ * per session fails it at the deadline with the error
+ * code of the phase it is in, and a phase that can't
+ * finish in the budget left fails right away instead
+ * of waiting for the timer. The budget doesn't run
+ * while the operator is in the SDK's wifi selection
+ * or while the device info lookup waits for a network.
+ *****************************************************/
+class Deadline {
+    private static final String TAG = "Deadline";
+
+    /*************************************
+     * Phases of a session, each failing with its own
+     * error code. Verify covers everything up to the
+     * SDK call, including retried key verifications.
+     *************************************/
+    enum Phase {
+        VERIFY("verify", BlinkUpPlugin.ERROR_DEADLINE_VERIFY),
+        UI_HOP("uiHop", BlinkUpPlugin.ERROR_DEADLINE_UI_HOP),
+        TOKEN_ACQUIRE("tokenAcquire", BlinkUpPlugin.ERROR_DEADLINE_TOKEN_ACQUIRE),
+        FLASH("flash", BlinkUpPlugin.ERROR_DEADLINE_FLASH),
+        DEVICE_INFO("deviceInfo", BlinkUpPlugin.ERROR_DEADLINE_DEVICE_INFO);
+
+        final String key;
+        final int error;
+        Phase(String key, int error) {
+            this.key = key;
+            this.error = error;
+        }
+    }
+
+    // a poll shorter than one attempt window can't find the device
+    static final long MIN_POLL_BUDGET_MS = TokenStatusPoller.ATTEMPT_WINDOW_MS;
+
+    /*************************************
+     * arms the session's deadline, timeoutMs after the
+     * call was made. Sessions without a positive
+     * timeout have no deadline.
+     *************************************/
+    static void start(BlinkUpSession session, int timeoutMs) {
+        if (timeoutMs <= 0 || !PluginConfig.isSessionDeadlineEnabled()) {
+            return;
+        }
+
+        synchronized (session) {
+            session.setDeadlineMs(session.getStartTimeMs() + timeoutMs);
+            armLocked(session);
+        }
+    }
+
+    /*************************************
+     * stops the session's budget from running, until
+     * resume(). The time in between doesn't count.
+     *************************************/
+    static void pause(int sessionId) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null || session.getDeadlineMs() == 0) {
+            return;
+        }
+
+        synchronized (session) {
+            if (session.getDeadlinePausedAtMs() != 0) {
+                return;
+            }
+            session.setDeadlinePausedAtMs(SystemClock.elapsedRealtime());
+            ScheduledFuture<?> timer = session.getDeadlineTimer();
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+    }
+
+    static void resume(int sessionId) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null) {
+            return;
+        }
+
+        synchronized (session) {
+            long pausedAtMs = session.getDeadlinePausedAtMs();
+            if (pausedAtMs == 0) {
+                return;
+            }
+            session.setDeadlineMs(session.getDeadlineMs() + SystemClock.elapsedRealtime() - pausedAtMs);
+            session.setDeadlinePausedAtMs(0);
+            armLocked(session);
+        }
+    }
+
+    /*************************************
+     * @return budget left, Long.MAX_VALUE if the
+     * session has no deadline
+     *************************************/
+    static long remainingMs(BlinkUpSession session) {
+        long deadlineMs = session.getDeadlineMs();
+        if (deadlineMs == 0) {
+            return Long.MAX_VALUE;
+        }
+        long pausedAtMs = session.getDeadlinePausedAtMs();
+        long nowMs = (pausedAtMs != 0) ? pausedAtMs : SystemClock.elapsedRealtime();
+        return Math.max(0, deadlineMs - nowMs);
+    }
+
+    /*************************************
+     * @return how long a step of the session may take,
+     * its own limit capped by the budget left
+     *************************************/
+    static long budgetMs(int sessionId, long limitMs) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        return (session != null) ? Math.min(limitMs, remainingMs(session)) : limitMs;
+    }
+
+    /*************************************
+     * @return true if the session has a deadline and
+     * less than neededMs of budget left
+     *************************************/
+    static boolean cannotMeet(int sessionId, long neededMs) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        return session != null && session.getDeadlineMs() != 0 && remainingMs(session) < neededMs;
+    }
+
+    /*************************************
+     * ends the session with the phase's error, stopping
+     * whatever it was waiting for, the SDK's UI included.
+     * Only the first final result counts, so a phase
+     * finishing meanwhile is dropped when it sends its own.
+     *************************************/
+    static void fail(int sessionId, Phase phase) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null || session.getState() == BlinkUpSession.State.TERMINAL) {
+            return;
+        }
+
+        Log.w(TAG, "Session " + sessionId + " missed its deadline during " + phase.key);
+        TokenStatusPoller.cancel(sessionId);
+        PollRecovery.untrackSession(sessionId);
+        PendingLookups.forgetSession(sessionId);
+        RateLimiter.cancel(sessionId);
+        if (session.getState() == BlinkUpSession.State.FLASHING && SessionRegistry.holdsFlash(sessionId)) {
+            // nobody would hear of a device flashed from here on
+            PluginConfig.getBackend().dismissUi();
+        }
+        BlinkUpMetrics.recordDeadlineMiss(phase);
+        BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, phase.error);
+    }
+
+    private static void armLocked(BlinkUpSession session) {
+        final int sessionId = session.getId();
+        session.setDeadlineTimer(TokenStatusPoller.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(sessionId);
+            }
+        }, remainingMs(session), TimeUnit.MILLISECONDS));
+    }
+
+    private static void expire(int sessionId) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null || session.getDeadlinePausedAtMs() != 0) {
+            // paused as the timer went off
+            return;
+        }
+        fail(sessionId, session.getPhase());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+package com.macadamian.blinkup;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/*****************************************************
+ * Connectivity reported by Android's ConnectivityManager,
+ * with a network callback for networks coming up. The
+ * callback can run before the network becomes the active
+ * one, so the networks it reported count as connected
+ * until they are lost, or the replay it triggers would
+ * still see the device offline. Needs
+ * the ACCESS_NETWORK_STATE permission. Without it, or
+ * before API 21, the device always counts as connected
+ * so nothing waits for a network it can't see.
+ *****************************************************/
+class DeviceConnectivityMonitor implements ConnectivityMonitor {
+    private static final String TAG = "DeviceConnectivity";
+
+    private final ConnectivityManager mConnectivityManager;
+    private ConnectivityManager.NetworkCallback mCallback;
+    // networks the callback reported and hasn't lost since
+    private final Set<Network> mAvailable = Collections.synchronizedSet(new HashSet<Network>());
+
+    DeviceConnectivityMonitor(Context context) {
+        mConnectivityManager = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    @Override
+    public boolean isConnected() {
+        if (mConnectivityManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return true;
+        }
+        if (!mAvailable.isEmpty()) {
+            return true;
+        }
+
+        try {
+            NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+            return networkInfo != null && networkInfo.isConnected();
+        } catch (SecurityException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (mConnectivityManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+                || mCallback != null) {
+            return;
+        }
+
+        mCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                mAvailable.add(network);
+                listener.onConnected();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                mAvailable.remove(network);
+            }
+        };
+        try {
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build();
+            mConnectivityManager.registerNetworkCallback(request, mCallback);
+        } catch (SecurityException e) {
+            Log.w(TAG, "ACCESS_NETWORK_STATE permission missing, not watching connectivity", e);
+            mCallback = null;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mCallback != null) {
+            mConnectivityManager.unregisterNetworkCallback(mCallback);
+            mCallback = null;
+            mAvailable.clear();
+        }
+    }
+}
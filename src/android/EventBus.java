@@ -0,0 +1,259 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.text.TextUtils;
+
+import com.macadamian.blinkup.util.JsonWriter;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*****************************************************
+ * Fans every result out to the sessions subscribed
+ * with subscribeBlinkUp, on top of the session that
+ * asked for it. A result is serialized once and that
+ * JSON is shared by all its subscribers. Each
+ * subscriber has its own bounded buffer, drained on
+ * the scheduler thread a few events at a time, so a
+ * subscriber that is behind loses its oldest events
+ * instead of holding back the publisher or the others.
+ *****************************************************/
+class EventBus {
+    // event types, progress batches are told apart from the other started results
+    static final String EVENT_STARTED = BlinkUpPluginResult.STATE_STARTED;
+    static final String EVENT_COMPLETED = BlinkUpPluginResult.STATE_COMPLETED;
+    static final String EVENT_ERROR = BlinkUpPluginResult.STATE_ERROR;
+    static final String EVENT_PROGRESS = "progress";
+
+    static final int DEFAULT_BUFFER_SIZE = 64;
+    static final int MAX_BUFFER_SIZE = 1024;
+
+    // events one subscriber sends before the next subscriber's turn
+    private static final int DRAIN_BATCH = 16;
+
+    private static final String SUBSCRIBERS_KEY = "subscribers";
+    private static final String PUBLISHED_KEY = "published";
+    private static final String DROPPED_KEY = "dropped";
+
+    private static final ConcurrentHashMap<Integer, Subscriber> sSubscribers =
+            new ConcurrentHashMap<Integer, Subscriber>();
+    private static final AtomicLong sPublished = new AtomicLong(0);
+    private static final AtomicLong sDropped = new AtomicLong(0);
+
+    /*************************************
+     * What a subscriber gets. A null event set and
+     * NO_SESSION match everything.
+     *************************************/
+    static class Filter {
+        final Set<String> events;
+        final int sessionId;
+        final int bufferSize;
+
+        Filter(Set<String> events, int sessionId, int bufferSize) {
+            this.events = events;
+            this.sessionId = sessionId;
+            this.bufferSize = bufferSize;
+        }
+
+        boolean matches(int sessionId, String eventType) {
+            return (this.sessionId == SessionRegistry.NO_SESSION || this.sessionId == sessionId)
+                    && (events == null || events.contains(eventType));
+        }
+    }
+
+    static boolean isEventType(String eventType) {
+        return TextUtils.equals(eventType, EVENT_STARTED)
+                || TextUtils.equals(eventType, EVENT_COMPLETED)
+                || TextUtils.equals(eventType, EVENT_ERROR)
+                || TextUtils.equals(eventType, EVENT_PROGRESS);
+    }
+
+    /*************************************
+     * the session's callback gets the events matching
+     * the filter until it is unsubscribed
+     *************************************/
+    static void subscribe(BlinkUpSession session, Filter filter) {
+        session.setLongLived(true);
+        sSubscribers.put(session.getId(), new Subscriber(session.getId(), session.getCallbackContext(), filter));
+    }
+
+    /*************************************
+     * @return false if there is no such subscription. Events
+     * already buffered for it are dropped, then the final
+     * result is sent on the scheduler thread, after any
+     * event the subscriber is sending right now.
+     *************************************/
+    static boolean unsubscribe(final int subscriptionId) {
+        Subscriber subscriber = sSubscribers.remove(subscriptionId);
+        if (subscriber == null) {
+            return false;
+        }
+
+        subscriber.close();
+        TokenStatusPoller.getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                BlinkUpPluginResult unsubscribedResult = new BlinkUpPluginResult();
+                unsubscribedResult.setSessionId(subscriptionId);
+                unsubscribedResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
+                unsubscribedResult.setStatusCode(BlinkUpPlugin.STATUS_UNSUBSCRIBED);
+                unsubscribedResult.sendResultsToCallback();
+                SessionRegistry.remove(subscriptionId);
+            }
+        });
+        return true;
+    }
+
+    static boolean isSubscription(int sessionId) {
+        return sSubscribers.containsKey(sessionId);
+    }
+
+    /*************************************
+     * queues the result's JSON for every matching subscriber,
+     * never blocks. Subscriptions don't see their own results.
+     *************************************/
+    static void publish(int sessionId, String eventType, PluginResult.Status status, String json) {
+        if (sSubscribers.isEmpty() || sSubscribers.containsKey(sessionId)) {
+            return;
+        }
+
+        Event event = null;
+        for (Subscriber subscriber : sSubscribers.values()) {
+            if (subscriber.mFilter.matches(sessionId, eventType)) {
+                if (event == null) {
+                    event = new Event(status, json);
+                    sPublished.incrementAndGet();
+                }
+                subscriber.offer(event);
+            }
+        }
+    }
+
+    /*************************************
+     * drops every subscription, their callbacks
+     * are gone with the webview
+     *************************************/
+    static void clear() {
+        for (Subscriber subscriber : sSubscribers.values()) {
+            subscriber.close();
+        }
+        sSubscribers.clear();
+    }
+
+    static void writeJson(JsonWriter writer, boolean reset) {
+        writer.beginObject();
+        writer.name(SUBSCRIBERS_KEY).valueAsString(sSubscribers.size());
+        writer.name(PUBLISHED_KEY).valueAsString(reset ? sPublished.getAndSet(0) : sPublished.get());
+        writer.name(DROPPED_KEY).valueAsString(reset ? sDropped.getAndSet(0) : sDropped.get());
+        writer.endObject();
+    }
+
+    /*************************************
+     * One serialized result, shared by its subscribers
+     *************************************/
+    private static class Event {
+        final PluginResult.Status status;
+        final String json;
+
+        Event(PluginResult.Status status, String json) {
+            this.status = status;
+            this.json = json;
+        }
+    }
+
+    private static class Subscriber implements Runnable {
+        private final int mId;
+        private final CallbackContext mCallbackContext;
+        private final Filter mFilter;
+
+        // guarded by this
+        private final ArrayDeque<Event> mBuffer = new ArrayDeque<Event>();
+        private int mDropped = 0;
+        private boolean mDraining = false;
+        private boolean mClosed = false;
+
+        Subscriber(int id, CallbackContext callbackContext, Filter filter) {
+            mId = id;
+            mCallbackContext = callbackContext;
+            mFilter = filter;
+        }
+
+        void offer(Event event) {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                if (mBuffer.size() >= mFilter.bufferSize) {
+                    mBuffer.pollFirst();
+                    mDropped++;
+                    sDropped.incrementAndGet();
+                }
+                mBuffer.addLast(event);
+                if (mDraining) {
+                    return;
+                }
+                mDraining = true;
+            }
+            TokenStatusPoller.getScheduler().execute(this);
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            mBuffer.clear();
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Event event;
+                int dropped;
+                synchronized (this) {
+                    event = mClosed ? null : mBuffer.pollFirst();
+                    if (event == null) {
+                        mDraining = false;
+                        return;
+                    }
+                    dropped = mDropped;
+                    mDropped = 0;
+                }
+
+                // tell the subscriber about the gap before the event after it
+                if (dropped > 0) {
+                    BlinkUpPluginResult droppedResult = new BlinkUpPluginResult();
+                    droppedResult.setSessionId(mId);
+                    droppedResult.setState(BlinkUpPluginResult.STATE_STARTED);
+                    droppedResult.setStatusCode(BlinkUpPlugin.STATUS_EVENTS_DROPPED);
+                    droppedResult.setDroppedEvents(dropped);
+                    droppedResult.sendResultsToCallback();
+                }
+
+                PluginResult pluginResult = new PluginResult(event.status, event.json);
+                pluginResult.setKeepCallback(true);
+                mCallbackContext.sendPluginResult(pluginResult);
+            }
+
+            // rest of the buffer waits behind the other subscribers' turns
+            TokenStatusPoller.getScheduler().execute(this);
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package com.macadamian.blinkup;
 
 public class Extras {
+    public static final String EXTRA_SESSION_ID = "Extra.SessionId";
     public static final String EXTRA_DEVELOPER_PLAN_ID = "Extra.DeveloperPlanId";
     public static final String EXTRA_TIMEOUT_MS = "Extra.TimeoutMs";
+    public static final String EXTRA_BATCH_SEQUENCE = "Extra.BatchSequence";
+    public static final String EXTRA_SETUP_TOKEN = "Extra.SetupToken";
+    public static final String EXTRA_COMPLETED_AT_NS = "Extra.CompletedAtNs";
 }
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.content.Context;
+
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+/*****************************************************
+ * How long a flash takes when the operator picks the
+ * network in the SDK's wifi selection, as a moving
+ * average. Headless flashes skip that selection, the
+ * difference is the time they saved. Persisted, since
+ * a line may run headless only for a long time after.
+ *****************************************************/
+class FlashBaseline {
+    // weight of the newest flash in the moving average
+    private static final double WEIGHT = 0.2;
+
+    private static Context sContext;
+    private static long sBaselineMs = -1;
+
+    static synchronized void init(Context context) {
+        if (sContext != null) {
+            return;
+        }
+        sContext = context.getApplicationContext();
+        sBaselineMs = PreferencesHelper.getFlashBaselineMs(sContext);
+    }
+
+    /*************************************
+     * @return time the flash saved compared to the wifi
+     * selection, -1 if it went through the selection or
+     * there is no baseline yet
+     *************************************/
+    static synchronized long record(boolean headless, long flashMs) {
+        if (headless) {
+            return (sBaselineMs >= 0) ? Math.max(0, sBaselineMs - flashMs) : -1;
+        }
+
+        sBaselineMs = (sBaselineMs < 0) ? flashMs : Math.round(WEIGHT * flashMs + (1 - WEIGHT) * sBaselineMs);
+        if (sContext != null) {
+            PreferencesHelper.setFlashBaselineMs(sContext, sBaselineMs);
+        }
+        return -1;
+    }
+}
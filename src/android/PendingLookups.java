@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/*****************************************************
+ * Device info lookups put on hold while the phone is
+ * offline. A poll that times out or fails without a
+ * network says nothing about the device, which may
+ * well have claimed its token, so instead of failing
+ * the session its token waits here, on disk, until a
+ * network comes up. Then all of them are looked up
+ * again at once. Sessions of this run of the app get
+ * the device info through their callback, lookups left
+ * over by an earlier run are handed to PollRecovery.
+ *****************************************************/
+class PendingLookups {
+    private static final String TAG = "PendingLookups";
+
+    private static final String SESSION_ID_KEY = "sessionId";
+    private static final String TOKEN_KEY = "token";
+    private static final String API_KEY_HASH_KEY = "apiKeyHash";
+    private static final String DEVELOPER_PLAN_ID_KEY = "developerPlanId";
+    private static final String TIMEOUT_MS_KEY = "timeoutMs";
+    private static final String BATCH_SEQUENCE_KEY = "batchSequence";
+
+    /*************************************
+     * One token waiting for the network
+     *************************************/
+    private static class Entry {
+        final int sessionId;
+        final String token;
+        final String apiKeyHash;
+        final String developerPlanId;
+        final int timeoutMs;
+        final int batchSequence;
+
+        // put on hold by an earlier run of the app, its session ID means nothing now
+        boolean recovered;
+
+        Entry(int sessionId, String token, String apiKeyHash, String developerPlanId,
+              int timeoutMs, int batchSequence) {
+            this.sessionId = sessionId;
+            this.token = token;
+            this.apiKeyHash = apiKeyHash;
+            this.developerPlanId = developerPlanId;
+            this.timeoutMs = timeoutMs;
+            this.batchSequence = batchSequence;
+        }
+    }
+
+    private static final List<Entry> sEntries = new ArrayList<Entry>();
+    private static Context sContext;
+    private static ConnectivityMonitor sMonitor;
+
+    private static final ConnectivityMonitor.Listener sListener = new ConnectivityMonitor.Listener() {
+        @Override
+        public void onConnected() {
+            scheduleReplay();
+        }
+    };
+
+    /*************************************
+     * loads the lookups left over by the last run
+     * of the app and starts watching connectivity
+     *************************************/
+    static void init(Context context) {
+        synchronized (PendingLookups.class) {
+            if (sContext != null) {
+                return;
+            }
+            sContext = context.getApplicationContext();
+            load();
+            if (sMonitor == null) {
+                setMonitorLocked(new DeviceConnectivityMonitor(sContext));
+            }
+        }
+        scheduleReplay();
+    }
+
+    /*************************************
+     * replaces the connectivity lookups wait for, the
+     * device's for null. Not reachable from javascript,
+     * tools/loadtest swaps in a simulated network through this.
+     *************************************/
+    static void setMonitor(ConnectivityMonitor monitor) {
+        synchronized (PendingLookups.class) {
+            setMonitorLocked((monitor == null && sContext != null)
+                    ? new DeviceConnectivityMonitor(sContext) : monitor);
+        }
+        scheduleReplay();
+    }
+
+    /*************************************
+     * @return true if lookups made now would fail for lack
+     * of a network. False until the plugin is initialized.
+     *************************************/
+    static synchronized boolean isOffline() {
+        return sMonitor != null && !sMonitor.isConnected();
+    }
+
+    /*************************************
+     * puts a session's lookup on hold until a network comes up
+     *************************************/
+    static void hold(int sessionId, String token, String apiKeyHash, String developerPlanId,
+                     int timeoutMs, int batchSequence) {
+        synchronized (PendingLookups.class) {
+            sEntries.add(new Entry(sessionId, token, apiKeyHash, developerPlanId, timeoutMs, batchSequence));
+            persist();
+        }
+
+        // the network may have come back while this was decided
+        scheduleReplay();
+    }
+
+    /*************************************
+     * called when the session is aborted
+     *************************************/
+    static synchronized void forgetSession(int sessionId) {
+        boolean removed = false;
+        Iterator<Entry> iterator = sEntries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.recovered && entry.sessionId == sessionId) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            persist();
+        }
+    }
+
+    private static void setMonitorLocked(ConnectivityMonitor monitor) {
+        if (sMonitor != null) {
+            sMonitor.stop();
+        }
+        sMonitor = monitor;
+        if (monitor != null) {
+            monitor.start(sListener);
+        }
+    }
+
+    /*************************************
+     * network callbacks come on a system thread,
+     * lookups are started from the scheduler's
+     *************************************/
+    private static void scheduleReplay() {
+        TokenStatusPoller.getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        });
+    }
+
+    private static void replay() {
+        List<Entry> toReplay;
+        synchronized (PendingLookups.class) {
+            if (sEntries.isEmpty() || sMonitor == null || !sMonitor.isConnected()) {
+                return;
+            }
+            toReplay = new ArrayList<Entry>(sEntries);
+            sEntries.clear();
+            persist();
+        }
+
+        Log.i(TAG, "Network is back, looking up " + toReplay.size() + " device(s)");
+        for (Entry entry : toReplay) {
+            if (entry.recovered) {
+                PollRecovery.adopt(entry.sessionId, entry.token, entry.apiKeyHash, entry.developerPlanId,
+                        entry.timeoutMs, entry.batchSequence);
+            } else {
+                CompletionHandler.resumeDeviceInfo(sContext, entry.sessionId, entry.batchSequence,
+                        entry.developerPlanId, entry.token, entry.timeoutMs);
+            }
+        }
+    }
+
+    private static void load() {
+        String lookupsJson = PreferencesHelper.getPendingLookups(sContext);
+        if (lookupsJson == null) {
+            return;
+        }
+
+        try {
+            JSONArray lookups = new JSONArray(lookupsJson);
+            for (int i = 0; i < lookups.length(); i++) {
+                JSONObject lookup = lookups.getJSONObject(i);
+                Entry entry = new Entry(lookup.getInt(SESSION_ID_KEY), lookup.getString(TOKEN_KEY),
+                        lookup.optString(API_KEY_HASH_KEY, null), lookup.optString(DEVELOPER_PLAN_ID_KEY, null),
+                        lookup.getInt(TIMEOUT_MS_KEY), lookup.optInt(BATCH_SEQUENCE_KEY, 0));
+                entry.recovered = true;
+                sEntries.add(entry);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Discarding unreadable pending lookups", e);
+        }
+    }
+
+    private static void persist() {
+        if (sContext == null) {
+            return;
+        }
+
+        JSONArray lookups = new JSONArray();
+        try {
+            for (Entry entry : sEntries) {
+                JSONObject lookup = new JSONObject();
+                lookup.put(SESSION_ID_KEY, entry.sessionId);
+                lookup.put(TOKEN_KEY, entry.token);
+                lookup.putOpt(API_KEY_HASH_KEY, entry.apiKeyHash);
+                lookup.putOpt(DEVELOPER_PLAN_ID_KEY, entry.developerPlanId);
+                lookup.put(TIMEOUT_MS_KEY, entry.timeoutMs);
+                lookup.put(BATCH_SEQUENCE_KEY, entry.batchSequence);
+                lookups.put(lookup);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "", e);
+            return;
+        }
+
+        PreferencesHelper.setPendingLookups(sContext, lookups.length() > 0 ? lookups.toString() : null);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*****************************************************
+ * Cached production plan IDs, one per api key and
+ * developer plan, so an app provisioning for several
+ * products keeps each plan separate. Loaded from the
+ * preferences once, then served from memory. Writes
+ * update memory right away and are persisted in the
+ * background, several writes at once. Safe to use from
+ * any thread.
+ *****************************************************/
+class PlanIdStore {
+    private static final String TAG = "PlanIdStore";
+
+    private static final long PERSIST_DELAY_MS = 500;
+
+    private static final ConcurrentHashMap<String, String> sPlanIds = new ConcurrentHashMap<String, String>();
+    private static Context sContext;
+    private static volatile boolean sLoaded = false;
+    private static boolean sPersistScheduled = false;
+
+    // plan ID cached by earlier versions of the plugin, without its key. Goes to the first key used
+    private static String sLegacyPlanId;
+
+    private static final Runnable sPersistRunnable = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+
+    /*************************************
+     * loads the cached plan IDs, safe to call more than once
+     *************************************/
+    static synchronized void init(Context context) {
+        if (sLoaded) {
+            return;
+        }
+        sContext = context.getApplicationContext();
+        sLegacyPlanId = PreferencesHelper.getPlanId(sContext);
+
+        String planIdsJson = PreferencesHelper.getPlanIds(sContext);
+        if (planIdsJson != null) {
+            try {
+                JSONObject planIds = new JSONObject(planIdsJson);
+                Iterator<String> keys = planIds.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    sPlanIds.put(key, planIds.getString(key));
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Discarding unreadable plan ID cache", e);
+            }
+        }
+        sLoaded = true;
+    }
+
+    static String get(Context context, String apiKey, String developerPlanId) {
+        if (!sLoaded) {
+            init(context);
+        }
+
+        String planId = sPlanIds.get(key(apiKey, developerPlanId));
+        return (planId != null) ? planId : migrateLegacyPlanId(ApiKeyCache.hash(apiKey), developerPlanId);
+    }
+
+    static void put(Context context, String apiKey, String developerPlanId, String planId) {
+        putForKeyHash(context, ApiKeyCache.hash(apiKey), developerPlanId, planId);
+    }
+
+    /*************************************
+     * same as put, for callers that only kept the hashed api key
+     *************************************/
+    static void putForKeyHash(Context context, String apiKeyHash, String developerPlanId, String planId) {
+        if (!sLoaded) {
+            init(context);
+        }
+
+        // the first key used after an upgrade replaces the old plan ID, no other key gets it
+        forgetLegacyPlanId();
+        if (planId == null) {
+            sPlanIds.remove(keyForHash(apiKeyHash, developerPlanId));
+        } else {
+            sPlanIds.put(keyForHash(apiKeyHash, developerPlanId), planId);
+            // also the plan used by the key most recently, for lookups
+            // made before the developer plan is known (prefetch)
+            sPlanIds.put(keyForHash(apiKeyHash, null), planId);
+        }
+        schedulePersist();
+    }
+
+    /*************************************
+     * forgets every cached plan ID
+     *************************************/
+    static void clear(Context context) {
+        if (!sLoaded) {
+            init(context);
+        }
+
+        sPlanIds.clear();
+        forgetLegacyPlanId();
+        schedulePersist();
+    }
+
+    /*************************************
+     * earlier versions kept a single plan ID, for whichever
+     * key saved it. It can't tell which, so the first key
+     * used after the upgrade takes it over and the old
+     * entry is deleted, other keys never fall back to it
+     *
+     * @return the old plan ID, null if it was taken over already
+     *************************************/
+    private static synchronized String migrateLegacyPlanId(String apiKeyHash, String developerPlanId) {
+        String legacyPlanId = sLegacyPlanId;
+        if (legacyPlanId == null) {
+            return null;
+        }
+
+        sLegacyPlanId = null;
+        sPlanIds.putIfAbsent(keyForHash(apiKeyHash, developerPlanId), legacyPlanId);
+        sPlanIds.putIfAbsent(keyForHash(apiKeyHash, null), legacyPlanId);
+        schedulePersist();
+        return legacyPlanId;
+    }
+
+    private static synchronized void forgetLegacyPlanId() {
+        sLegacyPlanId = null;
+    }
+
+    private static String key(String apiKey, String developerPlanId) {
+        return keyForHash(ApiKeyCache.hash(apiKey), developerPlanId);
+    }
+
+    private static String keyForHash(String apiKeyHash, String developerPlanId) {
+        return apiKeyHash + "|" + ((developerPlanId != null) ? developerPlanId : "");
+    }
+
+    private static synchronized void schedulePersist() {
+        if (sPersistScheduled) {
+            return;
+        }
+        sPersistScheduled = true;
+        TokenStatusPoller.getScheduler().schedule(sPersistRunnable, PERSIST_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void persist() {
+        synchronized (PlanIdStore.class) {
+            sPersistScheduled = false;
+        }
+
+        JSONObject planIds = new JSONObject();
+        try {
+            for (Map.Entry<String, String> entry : sPlanIds.entrySet()) {
+                planIds.put(entry.getKey(), entry.getValue());
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "", e);
+            return;
+        }
+
+        PreferencesHelper.setPlanIds(sContext, planIds.toString());
+        synchronized (PlanIdStore.class) {
+            if (sLegacyPlanId == null) {
+                PreferencesHelper.setPlanId(sContext, null);
+            }
+        }
+    }
+}
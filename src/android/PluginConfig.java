@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import org.json.JSONObject;
+
+/*****************************************************
+ * Plugin wide settings, changed from javascript
+ * through configureBlinkUp. Settings that aren't in
+ * the options object keep their current value.
+ *****************************************************/
+class PluginConfig {
+    // option keys from BlinkUp.js
+    private static final String OPTION_PROGRESS_EVENTS = "progressEvents";
+    private static final String OPTION_PROGRESS_WINDOW_MS = "progressWindowMs";
+    private static final String OPTION_API_KEY_CACHE_TTL_MS = "apiKeyCacheTtlMs";
+    private static final String OPTION_API_KEY_FAILURE_TTL_MS = "apiKeyFailureTtlMs";
+    private static final String OPTION_ASYNC_EXECUTION = "asyncExecution";
+    private static final String OPTION_RETRY_POLICY = "retryPolicy";
+    private static final String OPTION_TRACING = "tracing";
+    private static final String OPTION_RATE_LIMIT = "rateLimit";
+    private static final String OPTION_SESSION_DEADLINE = "sessionDeadline";
+
+    static final long DEFAULT_PROGRESS_WINDOW_MS = 100;
+    static final long DEFAULT_API_KEY_CACHE_TTL_MS = 24 * 60 * 60 * 1000;
+    static final long DEFAULT_API_KEY_FAILURE_TTL_MS = 5 * 60 * 1000;
+
+    private static volatile boolean sProgressEvents = false;
+    private static volatile long sProgressWindowMs = DEFAULT_PROGRESS_WINDOW_MS;
+    private static volatile long sApiKeyCacheTtlMs = DEFAULT_API_KEY_CACHE_TTL_MS;
+    private static volatile long sApiKeyFailureTtlMs = DEFAULT_API_KEY_FAILURE_TTL_MS;
+    private static volatile BlinkUpBackend sBackend = new SdkBackend();
+    private static volatile boolean sAsyncExecution = false;
+    private static volatile boolean sSessionDeadline = false;
+    private static volatile RetryPolicy sRetryPolicy = RetryPolicy.DEFAULT;
+    // off until configured
+    private static volatile RateLimiter sRateLimiter = null;
+
+    /*************************************
+     * @return false if an option has an invalid value,
+     * in which case nothing is changed
+     *************************************/
+    static synchronized boolean update(JSONObject options) {
+        long progressWindowMs = options.optLong(OPTION_PROGRESS_WINDOW_MS, sProgressWindowMs);
+        long apiKeyCacheTtlMs = options.optLong(OPTION_API_KEY_CACHE_TTL_MS, sApiKeyCacheTtlMs);
+        long apiKeyFailureTtlMs = options.optLong(OPTION_API_KEY_FAILURE_TTL_MS, sApiKeyFailureTtlMs);
+        if (progressWindowMs < 0 || apiKeyCacheTtlMs < 0 || apiKeyFailureTtlMs < 0) {
+            return false;
+        }
+
+        RetryPolicy retryPolicy = sRetryPolicy;
+        JSONObject retryPolicyOptions = options.optJSONObject(OPTION_RETRY_POLICY);
+        if (retryPolicyOptions != null) {
+            retryPolicy = retryPolicy.update(retryPolicyOptions);
+            if (retryPolicy == null) {
+                return false;
+            }
+        }
+
+        // an object changes the rate limit settings, false turns limiting off
+        RateLimiter rateLimiter = sRateLimiter;
+        if (options.has(OPTION_RATE_LIMIT)) {
+            JSONObject rateLimitOptions = options.optJSONObject(OPTION_RATE_LIMIT);
+            if (rateLimitOptions != null) {
+                rateLimiter = ((rateLimiter != null) ? rateLimiter : RateLimiter.DEFAULT).update(rateLimitOptions);
+                if (rateLimiter == null) {
+                    return false;
+                }
+            } else if (!options.optBoolean(OPTION_RATE_LIMIT, true)) {
+                rateLimiter = null;
+            } else {
+                return false;
+            }
+        }
+
+        sProgressEvents = options.optBoolean(OPTION_PROGRESS_EVENTS, sProgressEvents);
+        sAsyncExecution = options.optBoolean(OPTION_ASYNC_EXECUTION, sAsyncExecution);
+        sSessionDeadline = options.optBoolean(OPTION_SESSION_DEADLINE, sSessionDeadline);
+        sProgressWindowMs = progressWindowMs;
+        sApiKeyCacheTtlMs = apiKeyCacheTtlMs;
+        sApiKeyFailureTtlMs = apiKeyFailureTtlMs;
+        sRetryPolicy = retryPolicy;
+        sRateLimiter = rateLimiter;
+        Tracer.setEnabled(options.optBoolean(OPTION_TRACING, Tracer.isEnabled()));
+        return true;
+    }
+
+    static boolean isProgressEventsEnabled() { return sProgressEvents; }
+    static boolean isAsyncExecution() { return sAsyncExecution; }
+    static boolean isSessionDeadlineEnabled() { return sSessionDeadline; }
+    static long getProgressWindowMs() { return sProgressWindowMs; }
+    static long getApiKeyCacheTtlMs() { return sApiKeyCacheTtlMs; }
+    static long getApiKeyFailureTtlMs() { return sApiKeyFailureTtlMs; }
+    static BlinkUpBackend getBackend() { return sBackend; }
+    static RetryPolicy getRetryPolicy() { return sRetryPolicy; }
+    // null when server calls aren't rate limited
+    static RateLimiter getRateLimiter() { return sRateLimiter; }
+
+    /*************************************
+     * replaces the backend the plugin makes its SDK calls to.
+     * Not reachable from javascript, tools/loadtest swaps in
+     * its simulated backend through this.
+     *************************************/
+    static void setBackend(BlinkUpBackend backend) {
+        sBackend = backend;
+    }
+}
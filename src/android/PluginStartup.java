@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.macadamian.blinkup.util.JsonWriter;
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+/*****************************************************
+ * What the plugin loads when, picked with the
+ * BlinkUpStartupMode preference in config.xml. Lazy
+ * (default) loads the caches and the journal on the
+ * first call that needs them, so the app's start isn't
+ * slowed down. Polls and lookups a killed run of the app
+ * left over are resumed at start in both modes, their
+ * time is running out. Eager loads everything when
+ * the app starts and warms up the SDK and the argument
+ * validation too, so the first startBlinkUp doesn't pay
+ * for it. Both report what it cost in getBlinkUpMetrics.
+ *****************************************************/
+class PluginStartup {
+    private static final String TAG = "PluginStartup";
+
+    static final String MODE_LAZY = "lazy";
+    static final String MODE_EAGER = "eager";
+
+    static final String TRIGGER_PLUGIN_INITIALIZE = "pluginInitialize";
+
+    private static final String MODE_KEY = "mode";
+    private static final String TRIGGER_KEY = "initTrigger";
+    private static final String PLUGIN_INITIALIZE_US_KEY = "pluginInitializeUs";
+    private static final String INIT_US_KEY = "initUs";
+    private static final String WARM_UP_US_KEY = "warmUpUs";
+
+    // any 32 character alphanumeric string, only used to run the validation once
+    private static final String WARM_UP_API_KEY = "00000000000000000000000000000000";
+
+    private static volatile String sMode = MODE_LAZY;
+    private static volatile boolean sInitialized = false;
+    private static volatile String sTrigger;
+    private static volatile long sPluginInitializeUs = -1;
+    private static volatile long sInitUs = -1;
+    private static volatile long sWarmUpUs = -1;
+
+    static boolean isValidMode(String mode) {
+        return MODE_LAZY.equals(mode) || MODE_EAGER.equals(mode);
+    }
+
+    /*************************************
+     * called from pluginInitialize, which runs when the app
+     * starts. Only does the work in eager mode.
+     * @return true if the plugin was initialized
+     *************************************/
+    static boolean onPluginInitialize(Context context, String mode) {
+        long startNs = System.nanoTime();
+        sMode = isValidMode(mode) ? mode : MODE_LAZY;
+
+        boolean initialized = false;
+        if (MODE_EAGER.equals(sMode)) {
+            initialized = initialize(context, TRIGGER_PLUGIN_INITIALIZE);
+            warmUp();
+        } else if (PreferencesHelper.hasInterruptedWork(context)) {
+            // the journal records the device info the resumed polls get
+            ProvisioningJournal.init(context);
+            PollRecovery.init(context);
+            PendingLookups.init(context);
+        }
+
+        sPluginInitializeUs = (System.nanoTime() - startNs) / 1000;
+        return initialized;
+    }
+
+    /*************************************
+     * loads what the plugin keeps on disk, the first
+     * time it is called. Safe to call from any thread.
+     * @return true if this call did it
+     *************************************/
+    static boolean initialize(Context context, String trigger) {
+        if (sInitialized) {
+            return false;
+        }
+
+        synchronized (PluginStartup.class) {
+            if (sInitialized) {
+                return false;
+            }
+
+            long startNs = System.nanoTime();
+            ApiKeyCache.init(context);
+            PlanIdStore.init(context);
+            ProvisioningJournal.init(context);
+            PollRecovery.init(context);
+            PendingLookups.init(context);
+            FlashBaseline.init(context);
+            sInitUs = (System.nanoTime() - startNs) / 1000;
+
+            sTrigger = trigger;
+            sInitialized = true;
+        }
+
+        Log.i(TAG, sMode + " startup: initialized by " + trigger + " in " + sInitUs + "us");
+        return true;
+    }
+
+    /*************************************
+     * first use of the SDK controller and the validation,
+     * so their class loading and setup happens now
+     *************************************/
+    private static void warmUp() {
+        long startNs = System.nanoTime();
+        PluginConfig.getBackend().warmUp();
+        BlinkUpArguments.apiKeyFormatValid(WARM_UP_API_KEY);
+        sWarmUpUs = (System.nanoTime() - startNs) / 1000;
+    }
+
+    /*************************************
+     * writes the startup mode and costs, costs not
+     * paid (yet) are left out
+     *************************************/
+    static void writeJson(JsonWriter writer) {
+        writer.beginObject();
+        writer.optField(MODE_KEY, sMode);
+        writer.optField(TRIGGER_KEY, sTrigger);
+        writeCost(writer, PLUGIN_INITIALIZE_US_KEY, sPluginInitializeUs);
+        writeCost(writer, INIT_US_KEY, sInitUs);
+        writeCost(writer, WARM_UP_US_KEY, sWarmUpUs);
+        writer.endObject();
+    }
+
+    private static void writeCost(JsonWriter writer, String key, long costUs) {
+        if (costUs >= 0) {
+            writer.name(key).valueAsString(costUs);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.electricimp.blinkup.TokenStatusCallback;
+import com.macadamian.blinkup.util.JsonWriter;
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*****************************************************
+ * Keeps track of token status polls on disk, so a poll
+ * cut short by the app being killed is resumed when the
+ * plugin starts again. The device was already flashed,
+ * only its device info is missing. Resumed polls have no
+ * callback to report to, their results are kept (also on
+ * disk) until javascript asks for them with
+ * getRecoveredSessions.
+ *****************************************************/
+class PollRecovery {
+    private static final String TAG = "PollRecovery";
+
+    private static final String SESSION_ID_KEY = "sessionId";
+    private static final String TOKEN_KEY = "token";
+    private static final String API_KEY_HASH_KEY = "apiKeyHash";
+    private static final String DEVELOPER_PLAN_ID_KEY = "developerPlanId";
+    private static final String DEADLINE_KEY = "deadline";
+    private static final String BATCH_SEQUENCE_KEY = "batchSequence";
+    private static final String RESULT_KEY = "result";
+
+    /*************************************
+     * One poll, keyed by its token since session IDs
+     * start over when the app restarts
+     *************************************/
+    private static class Entry {
+        final int sessionId;
+        final String token;
+        final String apiKeyHash;
+        final String developerPlanId;
+        final long deadlineMs;
+        final int batchSequence;
+
+        // poll started by an earlier run of the app
+        boolean recovered;
+        // serialized final result, once a recovered poll is done
+        String resultJson;
+
+        Entry(int sessionId, String token, String apiKeyHash, String developerPlanId,
+              long deadlineMs, int batchSequence) {
+            this.sessionId = sessionId;
+            this.token = token;
+            this.apiKeyHash = apiKeyHash;
+            this.developerPlanId = developerPlanId;
+            this.deadlineMs = deadlineMs;
+            this.batchSequence = batchSequence;
+        }
+    }
+
+    private static final LinkedHashMap<String, Entry> sEntries = new LinkedHashMap<String, Entry>();
+    private static Context sContext;
+
+    // TokenStatusPoller is keyed by session, resumed polls use negative IDs no session can have
+    private static int sLastPollId = SessionRegistry.NO_SESSION;
+
+    /*************************************
+     * loads the polls left over by the last run of the app
+     * and resumes the ones that haven't timed out yet
+     *************************************/
+    static void init(Context context) {
+        List<Entry> toResume = new ArrayList<Entry>();
+        synchronized (PollRecovery.class) {
+            if (sContext != null) {
+                return;
+            }
+            sContext = context.getApplicationContext();
+            load();
+
+            for (Entry entry : sEntries.values()) {
+                entry.recovered = true;
+                if (entry.resultJson == null) {
+                    toResume.add(entry);
+                }
+            }
+        }
+
+        for (Entry entry : toResume) {
+            resume(entry);
+        }
+    }
+
+    /*************************************
+     * called when a session starts polling for its device info
+     *************************************/
+    static void track(int sessionId, String token, String apiKey, String developerPlanId,
+                      int timeoutMs, int batchSequence) {
+        if (token == null) {
+            // the SDK polls its own token, which doesn't outlive the app
+            return;
+        }
+
+        synchronized (PollRecovery.class) {
+            sEntries.put(token, new Entry(sessionId, token, ApiKeyCache.hash(apiKey), developerPlanId,
+                    System.currentTimeMillis() + timeoutMs, batchSequence));
+            persist();
+        }
+    }
+
+    /*************************************
+     * takes over a lookup an earlier run of the app put on
+     * hold for lack of a network, see PendingLookups
+     *************************************/
+    static void adopt(int sessionId, String token, String apiKeyHash, String developerPlanId,
+                      int timeoutMs, int batchSequence) {
+        Entry entry = new Entry(sessionId, token, apiKeyHash, developerPlanId,
+                System.currentTimeMillis() + timeoutMs, batchSequence);
+        entry.recovered = true;
+        synchronized (PollRecovery.class) {
+            sEntries.put(token, entry);
+            persist();
+        }
+        resume(entry);
+    }
+
+    /*************************************
+     * called once the session got its result
+     *************************************/
+    static synchronized void untrack(String token) {
+        if (token != null && sEntries.remove(token) != null) {
+            persist();
+        }
+    }
+
+    /*************************************
+     * called when the session is aborted
+     *************************************/
+    static synchronized void untrackSession(int sessionId) {
+        boolean removed = false;
+        Iterator<Entry> iterator = sEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.recovered && entry.sessionId == sessionId) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            persist();
+        }
+    }
+
+    /*************************************
+     * @return JSON array with the result of each recovered
+     * poll, "started" for the ones still polling. Finished
+     * ones are forgotten once reported.
+     *************************************/
+    static synchronized String report() {
+        JsonWriter writer = new JsonWriter(256).beginArray();
+        boolean removed = false;
+        Iterator<Entry> iterator = sEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.recovered) {
+                continue;
+            }
+
+            if (entry.resultJson != null) {
+                writer.rawValue(entry.resultJson);
+                iterator.remove();
+                removed = true;
+            } else {
+                BlinkUpPluginResult pollingResult = newResult(entry);
+                pollingResult.setState(BlinkUpPluginResult.STATE_STARTED);
+                pollingResult.setStatusCode(BlinkUpPlugin.STATUS_GATHERING_INFO);
+                writer.rawValue(pollingResult.toJson());
+            }
+        }
+        if (removed) {
+            persist();
+        }
+        return writer.endArray().toString();
+    }
+
+    private static void resume(final Entry entry) {
+        long remainingMs = entry.deadlineMs - System.currentTimeMillis();
+        if (remainingMs <= 0) {
+            finish(entry, timeoutResult(entry));
+            return;
+        }
+
+        int pollId;
+        synchronized (PollRecovery.class) {
+            pollId = --sLastPollId;
+        }
+        Log.i(TAG, "Resuming device info poll of session " + entry.sessionId);
+
+        TokenStatusPoller.start(pollId, entry.token, entry.apiKeyHash, remainingMs, new TokenStatusCallback() {
+            @Override
+            public void onSuccess(JSONObject json) {
+                BlinkUpPluginResult successResult = newResult(entry);
+                successResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
+                successResult.setStatusCode(BlinkUpPlugin.STATUS_DEVICE_CONNECTED);
+                successResult.setDeviceInfoFromJson(json);
+
+                String planId = json.optString(BlinkUpPluginResult.SDK_PLAN_ID_KEY, null);
+                if (planId != null && entry.apiKeyHash != null && !planId.equals(entry.developerPlanId)) {
+                    PlanIdStore.putForKeyHash(sContext, entry.apiKeyHash, entry.developerPlanId, planId);
+                }
+                finish(entry, successResult);
+            }
+
+            @Override
+            public void onError(String errorMsg) {
+                BlinkUpPluginResult errorResult = newResult(entry);
+                errorResult.setState(BlinkUpPluginResult.STATE_ERROR);
+                errorResult.setBlinkUpError(errorMsg);
+                finish(entry, errorResult);
+            }
+
+            @Override
+            public void onTimeout() {
+                finish(entry, timeoutResult(entry));
+            }
+        });
+    }
+
+    private static BlinkUpPluginResult newResult(Entry entry) {
+        BlinkUpPluginResult result = new BlinkUpPluginResult();
+        result.setSessionId(entry.sessionId);
+        result.setBatchSequence(entry.batchSequence);
+        return result;
+    }
+
+    private static BlinkUpPluginResult timeoutResult(Entry entry) {
+        BlinkUpPluginResult timeoutResult = newResult(entry);
+        timeoutResult.setState(BlinkUpPluginResult.STATE_ERROR);
+        timeoutResult.setPluginError(BlinkUpPlugin.ERROR_PROCESS_TIMED_OUT);
+        return timeoutResult;
+    }
+
+    private static synchronized void finish(Entry entry, BlinkUpPluginResult result) {
+        entry.resultJson = result.toJson();
+        if (sEntries.containsValue(entry)) {
+            persist();
+        }
+    }
+
+    private static void load() {
+        String pollsJson = PreferencesHelper.getInFlightPolls(sContext);
+        if (pollsJson == null) {
+            return;
+        }
+
+        try {
+            JSONArray polls = new JSONArray(pollsJson);
+            for (int i = 0; i < polls.length(); i++) {
+                JSONObject poll = polls.getJSONObject(i);
+                Entry entry = new Entry(poll.getInt(SESSION_ID_KEY), poll.getString(TOKEN_KEY),
+                        poll.optString(API_KEY_HASH_KEY, null), poll.optString(DEVELOPER_PLAN_ID_KEY, null),
+                        poll.getLong(DEADLINE_KEY), poll.optInt(BATCH_SEQUENCE_KEY, 0));
+                entry.resultJson = poll.optString(RESULT_KEY, null);
+                sEntries.put(entry.token, entry);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Discarding unreadable in-flight polls", e);
+        }
+    }
+
+    /*************************************
+     * written right away, a poll only needs recovering
+     * if the app is killed shortly after it starts
+     *************************************/
+    private static void persist() {
+        if (sContext == null) {
+            return;
+        }
+
+        JSONArray polls = new JSONArray();
+        try {
+            for (Entry entry : sEntries.values()) {
+                JSONObject poll = new JSONObject();
+                poll.put(SESSION_ID_KEY, entry.sessionId);
+                poll.put(TOKEN_KEY, entry.token);
+                poll.putOpt(API_KEY_HASH_KEY, entry.apiKeyHash);
+                poll.putOpt(DEVELOPER_PLAN_ID_KEY, entry.developerPlanId);
+                poll.put(DEADLINE_KEY, entry.deadlineMs);
+                poll.put(BATCH_SEQUENCE_KEY, entry.batchSequence);
+                poll.putOpt(RESULT_KEY, entry.resultJson);
+                polls.put(poll);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "", e);
+            return;
+        }
+
+        PreferencesHelper.setInFlightPolls(sContext, polls.length() > 0 ? polls.toString() : null);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*****************************************************
+ * Collects fine grained progress events of a session
+ * and sends them to javascript in batches, at most one
+ * result per session per progress window, so frequent
+ * events don't flood the bridge. Pending events are
+ * always flushed before the session's final result.
+ *****************************************************/
+class ProgressReporter {
+    static final String EVENT_KEY_VALIDATED = "keyValidated";
+    static final String EVENT_TOKEN_ACQUIRED = "tokenAcquired";
+    static final String EVENT_FLASH_STARTED = "flashStarted";
+    static final String EVENT_FLASH_FINISHED = "flashFinished";
+    static final String EVENT_POLL_ATTEMPT = "pollAttempt";
+    static final String EVENT_DEVICE_CLAIMED = "deviceClaimed";
+    static final String EVENT_POLL_RETRY = "pollRetry";
+    static final String EVENT_VERIFY_RETRY = "verifyRetry";
+
+    /*************************************
+     * One progress event. Attempt is only
+     * meaningful for poll attempts.
+     *************************************/
+    static class ProgressEvent {
+        final String name;
+        final long elapsedMs;
+        final int attempt;
+
+        ProgressEvent(String name, long elapsedMs, int attempt) {
+            this.name = name;
+            this.elapsedMs = elapsedMs;
+            this.attempt = attempt;
+        }
+    }
+
+    private static final ConcurrentHashMap<Integer, List<ProgressEvent>> sPending =
+            new ConcurrentHashMap<Integer, List<ProgressEvent>>();
+
+    static void report(int sessionId, String event) {
+        report(sessionId, event, 0);
+    }
+
+    static void report(final int sessionId, String event, int attempt) {
+        if (!PluginConfig.isProgressEventsEnabled()) {
+            return;
+        }
+
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null) {
+            return;
+        }
+
+        ProgressEvent progressEvent = new ProgressEvent(event,
+                SystemClock.elapsedRealtime() - session.getStartTimeMs(), attempt);
+
+        synchronized (ProgressReporter.class) {
+            List<ProgressEvent> pending = sPending.get(sessionId);
+            if (pending != null) {
+                // a flush is already scheduled for this window
+                pending.add(progressEvent);
+                return;
+            }
+
+            pending = new ArrayList<ProgressEvent>();
+            pending.add(progressEvent);
+            sPending.put(sessionId, pending);
+        }
+
+        TokenStatusPoller.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush(sessionId);
+            }
+        }, PluginConfig.getProgressWindowMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /*************************************
+     * sends the session's pending events right away
+     *************************************/
+    static void flush(int sessionId) {
+        List<ProgressEvent> pending;
+        synchronized (ProgressReporter.class) {
+            pending = sPending.remove(sessionId);
+        }
+        if (pending == null) {
+            return;
+        }
+
+        BlinkUpPluginResult progressResult = new BlinkUpPluginResult();
+        progressResult.setSessionId(sessionId);
+        progressResult.setState(BlinkUpPluginResult.STATE_STARTED);
+        progressResult.setStatusCode(BlinkUpPlugin.STATUS_PROGRESS);
+        progressResult.setProgressEvents(pending);
+        progressResult.sendResultsToCallback();
+    }
+}
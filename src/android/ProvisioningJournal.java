@@ -0,0 +1,420 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+package com.macadamian.blinkup;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*****************************************************
+ * Append-only file of every device provisioned on this
+ * phone, so device info survives a WebView reload that
+ * loses the result. Records are length prefixed binary,
+ * indexed in memory by time and by device ID (offsets
+ * only, records stay on disk). Appends, queries and
+ * exports all run on one background thread, in order.
+ *****************************************************/
+class ProvisioningJournal {
+    private static final String TAG = "ProvisioningJournal";
+
+    private static final String JOURNAL_FILE_NAME = "blinkup_journal.bin";
+    private static final byte RECORD_VERSION = 1;
+
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+    static final int DEFAULT_EXPORT_CHUNK_SIZE = 200;
+
+    /*************************************
+     * One provisioned device
+     *************************************/
+    static class Record {
+        final long recordedAtMs;
+        final String deviceId;
+        final String planId;
+        final String agentUrl;
+        final String verificationDate;
+
+        Record(long recordedAtMs, String deviceId, String planId, String agentUrl, String verificationDate) {
+            this.recordedAtMs = recordedAtMs;
+            this.deviceId = deviceId;
+            this.planId = planId;
+            this.agentUrl = agentUrl;
+            this.verificationDate = verificationDate;
+        }
+    }
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BlinkUpJournal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // only touched on the journal thread
+    private static File sFile;
+    private static DataOutputStream sOut;
+    private static long sLength;
+    private static final LongList sTimeIndexTimes = new LongList();
+    private static final LongList sTimeIndexOffsets = new LongList();
+    private static final HashMap<String, LongList> sDeviceIndex = new HashMap<String, LongList>();
+
+    /*************************************
+     * opens the journal and builds its indexes in the background
+     *************************************/
+    static synchronized void init(Context context) {
+        if (sFile != null) {
+            return;
+        }
+        sFile = new File(context.getApplicationContext().getFilesDir(), JOURNAL_FILE_NAME);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    static void append(String deviceId, String planId, String agentUrl, String verificationDate) {
+        if (sFile == null) {
+            Log.w(TAG, "Journal not initialized, not recording " + deviceId);
+            return;
+        }
+
+        final Record record = new Record(System.currentTimeMillis(), deviceId, planId, agentUrl, verificationDate);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(record);
+            }
+        });
+    }
+
+    /*************************************
+     * Sends one page of records, oldest first. Records of one
+     * device when deviceId is set, else all records in the time
+     * range. Pass the previous page's nextCursor to continue.
+     *************************************/
+    static void query(final int sessionId, final String deviceId, final long fromMs, final long toMs,
+                      final int cursor, final int pageSize) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Record> records = new ArrayList<Record>();
+                int nextCursor = readPage(deviceId, fromMs, toMs, cursor, pageSize, records);
+
+                BlinkUpPluginResult pageResult = new BlinkUpPluginResult();
+                pageResult.setSessionId(sessionId);
+                pageResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
+                pageResult.setStatusCode(BlinkUpPlugin.STATUS_JOURNAL_PAGE);
+                pageResult.setJournalRecords(records, nextCursor);
+                pageResult.sendResultsToCallback();
+            }
+        });
+    }
+
+    /*************************************
+     * Streams every record in the file in chunks, each
+     * its own result, followed by a completed result.
+     * Only one chunk is in memory at a time.
+     *************************************/
+    static void export(final int sessionId, final int chunkSize) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                exportChunks(sessionId, chunkSize);
+            }
+        });
+    }
+
+    private static void load() {
+        sLength = 0;
+        if (sFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(sFile)));
+                while (true) {
+                    int payloadLength = in.readInt();
+                    byte[] payload = new byte[payloadLength];
+                    in.readFully(payload);
+                    index(decode(payload), sLength);
+                    sLength += 4 + payloadLength;
+                }
+            } catch (EOFException e) {
+                // end of the journal, or a record cut short when the process died
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read journal", e);
+            } finally {
+                close(in);
+            }
+
+            truncateTo(sLength);
+        }
+    }
+
+    private static void write(Record record) {
+        try {
+            if (sOut == null) {
+                sOut = new DataOutputStream(new FileOutputStream(sFile, true));
+            }
+
+            byte[] payload = encode(record);
+            sOut.writeInt(payload.length);
+            sOut.write(payload);
+            sOut.flush();
+            index(record, sLength);
+            sLength += 4 + payload.length;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not record " + record.deviceId, e);
+            close(sOut);
+            sOut = null;
+            truncateTo(sLength);
+        }
+    }
+
+    private static int readPage(String deviceId, long fromMs, long toMs, int cursor, int pageSize,
+                                List<Record> records) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(sFile, "r");
+            if (deviceId != null) {
+                LongList offsets = sDeviceIndex.get(deviceId);
+                int size = (offsets != null) ? offsets.size() : 0;
+                for (int i = cursor; i < size; i++) {
+                    Record record = readAt(file, offsets.get(i));
+                    if (record.recordedAtMs < fromMs || record.recordedAtMs > toMs) {
+                        continue;
+                    }
+                    if (records.size() == pageSize) {
+                        return i;
+                    }
+                    records.add(record);
+                }
+                return -1;
+            }
+
+            int start = Math.max(cursor, sTimeIndexTimes.lowerBound(fromMs));
+            for (int i = start; i < sTimeIndexTimes.size() && sTimeIndexTimes.get(i) <= toMs; i++) {
+                if (records.size() == pageSize) {
+                    return i;
+                }
+                records.add(readAt(file, sTimeIndexOffsets.get(i)));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read journal", e);
+        } finally {
+            close(file);
+        }
+        return -1;
+    }
+
+    private static void exportChunks(int sessionId, int chunkSize) {
+        List<Record> chunk = new ArrayList<Record>(chunkSize);
+        DataInputStream in = null;
+        try {
+            if (sFile.exists()) {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(sFile)));
+                long offset = 0;
+                while (offset < sLength) {
+                    int payloadLength = in.readInt();
+                    byte[] payload = new byte[payloadLength];
+                    in.readFully(payload);
+                    offset += 4 + payloadLength;
+
+                    chunk.add(decode(payload));
+                    if (chunk.size() == chunkSize) {
+                        sendChunk(sessionId, chunk);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not export journal", e);
+            BlinkUpPluginResult.sendPluginErrorToCallback(sessionId, BlinkUpPlugin.ERROR_JOURNAL_IO);
+            return;
+        } finally {
+            close(in);
+        }
+
+        if (!chunk.isEmpty()) {
+            sendChunk(sessionId, chunk);
+        }
+
+        BlinkUpPluginResult completeResult = new BlinkUpPluginResult();
+        completeResult.setSessionId(sessionId);
+        completeResult.setState(BlinkUpPluginResult.STATE_COMPLETED);
+        completeResult.setStatusCode(BlinkUpPlugin.STATUS_JOURNAL_EXPORT_COMPLETE);
+        completeResult.sendResultsToCallback();
+    }
+
+    private static void sendChunk(int sessionId, List<Record> chunk) {
+        BlinkUpPluginResult chunkResult = new BlinkUpPluginResult();
+        chunkResult.setSessionId(sessionId);
+        chunkResult.setState(BlinkUpPluginResult.STATE_STARTED);
+        chunkResult.setStatusCode(BlinkUpPlugin.STATUS_JOURNAL_EXPORT_CHUNK);
+        chunkResult.setJournalRecords(chunk, -1);
+        chunkResult.sendResultsToCallback();
+        chunk.clear();
+    }
+
+    private static void index(Record record, long offset) {
+        sTimeIndexOffsets.insert(sTimeIndexTimes.insertSorted(record.recordedAtMs), offset);
+
+        LongList deviceOffsets = sDeviceIndex.get(record.deviceId);
+        if (deviceOffsets == null) {
+            deviceOffsets = new LongList();
+            sDeviceIndex.put(record.deviceId, deviceOffsets);
+        }
+        deviceOffsets.insert(deviceOffsets.size(), offset);
+    }
+
+    private static Record readAt(RandomAccessFile file, long offset) throws IOException {
+        file.seek(offset);
+        byte[] payload = new byte[file.readInt()];
+        file.readFully(payload);
+        return decode(payload);
+    }
+
+    private static byte[] encode(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_VERSION);
+        out.writeLong(record.recordedAtMs);
+        out.writeUTF(nullToEmpty(record.deviceId));
+        out.writeUTF(nullToEmpty(record.planId));
+        out.writeUTF(nullToEmpty(record.agentUrl));
+        out.writeUTF(nullToEmpty(record.verificationDate));
+        return bytes.toByteArray();
+    }
+
+    private static Record decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte version = in.readByte();
+        if (version != RECORD_VERSION) {
+            throw new IOException("Unknown journal record version " + version);
+        }
+        return new Record(in.readLong(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+    }
+
+    /*************************************
+     * drops a partially written record at the end
+     *************************************/
+    private static void truncateTo(long length) {
+        if (!sFile.exists() || sFile.length() == length) {
+            return;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(sFile, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not repair journal", e);
+        } finally {
+            close(file);
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return (value != null) ? value : "";
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.w(TAG, "", e);
+            }
+        }
+    }
+
+    /*************************************
+     * Growable array of primitive longs, keeps
+     * the indexes free of boxing
+     *************************************/
+    private static class LongList {
+        private long[] mValues = new long[64];
+        private int mSize = 0;
+
+        int size() {
+            return mSize;
+        }
+
+        long get(int index) {
+            return mValues[index];
+        }
+
+        void insert(int index, long value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+            mValues[index] = value;
+            mSize++;
+        }
+
+        /*************************************
+         * @return where the value was inserted, after any
+         * equal values. Usually the end, unless the clock
+         * was set back.
+         *************************************/
+        int insertSorted(long value) {
+            int index = mSize;
+            while (index > 0 && mValues[index - 1] > value) {
+                index--;
+            }
+            insert(index, value);
+            return index;
+        }
+
+        /*************************************
+         * @return first index whose value is >= the given one
+         *************************************/
+        int lowerBound(long value) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mValues[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+
+import com.macadamian.blinkup.util.JsonWriter;
+
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*****************************************************
+ * Token bucket in front of the BlinkUp server calls,
+ * one bucket per API key, so a burst of sessions or a
+ * batch refilling its token pool doesn't get the whole
+ * app throttled by the server. Calls over the rate wait
+ * in line instead of failing. Within a key, waiting
+ * calls are taken one session at a time in turn, so a
+ * busy session can't hold back the others' polls.
+ * Off unless configured, see PluginConfig. A key's
+ * bucket is dropped once it is full again and idle.
+ *****************************************************/
+class RateLimiter {
+    // option keys from BlinkUp.js
+    private static final String OPTION_RATE_PER_SECOND = "ratePerSecond";
+    private static final String OPTION_BURST = "burst";
+
+    static final double DEFAULT_RATE_PER_SECOND = 5;
+    static final int DEFAULT_BURST = 10;
+
+    // JSON keys of the getBlinkUpMetrics result
+    private static final String QUEUED_KEY = "queued";
+    private static final String MAX_QUEUED_KEY = "maxQueued";
+
+    // settings of a rateLimit option that doesn't set them all
+    static final RateLimiter DEFAULT = new RateLimiter(DEFAULT_RATE_PER_SECOND, DEFAULT_BURST);
+
+    private static final Map<String, Bucket> sBuckets = new HashMap<String, Bucket>();
+    private static final AtomicInteger sQueued = new AtomicInteger(0);
+    private static final AtomicInteger sMaxQueued = new AtomicInteger(0);
+
+    final double ratePerSecond;
+    final int burst;
+
+    RateLimiter(double ratePerSecond, int burst) {
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+    }
+
+    /*************************************
+     * @return the limiter with the settings in options
+     * changed, null if a setting is out of range
+     *************************************/
+    RateLimiter update(JSONObject options) {
+        double newRatePerSecond = options.optDouble(OPTION_RATE_PER_SECOND, ratePerSecond);
+        int newBurst = options.optInt(OPTION_BURST, burst);
+        if (!(newRatePerSecond > 0) || newBurst < 1) {
+            return null;
+        }
+        return new RateLimiter(newRatePerSecond, newBurst);
+    }
+
+    /*************************************
+     * Runs the call right away on the calling thread if
+     * the key has a token left and nothing waiting, else
+     * queues it behind the session's earlier calls and
+     * runs it on the executor once its turn comes.
+     * Without a limiter configured, calls always run
+     * right away.
+     *************************************/
+    static void submit(String keyHash, int sessionId, Executor executor, Runnable call) {
+        RateLimiter limiter = PluginConfig.getRateLimiter();
+        if (limiter == null) {
+            call.run();
+            return;
+        }
+
+        long nowNs = BlinkUpMetrics.startTimer();
+        while (true) {
+            Bucket bucket = getBucket(keyHash);
+            synchronized (bucket) {
+                if (bucket.mPruned) {
+                    // dropped meanwhile, the key has a new bucket
+                    continue;
+                }
+
+                bucket.refillLocked(limiter, nowNs);
+                if (!bucket.mLanes.isEmpty() || bucket.mTokens < 1) {
+                    ArrayDeque<Request> lane = bucket.mLanes.get(sessionId);
+                    if (lane == null) {
+                        lane = new ArrayDeque<Request>();
+                        bucket.mLanes.put(sessionId, lane);
+                    }
+                    lane.addLast(new Request(call, executor, nowNs));
+                    recordQueued(sQueued.incrementAndGet());
+                    bucket.scheduleDrainLocked(limiter);
+                    return;
+                }
+                bucket.mTokens -= 1;
+                bucket.schedulePruneLocked(limiter);
+                break;
+            }
+        }
+
+        BlinkUpMetrics.record(BlinkUpMetrics.Phase.RATE_LIMIT_WAIT, nowNs, BlinkUpMetrics.Outcome.SUCCESS);
+        call.run();
+    }
+
+    /*************************************
+     * drops the calls an ended session still has
+     * waiting, they would only reach the server for nobody
+     *************************************/
+    static void cancel(int sessionId) {
+        List<Bucket> buckets;
+        synchronized (sBuckets) {
+            buckets = new ArrayList<Bucket>(sBuckets.values());
+        }
+        for (Bucket bucket : buckets) {
+            synchronized (bucket) {
+                ArrayDeque<Request> lane = bucket.mLanes.remove(sessionId);
+                if (lane != null) {
+                    sQueued.addAndGet(-lane.size());
+                }
+            }
+        }
+    }
+
+    /*************************************
+     * @return an executor running calls on the
+     * activity's UI thread, for SDK calls that show UI
+     *************************************/
+    static Executor uiThread(final Activity activity) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                activity.runOnUiThread(runnable);
+            }
+        };
+    }
+
+    static void writeJson(JsonWriter writer, boolean reset) {
+        writer.beginObject();
+        int queued = sQueued.get();
+        writer.name(QUEUED_KEY).valueAsString(queued);
+        writer.name(MAX_QUEUED_KEY).valueAsString(reset ? sMaxQueued.getAndSet(queued) : sMaxQueued.get());
+        writer.endObject();
+    }
+
+    private static Bucket getBucket(String keyHash) {
+        // calls without a key, like polls resumed for an unknown key, share one bucket
+        String key = (keyHash != null) ? keyHash : "";
+        synchronized (sBuckets) {
+            Bucket bucket = sBuckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(key);
+                sBuckets.put(key, bucket);
+            }
+            return bucket;
+        }
+    }
+
+    /*************************************
+     * a full bucket with nothing waiting is the same as
+     * a new one, so it is dropped instead of kept forever
+     *************************************/
+    private static void prune(Bucket bucket) {
+        RateLimiter limiter = PluginConfig.getRateLimiter();
+        synchronized (sBuckets) {
+            synchronized (bucket) {
+                bucket.mPruneScheduled = false;
+                if (!bucket.mLanes.isEmpty() || bucket.mDrainScheduled) {
+                    return;
+                }
+                if (limiter != null) {
+                    bucket.refillLocked(limiter, BlinkUpMetrics.startTimer());
+                    if (bucket.mTokens < limiter.burst) {
+                        bucket.schedulePruneLocked(limiter);
+                        return;
+                    }
+                }
+                bucket.mPruned = true;
+                sBuckets.remove(bucket.mKey);
+            }
+        }
+    }
+
+    private static void recordQueued(int queued) {
+        int maxQueued = sMaxQueued.get();
+        while (queued > maxQueued && !sMaxQueued.compareAndSet(maxQueued, queued)) {
+            maxQueued = sMaxQueued.get();
+        }
+    }
+
+    /*************************************
+     * A call waiting for a token
+     *************************************/
+    private static class Request {
+        final Runnable call;
+        final Executor executor;
+        final long queuedAtNs;
+
+        Request(Runnable call, Executor executor, long queuedAtNs) {
+            this.call = call;
+            this.executor = executor;
+            this.queuedAtNs = queuedAtNs;
+        }
+    }
+
+    /*************************************
+     * Tokens and waiting calls of one API key. Lanes
+     * are kept in turn order, a lane goes to the back
+     * each time one of its calls is let through.
+     *************************************/
+    private static class Bucket implements Runnable {
+        private final String mKey;
+        private final LinkedHashMap<Integer, ArrayDeque<Request>> mLanes =
+                new LinkedHashMap<Integer, ArrayDeque<Request>>();
+        private double mTokens = -1;
+        private long mRefilledAtNs;
+        private boolean mDrainScheduled = false;
+        private boolean mPruneScheduled = false;
+        private boolean mPruned = false;
+
+        private final Runnable mPruneRunnable = new Runnable() {
+            @Override
+            public void run() {
+                prune(Bucket.this);
+            }
+        };
+
+        Bucket(String key) {
+            mKey = key;
+        }
+
+        private void refillLocked(RateLimiter limiter, long nowNs) {
+            if (mTokens < 0) {
+                // a new key starts with a full burst
+                mTokens = limiter.burst;
+            } else {
+                double elapsedSeconds = (nowNs - mRefilledAtNs) / (double) TimeUnit.SECONDS.toNanos(1);
+                mTokens = Math.min(limiter.burst, mTokens + elapsedSeconds * limiter.ratePerSecond);
+            }
+            mRefilledAtNs = nowNs;
+        }
+
+        private void scheduleDrainLocked(RateLimiter limiter) {
+            if (mDrainScheduled) {
+                return;
+            }
+            mDrainScheduled = true;
+            long delayNs = (long) Math.ceil(Math.max(0, 1 - mTokens) / limiter.ratePerSecond
+                    * TimeUnit.SECONDS.toNanos(1));
+            TokenStatusPoller.getScheduler().schedule(this, delayNs, TimeUnit.NANOSECONDS);
+        }
+
+        /*************************************
+         * checks back once the bucket should be full again
+         *************************************/
+        private void schedulePruneLocked(RateLimiter limiter) {
+            if (mPruneScheduled) {
+                return;
+            }
+            mPruneScheduled = true;
+            long delayNs = (long) Math.ceil(Math.max(0, limiter.burst - mTokens) / limiter.ratePerSecond
+                    * TimeUnit.SECONDS.toNanos(1));
+            TokenStatusPoller.getScheduler().schedule(mPruneRunnable, delayNs, TimeUnit.NANOSECONDS);
+        }
+
+        /*************************************
+         * lets through as many waiting calls as there are
+         * tokens, then waits for the next token if any are left
+         *************************************/
+        @Override
+        public void run() {
+            List<Request> ready = new ArrayList<Request>();
+            RateLimiter limiter = PluginConfig.getRateLimiter();
+            synchronized (this) {
+                mDrainScheduled = false;
+                if (limiter != null) {
+                    refillLocked(limiter, BlinkUpMetrics.startTimer());
+                }
+
+                // turned off meanwhile, nothing waits any more
+                while (!mLanes.isEmpty() && (limiter == null || mTokens >= 1)) {
+                    Iterator<Map.Entry<Integer, ArrayDeque<Request>>> lanes = mLanes.entrySet().iterator();
+                    Map.Entry<Integer, ArrayDeque<Request>> lane = lanes.next();
+                    lanes.remove();
+                    ready.add(lane.getValue().pollFirst());
+                    if (!lane.getValue().isEmpty()) {
+                        mLanes.put(lane.getKey(), lane.getValue());
+                    }
+                    if (limiter != null) {
+                        mTokens -= 1;
+                    }
+                }
+
+                if (!mLanes.isEmpty()) {
+                    scheduleDrainLocked(limiter);
+                } else if (limiter != null) {
+                    schedulePruneLocked(limiter);
+                } else {
+                    TokenStatusPoller.getScheduler().execute(mPruneRunnable);
+                }
+            }
+
+            for (Request request : ready) {
+                sQueued.decrementAndGet();
+                BlinkUpMetrics.record(BlinkUpMetrics.Phase.RATE_LIMIT_WAIT, request.queuedAtNs,
+                        BlinkUpMetrics.Outcome.SUCCESS);
+                request.executor.execute(request.call);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+
+import com.macadamian.blinkup.util.JsonWriter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*****************************************************
+ * State of a reprovisionBlinkUp session. The device's
+ * wifi is cleared while the plan ID is resolved and the
+ * setup token acquired, and the flash starts once the
+ * clear and the token request are both done. Records
+ * how long each stage took.
+ *****************************************************/
+class ReprovisionRun {
+    /*************************************
+     * Stages in the order they start, the first
+     * three overlap
+     *************************************/
+    enum Stage {
+        CLEAR("clearMs"),
+        PLAN_ID("planIdMs"),
+        TOKEN_ACQUIRE("tokenAcquireMs"),
+        FLASH("flashMs"),
+        DEVICE_INFO("deviceInfoMs");
+
+        private final String key;
+        Stage(String key) { this.key = key; }
+    }
+
+    private static final String TOTAL_KEY = "totalMs";
+
+    // the clear and the token request, both must be done before the flash
+    private static final int FLASH_PREREQUISITES = 2;
+
+    private final Activity mActivity;
+    private final BlinkUpBackend mController;
+    private final BlinkUpArguments mArgs;
+    private final int mSessionId;
+    private final WifiCredentialStore.Credentials mWifi;
+    private final long mStartNs = BlinkUpMetrics.startTimer();
+    private final AtomicLongArray mStageStartNs = new AtomicLongArray(Stage.values().length);
+    private final AtomicLongArray mStageEndNs = new AtomicLongArray(Stage.values().length);
+    private final AtomicInteger mPendingPrerequisites = new AtomicInteger(FLASH_PREREQUISITES);
+    private volatile String mPlanId;
+    private volatile SetupTokenPool.SetupToken mSetupToken;
+
+    ReprovisionRun(Activity activity, BlinkUpBackend controller, BlinkUpArguments args, int sessionId,
+                   WifiCredentialStore.Credentials wifi) {
+        mActivity = activity;
+        mController = controller;
+        mArgs = args;
+        mSessionId = sessionId;
+        mWifi = wifi;
+    }
+
+    Activity getActivity() { return mActivity; }
+    BlinkUpBackend getController() { return mController; }
+    BlinkUpArguments getArgs() { return mArgs; }
+    int getSessionId() { return mSessionId; }
+    // null unless the session is headless
+    WifiCredentialStore.Credentials getWifi() { return mWifi; }
+
+    String getPlanId() { return mPlanId; }
+    void setPlanId(String planId) { mPlanId = planId; }
+
+    /*************************************
+     * null if the token request failed, the flash
+     * then acquires one like a cold session
+     *************************************/
+    SetupTokenPool.SetupToken getSetupToken() { return mSetupToken; }
+    void setSetupToken(SetupTokenPool.SetupToken setupToken) { mSetupToken = setupToken; }
+
+    void begin(Stage stage) {
+        mStageStartNs.set(stage.ordinal(), BlinkUpMetrics.startTimer());
+    }
+
+    void end(Stage stage) {
+        mStageEndNs.compareAndSet(stage.ordinal(), 0, BlinkUpMetrics.startTimer());
+    }
+
+    /*************************************
+     * @return true for the caller finishing the last
+     * prerequisite of the flash, which must start it
+     *************************************/
+    boolean prerequisiteDone() {
+        return mPendingPrerequisites.decrementAndGet() == 0;
+    }
+
+    /*************************************
+     * @return duration of every stage that ended, and
+     * the time since the call, as a JSON object
+     *************************************/
+    String stagesJson() {
+        JsonWriter writer = new JsonWriter(128);
+        writer.beginObject();
+        for (Stage stage : Stage.values()) {
+            long startNs = mStageStartNs.get(stage.ordinal());
+            long endNs = mStageEndNs.get(stage.ordinal());
+            if (startNs != 0 && endNs != 0) {
+                writer.name(stage.key).valueAsString(TimeUnit.NANOSECONDS.toMillis(endNs - startNs));
+            }
+        }
+        writer.name(TOTAL_KEY).valueAsString(
+                TimeUnit.NANOSECONDS.toMillis(BlinkUpMetrics.startTimer() - mStartNs));
+        writer.endObject();
+        return writer.toString();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.util.Random;
+
+/*****************************************************
+ * When a session retries a failed step instead of
+ * failing. Each class of error has its own number of
+ * attempts and exponential backoff, and all retries of
+ * a session share one time budget. Only the failed step
+ * is retried: a poll timeout polls again, a failed key
+ * verification asks the server again. The device is
+ * never flashed again. Retries are off by default.
+ *****************************************************/
+class RetryPolicy {
+    // option keys from BlinkUp.js
+    private static final String OPTION_POLL_TIMEOUT = "pollTimeout";
+    private static final String OPTION_VERIFY_FAILURE = "verifyFailure";
+    private static final String OPTION_BUDGET_MS = "budgetMs";
+    private static final String OPTION_MAX_ATTEMPTS = "maxAttempts";
+    private static final String OPTION_BASE_DELAY_MS = "baseDelayMs";
+    private static final String OPTION_MAX_DELAY_MS = "maxDelayMs";
+
+    static final int DEFAULT_MAX_ATTEMPTS = 0;
+    static final long DEFAULT_BASE_DELAY_MS = 1000;
+    static final long DEFAULT_MAX_DELAY_MS = 30000;
+    static final long DEFAULT_BUDGET_MS = 120000;
+
+    enum ErrorClass {
+        POLL_TIMEOUT(ProgressReporter.EVENT_POLL_RETRY),
+        VERIFY_FAILURE(ProgressReporter.EVENT_VERIFY_RETRY);
+
+        final String progressEvent;
+        ErrorClass(String progressEvent) { this.progressEvent = progressEvent; }
+    }
+
+    /*************************************
+     * Attempts and backoff of one class of error
+     *************************************/
+    static class Rule {
+        final int maxAttempts;
+        final long baseDelayMs;
+        final long maxDelayMs;
+
+        Rule(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+            this.maxAttempts = maxAttempts;
+            this.baseDelayMs = baseDelayMs;
+            this.maxDelayMs = maxDelayMs;
+        }
+
+        /*************************************
+         * @return null if a setting is out of range
+         *************************************/
+        static Rule fromJson(JSONObject options, Rule current) {
+            if (options == null) {
+                return current;
+            }
+            Rule rule = new Rule(
+                    options.optInt(OPTION_MAX_ATTEMPTS, current.maxAttempts),
+                    options.optLong(OPTION_BASE_DELAY_MS, current.baseDelayMs),
+                    options.optLong(OPTION_MAX_DELAY_MS, current.maxDelayMs));
+            return (rule.maxAttempts >= 0 && rule.baseDelayMs >= 0 && rule.maxDelayMs >= rule.baseDelayMs)
+                    ? rule : null;
+        }
+    }
+
+    static final RetryPolicy DEFAULT = new RetryPolicy(
+            new Rule(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS),
+            new Rule(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS),
+            DEFAULT_BUDGET_MS);
+
+    private static final Random sRandom = new Random();
+
+    final Rule pollTimeout;
+    final Rule verifyFailure;
+    final long budgetMs;
+
+    RetryPolicy(Rule pollTimeout, Rule verifyFailure, long budgetMs) {
+        this.pollTimeout = pollTimeout;
+        this.verifyFailure = verifyFailure;
+        this.budgetMs = budgetMs;
+    }
+
+    /*************************************
+     * @return the policy with the settings in options
+     * changed, null if a setting is out of range
+     *************************************/
+    RetryPolicy update(JSONObject options) {
+        Rule newPollTimeout = Rule.fromJson(options.optJSONObject(OPTION_POLL_TIMEOUT), pollTimeout);
+        Rule newVerifyFailure = Rule.fromJson(options.optJSONObject(OPTION_VERIFY_FAILURE), verifyFailure);
+        long newBudgetMs = options.optLong(OPTION_BUDGET_MS, budgetMs);
+        if (newPollTimeout == null || newVerifyFailure == null || newBudgetMs < 0) {
+            return null;
+        }
+        return new RetryPolicy(newPollTimeout, newVerifyFailure, newBudgetMs);
+    }
+
+    Rule getRule(ErrorClass errorClass) {
+        return (errorClass == ErrorClass.POLL_TIMEOUT) ? pollTimeout : verifyFailure;
+    }
+
+    /*************************************
+     * Retries left to one session, or one device of a
+     * batch. Keeps the policy it was created with, so
+     * changing the configuration doesn't affect it.
+     *************************************/
+    static class Budget {
+        private final RetryPolicy mPolicy;
+        private final int[] mAttempts = new int[ErrorClass.values().length];
+        private long mFirstRetryMs = 0;
+
+        Budget(RetryPolicy policy) {
+            mPolicy = policy;
+        }
+
+        /*************************************
+         * @return how long to wait before retrying,
+         * -1 if out of attempts or out of time
+         *************************************/
+        synchronized long nextDelayMs(ErrorClass errorClass) {
+            Rule rule = mPolicy.getRule(errorClass);
+            int attempt = mAttempts[errorClass.ordinal()] + 1;
+            if (attempt > rule.maxAttempts) {
+                return -1;
+            }
+
+            // exponential, and random between half and all of it so retries of many devices spread out
+            long delayMs = rule.baseDelayMs << Math.min(attempt - 1, 20);
+            delayMs = Math.min(delayMs, rule.maxDelayMs);
+            delayMs = delayMs / 2 + (long) (sRandom.nextDouble() * (delayMs - delayMs / 2));
+
+            long now = SystemClock.elapsedRealtime();
+            if (mFirstRetryMs == 0) {
+                mFirstRetryMs = now;
+            }
+            if (now - mFirstRetryMs + delayMs > mPolicy.budgetMs) {
+                return -1;
+            }
+
+            mAttempts[errorClass.ordinal()] = attempt;
+            return delayMs;
+        }
+
+        synchronized int getAttempts(ErrorClass errorClass) {
+            return mAttempts[errorClass.ordinal()];
+        }
+    }
+
+    /*************************************
+     * @return how long the session must wait before
+     * retrying, -1 if it must fail instead. Tells
+     * javascript about the retry.
+     *************************************/
+    static long nextRetryDelayMs(int sessionId, ErrorClass errorClass) {
+        BlinkUpSession session = SessionRegistry.get(sessionId);
+        if (session == null) {
+            return -1;
+        }
+
+        Budget budget = session.getRetryBudget();
+        long delayMs = budget.nextDelayMs(errorClass);
+        if (delayMs >= 0) {
+            ProgressReporter.report(sessionId, errorClass.progressEvent, budget.getAttempts(errorClass));
+        }
+        return delayMs;
+    }
+}
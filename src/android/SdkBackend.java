@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import com.electricimp.blinkup.BlinkupController;
+import com.electricimp.blinkup.ServerErrorHandler;
+import com.electricimp.blinkup.TokenAcquireCallback;
+import com.electricimp.blinkup.TokenStatusCallback;
+
+import java.lang.ref.WeakReference;
+
+/*****************************************************
+ * Backend used in production, forwards every call
+ * to the Electric Imp SDK's BlinkupController
+ *****************************************************/
+class SdkBackend implements BlinkUpBackend {
+    // the token the SDK flashes next, see getCurrentToken
+    private String mCurrentToken;
+    // activity the SDK's UI was shown from, see dismissUi
+    private volatile WeakReference<Activity> mUiActivity;
+
+    @Override
+    public void setBlinkUpCompleteIntent(Intent intent) {
+        BlinkupController.getInstance().intentBlinkupComplete = intent;
+    }
+
+    @Override
+    public Intent getBlinkUpCompleteIntent() {
+        return BlinkupController.getInstance().intentBlinkupComplete;
+    }
+
+    @Override
+    public void setClearCompleteIntent(Intent intent) {
+        BlinkupController.getInstance().intentClearComplete = intent;
+    }
+
+    @Override
+    public void setPlanID(String planId) {
+        BlinkupController.getInstance().setPlanID(planId);
+    }
+
+    @Override
+    public void acquireSetupToken(Activity activity, String apiKey, final TokenAcquireCallback callback) {
+        BlinkupController.getInstance().acquireSetupToken(activity, apiKey, new TokenAcquireCallback() {
+            @Override
+            public void onSuccess(String planId, String token) {
+                synchronized (SdkBackend.this) {
+                    mCurrentToken = token;
+                }
+                callback.onSuccess(planId, token);
+            }
+
+            @Override
+            public void onError(String errorMsg) {
+                callback.onError(errorMsg);
+            }
+        });
+    }
+
+    @Override
+    public synchronized String getCurrentToken() {
+        return mCurrentToken;
+    }
+
+    @Override
+    public synchronized String takeFlashedToken() {
+        String token = mCurrentToken;
+        mCurrentToken = null;
+        return token;
+    }
+
+    @Override
+    public void selectWifiAndSetupDevice(Activity activity, String apiKey, ServerErrorHandler errorHandler) {
+        mUiActivity = new WeakReference<Activity>(activity);
+        BlinkupController.getInstance().selectWifiAndSetupDevice(activity, apiKey, errorHandler);
+    }
+
+    @Override
+    public void setupDevice(Activity activity, String ssid, String password, String apiKey,
+                            ServerErrorHandler errorHandler) {
+        mUiActivity = new WeakReference<Activity>(activity);
+        BlinkupController.getInstance().setupDevice(activity, ssid, password, apiKey, errorHandler);
+    }
+
+    @Override
+    public void clearDevice(Activity activity) {
+        mUiActivity = new WeakReference<Activity>(activity);
+        BlinkupController.getInstance().clearDevice(activity);
+    }
+
+    @Override
+    public void dismissUi() {
+        WeakReference<Activity> uiActivity = mUiActivity;
+        final Activity activity = (uiActivity != null) ? uiActivity.get() : null;
+        if (activity == null) {
+            return;
+        }
+
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // brings the app's activity back on top, which finishes the SDK's above it
+                Intent intent = new Intent(activity, activity.getClass());
+                intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+                activity.startActivity(intent);
+            }
+        });
+    }
+
+    @Override
+    public void getTokenStatus(TokenStatusCallback callback, long timeoutMs) {
+        BlinkupController.getInstance().getTokenStatus(callback, timeoutMs);
+    }
+
+    @Override
+    public void getTokenStatus(String token, TokenStatusCallback callback, long timeoutMs) {
+        BlinkupController.getInstance().getTokenStatus(token, callback, timeoutMs);
+    }
+
+    @Override
+    public void cancelTokenStatusPolling() {
+        BlinkupController.getInstance().cancelTokenStatusPolling();
+    }
+
+    @Override
+    public void warmUp() {
+        BlinkupController.getInstance();
+    }
+}
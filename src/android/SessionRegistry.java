@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import org.apache.cordova.CallbackContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*****************************************************
+ * Routes results to the callback of the call that
+ * started them, so overlapping calls from javascript
+ * don't steal each other's callbacks. Sessions are
+ * removed once their final result is delivered, and
+ * all of them when the webview is reset.
+ *****************************************************/
+class SessionRegistry {
+    // 0 is never a valid session id
+    static final int NO_SESSION = 0;
+
+    private static final ConcurrentHashMap<Integer, BlinkUpSession> sSessions =
+            new ConcurrentHashMap<Integer, BlinkUpSession>();
+    private static final AtomicInteger sNextId = new AtomicInteger(NO_SESSION);
+
+    // session whose flash or clear the SDK's completion intents belong to
+    private static final AtomicInteger sFlashOwner = new AtomicInteger(NO_SESSION);
+
+    // session whose SDK screens were shown last, and whether the app went behind them and came back
+    private static final AtomicInteger sUiOwner = new AtomicInteger(NO_SESSION);
+    private static volatile boolean sUiCovering = false;
+    private static volatile boolean sUiClosed = false;
+
+    static BlinkUpSession register(CallbackContext callbackContext, boolean provisioning) {
+        BlinkUpSession session = new BlinkUpSession(sNextId.incrementAndGet(), callbackContext, provisioning);
+        sSessions.put(session.getId(), session);
+        return session;
+    }
+
+    static BlinkUpSession get(int sessionId) {
+        return sSessions.get(sessionId);
+    }
+
+    static void remove(int sessionId) {
+        sSessions.remove(sessionId);
+        releaseFlash(sessionId);
+    }
+
+    /*************************************
+     * the SDK has a single completion intent for flashes
+     * and one for clears, the last ones set get every
+     * completion. So one session at a time flashes or
+     * clears, from the call until its completion arrives.
+     * A batch run keeps the slot until it stops.
+     *
+     * @return false if another session holds the slot
+     *************************************/
+    static boolean claimFlash(int sessionId) {
+        return sFlashOwner.compareAndSet(NO_SESSION, sessionId) || sFlashOwner.get() == sessionId;
+    }
+
+    static void releaseFlash(int sessionId) {
+        sUiOwner.compareAndSet(sessionId, NO_SESSION);
+        if (sFlashOwner.compareAndSet(sessionId, NO_SESSION)) {
+            BlinkUpPlugin.onFlashReleased();
+        }
+    }
+
+    static boolean isFlashing() {
+        return sFlashOwner.get() != NO_SESSION;
+    }
+
+    static boolean holdsFlash(int sessionId) {
+        return sFlashOwner.get() == sessionId;
+    }
+
+    /*************************************
+     * the SDK's wifi selection, flash and clear screens
+     * cover the app until they end. The SDK reports nothing
+     * when the operator backs out of them, the app only
+     * comes back to the front without a completion.
+     *************************************/
+    static void onSdkUiShown(int sessionId) {
+        sUiOwner.set(sessionId);
+        sUiCovering = false;
+        sUiClosed = false;
+    }
+
+    /*************************************
+     * the completion arrived, the screens closed normally
+     *************************************/
+    static void onSdkUiDone(int sessionId) {
+        sUiOwner.compareAndSet(sessionId, NO_SESSION);
+    }
+
+    static void onAppPaused() {
+        if (sUiOwner.get() != NO_SESSION) {
+            sUiCovering = true;
+        }
+    }
+
+    static void onAppResumed() {
+        if (sUiCovering && sUiOwner.get() != NO_SESSION) {
+            sUiClosed = true;
+        }
+    }
+
+    /*************************************
+     * @return the session holding the flash slot if its SDK
+     * screens were closed without a completion, which will
+     * never come, NO_SESSION if there is none
+     *************************************/
+    static int getAbandonedFlash() {
+        int owner = sFlashOwner.get();
+        if (owner == NO_SESSION || !sUiClosed || sUiOwner.get() != owner) {
+            return NO_SESSION;
+        }
+        return owner;
+    }
+
+    /*************************************
+     * provisioning sessions can be aborted, and so can
+     * a clear while it holds the flash slot
+     *************************************/
+    static boolean isAbortable(BlinkUpSession session) {
+        return session.isProvisioning() || holdsFlash(session.getId());
+    }
+
+    /*************************************
+     * @return sessions abortBlinkUp ends when given no session
+     *************************************/
+    static List<BlinkUpSession> getAbortableSessions() {
+        List<BlinkUpSession> sessions = new ArrayList<BlinkUpSession>();
+        for (BlinkUpSession session : sSessions.values()) {
+            if (isAbortable(session)) {
+                sessions.add(session);
+            }
+        }
+        return sessions;
+    }
+
+    /*************************************
+     * ends every session, so their pending work
+     * stops instead of completing for nobody
+     *************************************/
+    static void clear() {
+        for (BlinkUpSession session : sSessions.values()) {
+            session.terminate();
+        }
+        sSessions.clear();
+        sUiOwner.set(NO_SESSION);
+        if (sFlashOwner.getAndSet(NO_SESSION) != NO_SESSION) {
+            BlinkUpPlugin.onFlashReleased();
+        }
+    }
+}
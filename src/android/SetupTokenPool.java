@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.electricimp.blinkup.TokenAcquireCallback;
+
+/*****************************************************
+ * Setup token acquired ahead of the flash, so a session
+ * doesn't wait on the server round trip of
+ * acquireSetupToken. The SDK keeps only the token it
+ * acquired last and flashes that one, so a single token
+ * is kept, and only while no other one was acquired
+ * after it. The pool is paused from take() until the
+ * flash is done, a token arriving meanwhile would be
+ * flashed in place of the one the session was given.
+ * A token older than the TTL is replaced in the background.
+ *****************************************************/
+class SetupTokenPool {
+    private static final String TAG = "SetupTokenPool";
+
+    /*************************************
+     * A setup token and the plan it belongs to
+     *************************************/
+    static class SetupToken {
+        final String planId;
+        final String token;
+        final long acquiredAtMs;
+
+        SetupToken(String planId, String token, long acquiredAtMs) {
+            this.planId = planId;
+            this.token = token;
+            this.acquiredAtMs = acquiredAtMs;
+        }
+    }
+
+    private final Activity mActivity;
+    private final BlinkUpBackend mController;
+    private final String mApiKey;
+    private final long mTtlMs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private SetupToken mToken;
+    private boolean mAcquiring = false;
+    private boolean mPaused = false;
+    private boolean mClosed = false;
+
+    private final Runnable mEvictRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refill();
+        }
+    };
+
+    SetupTokenPool(Activity activity, BlinkUpBackend controller, String apiKey, long ttlMs) {
+        mActivity = activity;
+        mController = controller;
+        mApiKey = apiKey;
+        mTtlMs = ttlMs;
+    }
+
+    /*************************************
+     * Pauses the pool until resume(), a flash is about to start.
+     * @return the token the SDK will flash, or null if the
+     * pool is empty or the SDK acquired another one since
+     *************************************/
+    synchronized SetupToken take() {
+        mPaused = true;
+        SetupToken token = mToken;
+        mToken = null;
+        return isUsableLocked(token) ? token : null;
+    }
+
+    /*************************************
+     * Stops acquiring until resume(), for a flash
+     * that may not take its token from the pool
+     *************************************/
+    synchronized void pause() {
+        mPaused = true;
+    }
+
+    /*************************************
+     * The flash is done, acquires the next token
+     *************************************/
+    void resume() {
+        synchronized (this) {
+            mPaused = false;
+        }
+        refill();
+    }
+
+    /*************************************
+     * Drops the token if it expired or the SDK acquired
+     * another one, and starts acquiring a new one
+     *************************************/
+    void refill() {
+        synchronized (this) {
+            if (mClosed || mPaused || mAcquiring || isUsableLocked(mToken)) {
+                return;
+            }
+            mToken = null;
+            mAcquiring = true;
+        }
+
+        acquire();
+    }
+
+    String getApiKey() {
+        return mApiKey;
+    }
+
+    /*************************************
+     * Stops refilling and forgets the token
+     *************************************/
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            mToken = null;
+        }
+        mHandler.removeCallbacks(mEvictRunnable);
+    }
+
+    private void acquire() {
+        final Runnable acquire = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SetupTokenPool.this) {
+                    if (mClosed || mPaused) {
+                        // closed or a flash started while waiting for the rate limit
+                        mAcquiring = false;
+                        return;
+                    }
+                }
+
+                final long acquireStartNs = BlinkUpMetrics.startTimer();
+                final int traceCookie = Tracer.beginAsync(Tracer.TOKEN_ACQUIRE, SessionRegistry.NO_SESSION);
+                mController.acquireSetupToken(mActivity, mApiKey, new TokenAcquireCallback() {
+                    @Override
+                    public void onSuccess(String planId, String token) {
+                        BlinkUpMetrics.record(BlinkUpMetrics.Phase.TOKEN_ACQUIRE, acquireStartNs,
+                                BlinkUpMetrics.Outcome.SUCCESS);
+                        Tracer.endAsync(Tracer.TOKEN_ACQUIRE, SessionRegistry.NO_SESSION, traceCookie);
+                        ApiKeyCache.recordGood(mApiKey);
+                        synchronized (SetupTokenPool.this) {
+                            mAcquiring = false;
+                            if (mClosed || mPaused) {
+                                // the flash may have used it, it can't be handed out again
+                                return;
+                            }
+                            mToken = new SetupToken(planId, token, SystemClock.elapsedRealtime());
+                        }
+
+                        // check back when this token expires so it gets replaced
+                        mHandler.postDelayed(mEvictRunnable, mTtlMs);
+                    }
+
+                    @Override
+                    public void onError(String errorMsg) {
+                        BlinkUpMetrics.record(BlinkUpMetrics.Phase.TOKEN_ACQUIRE, acquireStartNs,
+                                BlinkUpMetrics.Outcome.ERROR);
+                        Tracer.endAsync(Tracer.TOKEN_ACQUIRE, SessionRegistry.NO_SESSION, traceCookie);
+                        synchronized (SetupTokenPool.this) {
+                            mAcquiring = false;
+                        }
+                        Log.e(TAG, errorMsg);
+                    }
+                });
+            }
+        };
+
+        // waits its turn with the sessions' server calls, then goes to the UI thread the SDK expects
+        RateLimiter.submit(ApiKeyCache.hash(mApiKey), SessionRegistry.NO_SESSION, TokenStatusPoller.getScheduler(),
+                new Runnable() {
+            @Override
+            public void run() {
+                mActivity.runOnUiThread(acquire);
+            }
+        });
+    }
+
+    private boolean isUsableLocked(SetupToken token) {
+        return token != null
+                && SystemClock.elapsedRealtime() - token.acquiredAtMs < mTtlMs
+                && TextUtils.equals(token.token, mController.getCurrentToken());
+    }
+}
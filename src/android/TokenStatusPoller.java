@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.os.SystemClock;
+
+import com.electricimp.blinkup.TokenStatusCallback;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*****************************************************
+ * Polls the Electric Imp server for the status of
+ * setup tokens, one poll per session, all driven by a
+ * single scheduler thread. Each attempt asks the SDK
+ * for a short window, and the pause between attempts
+ * grows from fast right after the flash to slow later.
+ * Each attempt waits its turn in the API key's
+ * RateLimiter. Polls can be cancelled individually.
+ *****************************************************/
+class TokenStatusPoller {
+    static final long ATTEMPT_WINDOW_MS = 1000;
+    static final long INITIAL_INTERVAL_MS = 250;
+    static final long MAX_INTERVAL_MS = 4000;
+    static final float BACKOFF_MULTIPLIER = 1.5f;
+
+    private static final ConcurrentHashMap<Integer, Poll> sPolls = new ConcurrentHashMap<Integer, Poll>();
+
+    private static final ScheduledExecutorService sScheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BlinkUpScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /*************************************
+     * shared with other plugin components that need
+     * timers, so the plugin only runs one thread for them
+     *************************************/
+    static ScheduledExecutorService getScheduler() {
+        return sScheduler;
+    }
+
+    /*************************************
+     * Starts polling for the session. Without a token the
+     * SDK's own polling of its current token is used instead,
+     * which can only be cancelled globally.
+     *************************************/
+    static void start(int sessionId, String token, String keyHash, long timeoutMs, TokenStatusCallback callback) {
+        Poll poll = new Poll(sessionId, token, keyHash, SystemClock.elapsedRealtime() + timeoutMs, callback);
+        Poll previous = sPolls.put(sessionId, poll);
+        if (previous != null) {
+            previous.mCancelled = true;
+        }
+
+        if (token == null) {
+            // the SDK's own polling starts from the calling thread, as before rate limiting
+            poll.run();
+        } else {
+            sScheduler.execute(poll);
+        }
+    }
+
+    /*************************************
+     * @return true if the session had a poll in progress
+     *************************************/
+    static boolean cancel(int sessionId) {
+        Poll poll = sPolls.remove(sessionId);
+        if (poll == null) {
+            return false;
+        }
+
+        poll.mCancelled = true;
+        if (poll.mToken == null) {
+            PluginConfig.getBackend().cancelTokenStatusPolling();
+        }
+        return true;
+    }
+
+    static boolean isPolling(int sessionId) {
+        return sPolls.containsKey(sessionId);
+    }
+
+    /*************************************
+     * One outstanding token. Runs an attempt
+     * each time it is scheduled.
+     *************************************/
+    private static class Poll implements Runnable {
+        private final int mSessionId;
+        private final String mToken;
+        private final String mKeyHash;
+        private final long mDeadlineMs;
+        private final TokenStatusCallback mCallback;
+
+        private volatile boolean mCancelled = false;
+        private long mNextIntervalMs = INITIAL_INTERVAL_MS;
+        private int mAttempts = 0;
+
+        private final Runnable mAttempt = new Runnable() {
+            @Override
+            public void run() {
+                attempt();
+            }
+        };
+
+        Poll(int sessionId, String token, String keyHash, long deadlineMs, TokenStatusCallback callback) {
+            mSessionId = sessionId;
+            mToken = token;
+            mKeyHash = keyHash;
+            mDeadlineMs = deadlineMs;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            RateLimiter.submit(mKeyHash, mSessionId, sScheduler, mAttempt);
+        }
+
+        /*************************************
+         * the window is what's left of the timeout once
+         * the rate limiter let the attempt through
+         *************************************/
+        private void attempt() {
+            if (mCancelled) {
+                return;
+            }
+
+            long remainingMs = mDeadlineMs - SystemClock.elapsedRealtime();
+            if (remainingMs <= 0) {
+                if (finish()) {
+                    mCallback.onTimeout();
+                }
+                return;
+            }
+
+            mAttempts++;
+            ProgressReporter.report(mSessionId, ProgressReporter.EVENT_POLL_ATTEMPT, mAttempts);
+            if (mToken == null) {
+                PluginConfig.getBackend().getTokenStatus(newAttemptCallback(), remainingMs);
+            } else {
+                PluginConfig.getBackend().getTokenStatus(mToken, newAttemptCallback(),
+                        Math.min(ATTEMPT_WINDOW_MS, remainingMs));
+            }
+        }
+
+        private TokenStatusCallback newAttemptCallback() {
+            return new TokenStatusCallback() {
+                @Override
+                public void onSuccess(JSONObject json) {
+                    if (finish()) {
+                        mCallback.onSuccess(json);
+                    }
+                }
+
+                @Override
+                public void onError(String errorMsg) {
+                    if (finish()) {
+                        mCallback.onError(errorMsg);
+                    }
+                }
+
+                @Override
+                public void onTimeout() {
+                    if (mToken == null) {
+                        // SDK polled for the whole timeout itself
+                        if (finish()) {
+                            mCallback.onTimeout();
+                        }
+                    } else {
+                        scheduleNextAttempt();
+                    }
+                }
+            };
+        }
+
+        private void scheduleNextAttempt() {
+            if (mCancelled) {
+                return;
+            }
+
+            long delayMs = mNextIntervalMs;
+            mNextIntervalMs = Math.min((long) (mNextIntervalMs * BACKOFF_MULTIPLIER), MAX_INTERVAL_MS);
+            sScheduler.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        /*************************************
+         * @return false if poll was cancelled, in which
+         * case the result must be dropped
+         *************************************/
+        private boolean finish() {
+            return !mCancelled && sPolls.remove(mSessionId, this);
+        }
+    }
+}
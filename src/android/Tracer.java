@@ -0,0 +1,265 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+
+import com.macadamian.blinkup.util.JsonWriter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*****************************************************
+ * Opt-in tracer for looking into a single slow session,
+ * where the aggregate metrics only show that one was
+ * slow. Spans are recorded with their session and thread
+ * into a fixed-size ring buffer, overwriting the oldest
+ * events, and mirrored as android.os.Trace sections for
+ * systrace and Perfetto. Recording is lock-free and
+ * allocates nothing. dumpBlinkUpTrace exports the buffer
+ * in the Chrome trace event format.
+ *
+ * Sync spans begin and end on the same thread. Async
+ * spans may end on another one, they are matched by the
+ * cookie beginAsync returns.
+ *****************************************************/
+class Tracer {
+    // span names, also used as android.os.Trace section names
+    static final String EXECUTE = "BlinkUp:execute";
+    static final String UI_HOP = "BlinkUp:uiHop";
+    static final String TOKEN_ACQUIRE = "BlinkUp:acquireSetupToken";
+    static final String FLASH = "BlinkUp:setupDevice";
+    static final String BLINKUP_COMPLETE_ACTIVITY = "BlinkUp:BlinkUpCompleteActivity";
+    static final String CLEAR_COMPLETE_ACTIVITY = "BlinkUp:ClearCompleteActivity";
+    static final String SEND_RESULT = "BlinkUp:sendResultsToCallback";
+
+    // events kept, a power of two so slots are a mask away
+    static final int CAPACITY = 8192;
+
+    static final int NO_COOKIE = 0;
+
+    private static final byte PHASE_BEGIN = 'B';
+    private static final byte PHASE_END = 'E';
+    private static final byte PHASE_ASYNC_BEGIN = 'b';
+    private static final byte PHASE_ASYNC_END = 'e';
+
+    private static final String CATEGORY = "blinkup";
+
+    // Chrome trace event format keys
+    private static final String KEY_TRACE_EVENTS = "traceEvents";
+    private static final String KEY_DISPLAY_TIME_UNIT = "displayTimeUnit";
+    private static final String KEY_OTHER_DATA = "otherData";
+    private static final String KEY_OVERWRITTEN = "overwrittenEvents";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_CATEGORY = "cat";
+    private static final String KEY_PHASE = "ph";
+    private static final String KEY_TIMESTAMP = "ts";
+    private static final String KEY_PID = "pid";
+    private static final String KEY_TID = "tid";
+    private static final String KEY_ID = "id";
+    private static final String KEY_ARGS = "args";
+    private static final String KEY_SESSION_ID = "sessionId";
+    private static final String THREAD_NAME_EVENT = "thread_name";
+    private static final String PHASE_METADATA = "M";
+
+    private static final AtomicInteger sNextCookie = new AtomicInteger(NO_COOKIE);
+
+    // null while tracing is off, kept when it's turned off so it can still be dumped
+    private static volatile Buffer sBuffer;
+    private static volatile boolean sEnabled = false;
+
+    /*************************************
+     * Fixed-size event storage, one slot per event
+     * spread over parallel arrays
+     *************************************/
+    private static class Buffer {
+        final AtomicLong mNext = new AtomicLong(0);
+        // sequence + 1 of the event a slot holds, 0 while it's being written
+        final AtomicLongArray mPublished = new AtomicLongArray(CAPACITY);
+        final long[] mTimestampNs = new long[CAPACITY];
+        final long[] mThreadIds = new long[CAPACITY];
+        final String[] mThreadNames = new String[CAPACITY];
+        final String[] mNames = new String[CAPACITY];
+        final int[] mSessionIds = new int[CAPACITY];
+        final int[] mCookies = new int[CAPACITY];
+        final byte[] mPhases = new byte[CAPACITY];
+    }
+
+    static synchronized void setEnabled(boolean enabled) {
+        if (enabled && sBuffer == null) {
+            sBuffer = new Buffer();
+        }
+        sEnabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    static void begin(String name, int sessionId) {
+        if (!sEnabled) {
+            return;
+        }
+        Trace.beginSection(name);
+        record(PHASE_BEGIN, name, sessionId, NO_COOKIE);
+    }
+
+    static void end(String name, int sessionId) {
+        if (!sEnabled) {
+            return;
+        }
+        record(PHASE_END, name, sessionId, NO_COOKIE);
+        Trace.endSection();
+    }
+
+    /*************************************
+     * @return cookie to pass to endAsync,
+     * NO_COOKIE if tracing is off
+     *************************************/
+    static int beginAsync(String name, int sessionId) {
+        if (!sEnabled) {
+            return NO_COOKIE;
+        }
+        int cookie = sNextCookie.incrementAndGet();
+        if (cookie == NO_COOKIE) {
+            cookie = sNextCookie.incrementAndGet();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(name, cookie);
+        }
+        record(PHASE_ASYNC_BEGIN, name, sessionId, cookie);
+        return cookie;
+    }
+
+    /*************************************
+     * ends a span started while tracing was on,
+     * does nothing for NO_COOKIE
+     *************************************/
+    static void endAsync(String name, int sessionId, int cookie) {
+        if (!sEnabled || cookie == NO_COOKIE) {
+            return;
+        }
+        record(PHASE_ASYNC_END, name, sessionId, cookie);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(name, cookie);
+        }
+    }
+
+    private static void record(byte phase, String name, int sessionId, int cookie) {
+        Buffer buffer = sBuffer;
+        long timestampNs = System.nanoTime();
+        Thread thread = Thread.currentThread();
+
+        long sequence = buffer.mNext.getAndIncrement();
+        int slot = (int) (sequence & (CAPACITY - 1));
+        buffer.mPublished.set(slot, 0);
+        buffer.mTimestampNs[slot] = timestampNs;
+        buffer.mThreadIds[slot] = thread.getId();
+        buffer.mThreadNames[slot] = thread.getName();
+        buffer.mNames[slot] = name;
+        buffer.mSessionIds[slot] = sessionId;
+        buffer.mCookies[slot] = cookie;
+        buffer.mPhases[slot] = phase;
+        buffer.mPublished.set(slot, sequence + 1);
+    }
+
+    /*************************************
+     * @return the buffered events as a Chrome trace
+     * event JSON object, oldest first. Events being
+     * written while dumping are left out.
+     *************************************/
+    static synchronized String dumpJson(boolean clear) {
+        JsonWriter writer = new JsonWriter(64 * 1024);
+        writer.beginObject();
+        writer.name(KEY_TRACE_EVENTS).beginArray();
+
+        Buffer buffer = sBuffer;
+        long overwritten = 0;
+        if (buffer != null) {
+            int pid = Process.myPid();
+            Map<Long, String> threadNames = new HashMap<Long, String>();
+            long end = buffer.mNext.get();
+            long start = Math.max(0, end - CAPACITY);
+            overwritten = start;
+
+            for (long sequence = start; sequence < end; sequence++) {
+                int slot = (int) (sequence & (CAPACITY - 1));
+                if (buffer.mPublished.get(slot) != sequence + 1) {
+                    continue;
+                }
+                long timestampNs = buffer.mTimestampNs[slot];
+                long threadId = buffer.mThreadIds[slot];
+                String threadName = buffer.mThreadNames[slot];
+                String name = buffer.mNames[slot];
+                int sessionId = buffer.mSessionIds[slot];
+                int cookie = buffer.mCookies[slot];
+                byte phase = buffer.mPhases[slot];
+                if (buffer.mPublished.get(slot) != sequence + 1) {
+                    // overwritten while it was read
+                    continue;
+                }
+
+                threadNames.put(threadId, threadName);
+                writer.beginObject();
+                writer.name(KEY_NAME).value(name);
+                writer.name(KEY_CATEGORY).value(CATEGORY);
+                writer.name(KEY_PHASE).value(String.valueOf((char) phase));
+                writer.name(KEY_TIMESTAMP).value(timestampNs / 1000);
+                writer.name(KEY_PID).value(pid);
+                writer.name(KEY_TID).value(threadId);
+                if (cookie != NO_COOKIE) {
+                    writer.name(KEY_ID).value(cookie);
+                }
+                writer.name(KEY_ARGS).beginObject();
+                writer.name(KEY_SESSION_ID).value(sessionId);
+                writer.endObject();
+                writer.endObject();
+            }
+
+            // names the threads in the viewer
+            for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+                writer.beginObject();
+                writer.name(KEY_NAME).value(THREAD_NAME_EVENT);
+                writer.name(KEY_PHASE).value(PHASE_METADATA);
+                writer.name(KEY_PID).value(pid);
+                writer.name(KEY_TID).value(thread.getKey());
+                writer.name(KEY_ARGS).beginObject();
+                writer.name(KEY_NAME).value(thread.getValue());
+                writer.endObject();
+                writer.endObject();
+            }
+
+            if (clear) {
+                // writers still holding the old buffer finish into it, unseen
+                sBuffer = sEnabled ? new Buffer() : null;
+            }
+        }
+
+        writer.endArray();
+        writer.name(KEY_DISPLAY_TIME_UNIT).value("ms");
+        writer.name(KEY_OTHER_DATA).beginObject();
+        writer.name(KEY_OVERWRITTEN).valueAsString(overwritten);
+        writer.endObject();
+        writer.endObject();
+        return writer.toString();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/*****************************************************
+ * Wifi credentials of the sites the app provisions at,
+ * saved from javascript so headless sessions can name
+ * a site instead of passing the password each time.
+ * Passwords are encrypted with an AES/GCM key that never
+ * leaves the Android Keystore, bound to their site and
+ * SSID, and stored in the preferences with their IV.
+ * Needs Android 6.0 (API 23).
+ *****************************************************/
+class WifiCredentialStore {
+    private static final String TAG = "WifiCredentialStore";
+
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "BlinkUpWifiCredentials";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_SIZE_BITS = 256;
+    private static final int GCM_TAG_BITS = 128;
+
+    private static final String SSID_KEY = "ssid";
+    private static final String IV_KEY = "iv";
+    private static final String PASSWORD_KEY = "password";
+
+    /*************************************
+     * Decrypted credentials, kept only as long
+     * as the session or batch using them
+     *************************************/
+    static class Credentials {
+        final String ssid;
+        final String password;
+
+        Credentials(String ssid, String password) {
+            this.ssid = ssid;
+            this.password = password;
+        }
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    static synchronized void save(Context context, String site, String ssid, String password)
+            throws GeneralSecurityException {
+        if (!isSupported()) {
+            throw new GeneralSecurityException("Android Keystore AES keys need API 23");
+        }
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getOrCreateKey());
+        cipher.updateAAD(associatedData(site, ssid));
+        byte[] encryptedPassword = cipher.doFinal(utf8(password));
+
+        JSONObject sites = loadSites(context);
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put(SSID_KEY, ssid);
+            entry.put(IV_KEY, Base64.encodeToString(cipher.getIV(), Base64.NO_WRAP));
+            entry.put(PASSWORD_KEY, Base64.encodeToString(encryptedPassword, Base64.NO_WRAP));
+            sites.put(site, entry);
+        } catch (JSONException e) {
+            throw new GeneralSecurityException(e.getMessage());
+        }
+        PreferencesHelper.setWifiCredentials(context, sites.toString());
+    }
+
+    /*************************************
+     * @return null if nothing is saved for the site
+     *************************************/
+    static synchronized Credentials load(Context context, String site) throws GeneralSecurityException {
+        JSONObject entry = loadSites(context).optJSONObject(site);
+        if (entry == null || !isSupported()) {
+            return null;
+        }
+
+        String ssid = entry.optString(SSID_KEY, null);
+        byte[] iv = Base64.decode(entry.optString(IV_KEY, ""), Base64.NO_WRAP);
+        byte[] encryptedPassword = Base64.decode(entry.optString(PASSWORD_KEY, ""), Base64.NO_WRAP);
+
+        KeyStore keyStore = loadKeyStore();
+        SecretKey key = (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+        if (key == null) {
+            // key was wiped (device reset, app data cleared), the password can't be recovered
+            Log.w(TAG, "Keystore key missing, wifi credentials of " + site + " unusable");
+            return null;
+        }
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        cipher.updateAAD(associatedData(site, ssid));
+        return new Credentials(ssid, fromUtf8(cipher.doFinal(encryptedPassword)));
+    }
+
+    /*************************************
+     * @return false if nothing was saved for the site
+     *************************************/
+    static synchronized boolean forget(Context context, String site) {
+        JSONObject sites = loadSites(context);
+        if (sites.remove(site) == null) {
+            return false;
+        }
+        PreferencesHelper.setWifiCredentials(context, sites.length() > 0 ? sites.toString() : null);
+        return true;
+    }
+
+    private static JSONObject loadSites(Context context) {
+        String sitesJson = PreferencesHelper.getWifiCredentials(context);
+        if (sitesJson != null) {
+            try {
+                return new JSONObject(sitesJson);
+            } catch (JSONException e) {
+                Log.w(TAG, "Discarding unreadable wifi credentials", e);
+            }
+        }
+        return new JSONObject();
+    }
+
+    private static KeyStore loadKeyStore() throws GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+        try {
+            keyStore.load(null);
+        } catch (IOException e) {
+            throw new GeneralSecurityException(e.getMessage());
+        }
+        return keyStore;
+    }
+
+    private static SecretKey getOrCreateKey() throws GeneralSecurityException {
+        KeyStore keyStore = loadKeyStore();
+
+        SecretKey key = (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+        if (key != null) {
+            return key;
+        }
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(KEY_SIZE_BITS)
+                .build());
+        return keyGenerator.generateKey();
+    }
+
+    // a password can't be moved to another site or SSID by editing the preferences
+    private static byte[] associatedData(String site, String ssid) {
+        return utf8(site + "\n" + ssid);
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String fromUtf8(byte[] value) {
+        try {
+            return new String(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
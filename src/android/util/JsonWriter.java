@@ -0,0 +1,152 @@
+package com.macadamian.blinkup.util;
+
+/**
+ * Minimal streaming JSON writer appending to a reusable buffer,
+ * so results can be serialized without building a JSONObject tree.
+ * Call reset() before writing a new document.
+ */
+public class JsonWriter {
+    private final StringBuilder mBuilder;
+    private boolean mFirst = true;
+    private boolean mAfterName = false;
+
+    public JsonWriter(int capacity) {
+        mBuilder = new StringBuilder(capacity);
+    }
+
+    public JsonWriter reset() {
+        mBuilder.setLength(0);
+        mFirst = true;
+        mAfterName = false;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        mBuilder.append('{');
+        mFirst = true;
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        mBuilder.append('}');
+        mFirst = false;
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        mBuilder.append('[');
+        mFirst = true;
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        mBuilder.append(']');
+        mFirst = false;
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        if (!mFirst) {
+            mBuilder.append(',');
+        }
+        writeString(name);
+        mBuilder.append(':');
+        mAfterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        beforeValue();
+        if (value == null) {
+            mBuilder.append("null");
+        } else {
+            writeString(value);
+        }
+        mFirst = false;
+        return this;
+    }
+
+    /**
+     * writes a JSON number, for formats other than the plugin's results
+     */
+    public JsonWriter value(long value) {
+        beforeValue();
+        mBuilder.append(value);
+        mFirst = false;
+        return this;
+    }
+
+    /**
+     * writes a number as a JSON string, the plugin's result format for numbers
+     */
+    public JsonWriter valueAsString(long value) {
+        beforeValue();
+        mBuilder.append('"').append(value).append('"');
+        mFirst = false;
+        return this;
+    }
+
+    /**
+     * writes an already serialized JSON value as is
+     */
+    public JsonWriter rawValue(String json) {
+        beforeValue();
+        mBuilder.append(json);
+        mFirst = false;
+        return this;
+    }
+
+    /**
+     * writes the name and value, or nothing if value is null, like JSONObject.put does
+     */
+    public JsonWriter optField(String name, String value) {
+        if (value != null) {
+            name(name).value(value);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return mBuilder.toString();
+    }
+
+    private void beforeValue() {
+        if (mAfterName) {
+            mAfterName = false;
+        } else if (!mFirst) {
+            mBuilder.append(',');
+        }
+    }
+
+    private void writeString(String value) {
+        mBuilder.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':  mBuilder.append("\\\""); break;
+                case '\\': mBuilder.append("\\\\"); break;
+                case '\n': mBuilder.append("\\n"); break;
+                case '\r': mBuilder.append("\\r"); break;
+                case '\t': mBuilder.append("\\t"); break;
+                case '\b': mBuilder.append("\\b"); break;
+                case '\f': mBuilder.append("\\f"); break;
+                default:
+                    // control characters, and line separators that break javascript string literals
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        mBuilder.append("\\u");
+                        String hex = Integer.toHexString(c);
+                        for (int pad = hex.length(); pad < 4; pad++) {
+                            mBuilder.append('0');
+                        }
+                        mBuilder.append(hex);
+                    } else {
+                        mBuilder.append(c);
+                    }
+            }
+        }
+        mBuilder.append('"');
+    }
+}
@@ -1,29 +1,101 @@
 package com.macadamian.blinkup.util;
 
-import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
 
 public class PreferencesHelper {
     private static final String PREFERENCES_NAME = "BlinkUpPlugin";
     private static final String PLAN_ID_KEY = "PlanId";
+    private static final String PLAN_IDS_KEY = "PlanIds";
+    private static final String API_KEY_VERDICTS_KEY = "ApiKeyVerdicts";
+    private static final String IN_FLIGHT_POLLS_KEY = "InFlightPolls";
+    private static final String PENDING_LOOKUPS_KEY = "PendingLookups";
+    private static final String WIFI_CREDENTIALS_KEY = "WifiCredentials";
+    private static final String FLASH_BASELINE_MS_KEY = "FlashBaselineMs";
 
-    static private String getStringPreference(Activity activity, String key, String defVal) {
-        SharedPreferences preferences = activity.getSharedPreferences(PREFERENCES_NAME, Activity.MODE_PRIVATE);
+    static private String getStringPreference(Context context, String key, String defVal) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
         return preferences.getString(key, defVal);
     }
 
-    static private void setStringPreference(Activity activity, String key, String val) {
-        SharedPreferences preferences = activity.getSharedPreferences(PREFERENCES_NAME, Activity.MODE_PRIVATE);
+    static private void setStringPreference(Context context, String key, String val) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
         SharedPreferences.Editor editor = preferences.edit();
         editor.putString(key, val);
         editor.apply();
     }
 
-    static public String getPlanId(Activity activity) {
-        return getStringPreference(activity, PLAN_ID_KEY, null);
+    static private long getLongPreference(Context context, String key, long defVal) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return preferences.getLong(key, defVal);
     }
 
-    static public void setPlanId(Activity activity, String planIdKey) {
-        setStringPreference(activity, PLAN_ID_KEY, planIdKey);
+    static private void setLongPreference(Context context, String key, long val) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putLong(key, val);
+        editor.apply();
+    }
+
+    static public String getPlanId(Context context) {
+        return getStringPreference(context, PLAN_ID_KEY, null);
+    }
+
+    static public void setPlanId(Context context, String planIdKey) {
+        setStringPreference(context, PLAN_ID_KEY, planIdKey);
+    }
+
+    static public String getPlanIds(Context context) {
+        return getStringPreference(context, PLAN_IDS_KEY, null);
+    }
+
+    static public void setPlanIds(Context context, String planIdsJson) {
+        setStringPreference(context, PLAN_IDS_KEY, planIdsJson);
+    }
+
+    static public String getApiKeyVerdicts(Context context) {
+        return getStringPreference(context, API_KEY_VERDICTS_KEY, null);
+    }
+
+    static public void setApiKeyVerdicts(Context context, String verdictsJson) {
+        setStringPreference(context, API_KEY_VERDICTS_KEY, verdictsJson);
+    }
+
+    static public String getInFlightPolls(Context context) {
+        return getStringPreference(context, IN_FLIGHT_POLLS_KEY, null);
+    }
+
+    static public void setInFlightPolls(Context context, String pollsJson) {
+        setStringPreference(context, IN_FLIGHT_POLLS_KEY, pollsJson);
+    }
+
+    static public String getPendingLookups(Context context) {
+        return getStringPreference(context, PENDING_LOOKUPS_KEY, null);
+    }
+
+    static public void setPendingLookups(Context context, String lookupsJson) {
+        setStringPreference(context, PENDING_LOOKUPS_KEY, lookupsJson);
+    }
+
+    // a killed run of the app left polls or lookups to resume
+    static public boolean hasInterruptedWork(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return preferences.contains(IN_FLIGHT_POLLS_KEY) || preferences.contains(PENDING_LOOKUPS_KEY);
+    }
+
+    static public String getWifiCredentials(Context context) {
+        return getStringPreference(context, WIFI_CREDENTIALS_KEY, null);
+    }
+
+    static public void setWifiCredentials(Context context, String credentialsJson) {
+        setStringPreference(context, WIFI_CREDENTIALS_KEY, credentialsJson);
+    }
+
+    static public long getFlashBaselineMs(Context context) {
+        return getLongPreference(context, FLASH_BASELINE_MS_KEY, -1);
+    }
+
+    static public void setFlashBaselineMs(Context context, long baselineMs) {
+        setLongPreference(context, FLASH_BASELINE_MS_KEY, baselineMs);
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*****************************************************
+ * Parsing and checking the arguments javascript passes
+ * to startBlinkUp and invokeBlinkUp, as execute() does
+ * before anything else. Cordova has already turned the
+ * arguments into a JSONArray by then.
+ *****************************************************/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArgumentsBenchmark {
+    private static final String API_KEY = "0123456789abcdef0123456789abcdef";
+
+    private JSONArray mStartArgs;
+    private JSONArray mHeadlessStartArgs;
+    private JSONArray mInvokeArgs;
+
+    @Setup
+    public void setUp() throws JSONException {
+        mStartArgs = new JSONArray("[\"" + API_KEY + "\", \"\", false, 30000]");
+        mHeadlessStartArgs = new JSONArray("[\"" + API_KEY + "\", \"\", false, 30000,"
+                + " {\"ssid\": \"network\", \"password\": \"password\"}]");
+        mInvokeArgs = new JSONArray("[\"" + API_KEY + "\", \"\", 30000, false]");
+    }
+
+    @Benchmark
+    public BlinkUpArguments startBlinkUp() throws JSONException {
+        return BlinkUpArguments.fromStartBlinkUp(mStartArgs);
+    }
+
+    @Benchmark
+    public boolean startHeadlessBlinkUp() throws JSONException {
+        return BlinkUpArguments.fromStartBlinkUp(mHeadlessStartArgs).wifiValid();
+    }
+
+    @SuppressWarnings("deprecation")
+    @Benchmark
+    public BlinkUpArguments invokeBlinkUp() throws JSONException {
+        return BlinkUpArguments.fromInvokeBlinkUp(mInvokeArgs);
+    }
+
+    @Benchmark
+    public boolean apiKeyFormatValid() {
+        return BlinkUpArguments.apiKeyFormatValid(API_KEY);
+    }
+
+    @Benchmark
+    public boolean apiKeyFormatInvalid() {
+        return BlinkUpArguments.apiKeyFormatValid("0123456789abcdef0123456789abcde!");
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import com.electricimp.blinkup.TokenStatusCallback;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*****************************************************
+ * One poll for device info, from TokenStatusPoller.start
+ * through the rate limiter and the SDK to the session's
+ * callback. The stubbed SDK answers right away, so what
+ * is measured is the plugin's own hand-offs between
+ * threads, with and without a rate limiter that never
+ * makes a call wait.
+ *****************************************************/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PollerBenchmark {
+    private static final String TOKEN = "benchmark-token";
+    private static final String KEY_HASH = "benchmark-key";
+    private static final long TIMEOUT_MS = 1000;
+    private static final long AWAIT_MS = 5000;
+
+    @Param({"false", "true"})
+    public boolean rateLimited;
+
+    private final AtomicInteger mNextSessionId = new AtomicInteger(0);
+
+    @Setup
+    public void setUp() throws JSONException {
+        JSONObject options = new JSONObject();
+        options.put("rateLimit", rateLimited
+                ? new JSONObject("{\"ratePerSecond\": 1e9, \"burst\": 1000000}") : (Object) false);
+        if (!PluginConfig.update(options)) {
+            throw new IllegalStateException("Invalid options " + options);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws JSONException {
+        PluginConfig.update(new JSONObject("{\"rateLimit\": false}"));
+    }
+
+    @Benchmark
+    public String poll() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final String[] outcome = new String[1];
+        TokenStatusPoller.start(mNextSessionId.incrementAndGet(), TOKEN, KEY_HASH, TIMEOUT_MS,
+                new TokenStatusCallback() {
+                    @Override
+                    public void onSuccess(JSONObject json) {
+                        outcome[0] = "success";
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onError(String errorMsg) {
+                        outcome[0] = errorMsg;
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onTimeout() {
+                        outcome[0] = "timeout";
+                        done.countDown();
+                    }
+                });
+        if (!done.await(AWAIT_MS, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("No poll result within " + AWAIT_MS + "ms");
+        }
+        return outcome[0];
+    }
+}
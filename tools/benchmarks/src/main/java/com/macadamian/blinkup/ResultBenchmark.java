@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*****************************************************
+ * Building the results sent to javascript: reading the
+ * device info the SDK reports, serializing, and the
+ * whole send to a session's callback.
+ *****************************************************/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultBenchmark {
+    private JSONObject mDeviceInfo;
+    private BlinkUpPluginResult mDeviceInfoResult;
+    private BlinkUpPluginResult mErrorResult;
+    private BlinkUpPluginResult mStartedResult;
+    private int mSessionId;
+
+    // stands in for the javascript bridge, keeps the last result reachable
+    private volatile PluginResult mLastSent;
+
+    @Setup
+    public void setUp() throws JSONException {
+        // as the SDK's getTokenStatus reports it
+        mDeviceInfo = new JSONObject();
+        mDeviceInfo.put("impee_id", "2000b3a2c8d9e1f0 ");
+        mDeviceInfo.put("plan_id", "0123456789abcdef");
+        mDeviceInfo.put("agent_url", "https://agent.electricimp.com/AbCdEfGhIjKl");
+        mDeviceInfo.put("claimed_at", "2015-07-21T18:12:44Z");
+
+        CallbackContext callbackContext = new CallbackContext("ResultBenchmark", new CordovaWebView() {
+            @Override
+            public void sendPluginResult(PluginResult cr, String callbackId) {
+                mLastSent = cr;
+            }
+        });
+        mSessionId = SessionRegistry.register(callbackContext, false).getId();
+
+        mDeviceInfoResult = newResult(BlinkUpPluginResult.STATE_COMPLETED, BlinkUpPlugin.STATUS_DEVICE_CONNECTED);
+        mDeviceInfoResult.setDeviceInfoFromJson(mDeviceInfo);
+        mErrorResult = newResult(BlinkUpPluginResult.STATE_ERROR, 0);
+        mErrorResult.setPluginError(BlinkUpPlugin.ERROR_PROCESS_TIMED_OUT);
+        // started results keep the session open, so every send is delivered
+        mStartedResult = newResult(BlinkUpPluginResult.STATE_STARTED, BlinkUpPlugin.STATUS_GATHERING_INFO);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SessionRegistry.remove(mSessionId);
+    }
+
+    @Benchmark
+    public BlinkUpPluginResult setDeviceInfoFromJson() {
+        BlinkUpPluginResult result = new BlinkUpPluginResult();
+        result.setDeviceInfoFromJson(mDeviceInfo);
+        return result;
+    }
+
+    @Benchmark
+    public String toJsonDeviceInfo() {
+        return mDeviceInfoResult.toJson();
+    }
+
+    @Benchmark
+    public String toJsonError() {
+        return mErrorResult.toJson();
+    }
+
+    @Benchmark
+    public PluginResult sendResultsToCallback() {
+        mStartedResult.sendResultsToCallback();
+        return mLastSent;
+    }
+
+    private BlinkUpPluginResult newResult(String state, int statusCode) {
+        BlinkUpPluginResult result = new BlinkUpPluginResult();
+        result.setSessionId(mSessionId);
+        result.setState(state);
+        result.setStatusCode(statusCode);
+        return result;
+    }
+}
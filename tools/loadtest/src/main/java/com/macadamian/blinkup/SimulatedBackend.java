@@ -0,0 +1,426 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import com.electricimp.blinkup.ServerErrorHandler;
+import com.electricimp.blinkup.TokenAcquireCallback;
+import com.electricimp.blinkup.TokenStatusCallback;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*****************************************************
+ * Answers the SDK calls locally with configurable
+ * latencies, error rates and devices that never get
+ * claimed, so the plugin can be driven through
+ * thousands of sessions without imps or the Electric
+ * Imp servers. tools/loadtest drives it through the
+ * plugin on a plain JVM, against stubbed android and
+ * Cordova classes. It is not part of the plugin apps
+ * install, see Simulators.
+ *****************************************************/
+class SimulatedBackend implements BlinkUpBackend {
+    static final String SIMULATED_PLAN_ID = "simulated-plan";
+    static final String ERROR_TOKEN_ACQUIRE = "Simulated token acquire failure";
+    static final String ERROR_SERVER = "Simulated server error";
+    static final String ERROR_UNKNOWN_TOKEN = "Unknown setup token";
+    private static final long ACQUIRE_WAIT_MS = 1;
+
+    /*************************************
+     * Latencies are in milliseconds and vary by +/- jitter
+     * (a fraction of the latency), rates are between 0 and 1
+     *************************************/
+    static class Settings {
+        // setting keys, see Simulators
+        private static final String OPTION_TOKEN_ACQUIRE_MS = "tokenAcquireMs";
+        private static final String OPTION_FLASH_MS = "flashMs";
+        private static final String OPTION_WIFI_ENTRY_MS = "wifiEntryMs";
+        private static final String OPTION_CLAIM_DELAY_MS = "claimDelayMs";
+        private static final String OPTION_JITTER = "jitter";
+        private static final String OPTION_ACQUIRE_ERROR_RATE = "acquireErrorRate";
+        private static final String OPTION_SERVER_ERROR_RATE = "serverErrorRate";
+        private static final String OPTION_UNCLAIMED_RATE = "unclaimedRate";
+        private static final String OPTION_SEED = "seed";
+        private static final String OPTION_COMPLETE_WITH_ACTIVITY = "completeWithActivity";
+
+        static final long DEFAULT_TOKEN_ACQUIRE_MS = 300;
+        static final long DEFAULT_FLASH_MS = 5000;
+        static final long DEFAULT_CLAIM_DELAY_MS = 2000;
+        static final double DEFAULT_JITTER = 0.25;
+
+        final long tokenAcquireMs;
+        final long flashMs;
+        // operator time in the wifi selection, skipped by headless flashes
+        final long wifiEntryMs;
+        final long claimDelayMs;
+        final double jitter;
+        final double acquireErrorRate;
+        final double serverErrorRate;
+        final double unclaimedRate;
+        final long seed;
+
+        // start the completion activities like the SDK instead of calling CompletionHandler
+        final boolean completeWithActivity;
+
+        Settings(long tokenAcquireMs, long flashMs, long wifiEntryMs, long claimDelayMs, double jitter,
+                 double acquireErrorRate, double serverErrorRate, double unclaimedRate, long seed,
+                 boolean completeWithActivity) {
+            this.tokenAcquireMs = tokenAcquireMs;
+            this.flashMs = flashMs;
+            this.wifiEntryMs = wifiEntryMs;
+            this.claimDelayMs = claimDelayMs;
+            this.jitter = jitter;
+            this.acquireErrorRate = acquireErrorRate;
+            this.serverErrorRate = serverErrorRate;
+            this.unclaimedRate = unclaimedRate;
+            this.seed = seed;
+            this.completeWithActivity = completeWithActivity;
+        }
+
+        /*************************************
+         * @return null if a setting is out of range
+         *************************************/
+        static Settings fromJson(JSONObject options) {
+            Settings settings = new Settings(
+                    options.optLong(OPTION_TOKEN_ACQUIRE_MS, DEFAULT_TOKEN_ACQUIRE_MS),
+                    options.optLong(OPTION_FLASH_MS, DEFAULT_FLASH_MS),
+                    options.optLong(OPTION_WIFI_ENTRY_MS, 0),
+                    options.optLong(OPTION_CLAIM_DELAY_MS, DEFAULT_CLAIM_DELAY_MS),
+                    options.optDouble(OPTION_JITTER, DEFAULT_JITTER),
+                    options.optDouble(OPTION_ACQUIRE_ERROR_RATE, 0),
+                    options.optDouble(OPTION_SERVER_ERROR_RATE, 0),
+                    options.optDouble(OPTION_UNCLAIMED_RATE, 0),
+                    options.optLong(OPTION_SEED, System.nanoTime()),
+                    options.optBoolean(OPTION_COMPLETE_WITH_ACTIVITY, false));
+            return settings.isValid() ? settings : null;
+        }
+
+        boolean isValid() {
+            return tokenAcquireMs >= 0 && flashMs >= 0 && wifiEntryMs >= 0 && claimDelayMs >= 0
+                    && isFraction(jitter) && isFraction(acquireErrorRate)
+                    && isFraction(serverErrorRate) && isFraction(unclaimedRate);
+        }
+
+        private static boolean isFraction(double value) {
+            return value >= 0 && value <= 1;
+        }
+    }
+
+    // the SDK calls back on a single thread, so does the simulation
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BlinkUpSimulator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Settings mSettings;
+    private final Random mRandom;
+    private final AtomicLong mNextToken = new AtomicLong(0);
+    // acquireSetupToken calls not answered yet, a flash ends only once they are
+    private final AtomicInteger mAcquiring = new AtomicInteger(0);
+
+    // claim time of each flashed token, UNCLAIMED if its device never shows up
+    private static final long UNCLAIMED = Long.MAX_VALUE;
+    private final ConcurrentHashMap<String, Long> mClaimAtNs = new ConcurrentHashMap<String, Long>();
+
+    private volatile Intent mBlinkUpCompleteIntent;
+    private volatile Intent mClearCompleteIntent;
+    private volatile String mPlanId;
+    // like the SDK, a flash uses the token acquired last
+    private volatile String mLastToken;
+    // mLastToken unless a flash took it, see takeFlashedToken
+    private String mCurrentToken;
+    private String mFlashedToken;
+    private volatile ScheduledFuture<?> mGlobalPoll;
+    // flash or clear in progress, see dismissUi
+    private volatile ScheduledFuture<?> mFlash;
+
+    SimulatedBackend(Settings settings) {
+        mSettings = settings;
+        mRandom = new Random(settings.seed);
+    }
+
+    /*************************************
+     * stops the simulation thread, pending callbacks are dropped
+     *************************************/
+    void shutdown() {
+        mScheduler.shutdownNow();
+    }
+
+    /*************************************
+     * a token flashed before the simulation started, like
+     * one an earlier run of the app was polling for when
+     * it was killed. Its device shows up after claimDelayMs.
+     *************************************/
+    void addFlashedToken(String token, long claimDelayMs) {
+        mClaimAtNs.put(token, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(claimDelayMs));
+    }
+
+    @Override
+    public void setBlinkUpCompleteIntent(Intent intent) {
+        mBlinkUpCompleteIntent = intent;
+    }
+
+    @Override
+    public Intent getBlinkUpCompleteIntent() {
+        return mBlinkUpCompleteIntent;
+    }
+
+    @Override
+    public void setClearCompleteIntent(Intent intent) {
+        mClearCompleteIntent = intent;
+    }
+
+    @Override
+    public void setPlanID(String planId) {
+        mPlanId = planId;
+    }
+
+    @Override
+    public void acquireSetupToken(Activity activity, final String apiKey, final TokenAcquireCallback callback) {
+        final boolean fail = chance(mSettings.acquireErrorRate);
+        mAcquiring.incrementAndGet();
+        schedule(mSettings.tokenAcquireMs, new Runnable() {
+            @Override
+            public void run() {
+                if (fail) {
+                    mAcquiring.decrementAndGet();
+                    callback.onError(ERROR_TOKEN_ACQUIRE);
+                    return;
+                }
+
+                String token = newToken();
+                synchronized (SimulatedBackend.this) {
+                    mCurrentToken = token;
+                }
+                mAcquiring.decrementAndGet();
+                callback.onSuccess(getPlanId(), token);
+            }
+        });
+    }
+
+    @Override
+    public synchronized String getCurrentToken() {
+        return mCurrentToken;
+    }
+
+    @Override
+    public synchronized String takeFlashedToken() {
+        String token = mCurrentToken;
+        mCurrentToken = null;
+        return (token != null && token.equals(mFlashedToken)) ? token : null;
+    }
+
+    @Override
+    public void selectWifiAndSetupDevice(Activity activity, String apiKey, ServerErrorHandler errorHandler) {
+        flash(activity, mSettings.wifiEntryMs + mSettings.flashMs, errorHandler);
+    }
+
+    @Override
+    public void setupDevice(Activity activity, String ssid, String password, String apiKey,
+                            ServerErrorHandler errorHandler) {
+        flash(activity, mSettings.flashMs, errorHandler);
+    }
+
+    private void flash(final Activity activity, long durationMs, final ServerErrorHandler errorHandler) {
+        final boolean fail = chance(mSettings.serverErrorRate);
+        final Intent blinkUpCompleteIntent = mBlinkUpCompleteIntent;
+        mFlash = schedule(durationMs, new Runnable() {
+            @Override
+            public void run() {
+                if (fail) {
+                    errorHandler.onError(ERROR_SERVER);
+                    return;
+                }
+
+                // the SDK doesn't flash before the token it's acquiring arrives
+                if (mAcquiring.get() > 0) {
+                    mFlash = mScheduler.schedule(this, ACQUIRE_WAIT_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+
+                // the device gets the token acquired last, or one the SDK acquires itself if
+                // that one was flashed already. It shows up after the claim delay, unless it never does
+                String token;
+                synchronized (SimulatedBackend.this) {
+                    token = (mCurrentToken != null) ? mCurrentToken : newToken();
+                    mFlashedToken = token;
+                }
+                mClaimAtNs.put(token, chance(mSettings.unclaimedRate) ? UNCLAIMED
+                        : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(vary(mSettings.claimDelayMs)));
+                if (activity != null && blinkUpCompleteIntent != null) {
+                    blinkUpCompleteIntent.putExtra(Extras.EXTRA_COMPLETED_AT_NS, System.nanoTime());
+                    if (mSettings.completeWithActivity) {
+                        activity.startActivity(blinkUpCompleteIntent);
+                    } else {
+                        CompletionHandler.onBlinkUpComplete(activity, blinkUpCompleteIntent,
+                                BlinkUpMetrics.Phase.COMPLETION);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void clearDevice(final Activity activity) {
+        final Intent clearCompleteIntent = mClearCompleteIntent;
+        mFlash = schedule(mSettings.flashMs, new Runnable() {
+            @Override
+            public void run() {
+                if (activity != null && clearCompleteIntent != null) {
+                    clearCompleteIntent.putExtra(Extras.EXTRA_COMPLETED_AT_NS, System.nanoTime());
+                    if (mSettings.completeWithActivity) {
+                        activity.startActivity(clearCompleteIntent);
+                    } else {
+                        CompletionHandler.onClearComplete(clearCompleteIntent, BlinkUpMetrics.Phase.COMPLETION);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void dismissUi() {
+        ScheduledFuture<?> flash = mFlash;
+        if (flash != null) {
+            flash.cancel(false);
+        }
+    }
+
+    @Override
+    public void getTokenStatus(TokenStatusCallback callback, long timeoutMs) {
+        mGlobalPoll = pollToken(mLastToken, callback, timeoutMs);
+    }
+
+    @Override
+    public void getTokenStatus(String token, TokenStatusCallback callback, long timeoutMs) {
+        pollToken(token, callback, timeoutMs);
+    }
+
+    @Override
+    public void cancelTokenStatusPolling() {
+        ScheduledFuture<?> globalPoll = mGlobalPoll;
+        if (globalPoll != null) {
+            globalPoll.cancel(false);
+        }
+    }
+
+    @Override
+    public void warmUp() {
+        // nothing to set up, the simulation starts with the backend
+    }
+
+    private ScheduledFuture<?> pollToken(final String token, final TokenStatusCallback callback, long timeoutMs) {
+        final Long claimAtNs = (token != null) ? mClaimAtNs.get(token) : null;
+        if (claimAtNs == null) {
+            return mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onError(ERROR_UNKNOWN_TOKEN);
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+        }
+
+        long untilClaimMs = (claimAtNs == UNCLAIMED) ? Long.MAX_VALUE
+                : Math.max(0, TimeUnit.NANOSECONDS.toMillis(claimAtNs - System.nanoTime()));
+        if (untilClaimMs > timeoutMs) {
+            return mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onTimeout();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        return mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mClaimAtNs.remove(token);
+                callback.onSuccess(newDeviceInfo(token));
+            }
+        }, untilClaimMs, TimeUnit.MILLISECONDS);
+    }
+
+    /*************************************
+     * device info in the format the SDK's
+     * getTokenStatus reports it
+     *************************************/
+    private JSONObject newDeviceInfo(String token) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        JSONObject deviceInfo = new JSONObject();
+        try {
+            deviceInfo.put(BlinkUpPluginResult.SDK_IMPEE_ID_KEY, "sim" + token.hashCode());
+            deviceInfo.put(BlinkUpPluginResult.SDK_PLAN_ID_KEY, getPlanId());
+            deviceInfo.put(BlinkUpPluginResult.SDK_AGENT_URL_KEY, "https://agent.electricimp.com/" + token);
+            deviceInfo.put(BlinkUpPluginResult.SDK_CLAIMED_AT_KEY, dateFormat.format(new Date()));
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return deviceInfo;
+    }
+
+    private String newToken() {
+        String token = "simulated-token-" + mNextToken.incrementAndGet();
+        mLastToken = token;
+        return token;
+    }
+
+    private String getPlanId() {
+        String planId = mPlanId;
+        return (planId != null && !planId.isEmpty()) ? planId : SIMULATED_PLAN_ID;
+    }
+
+    private ScheduledFuture<?> schedule(long latencyMs, Runnable runnable) {
+        return mScheduler.schedule(runnable, vary(latencyMs), TimeUnit.MILLISECONDS);
+    }
+
+    private long vary(long latencyMs) {
+        double factor;
+        synchronized (mRandom) {
+            factor = 1 + mSettings.jitter * (2 * mRandom.nextDouble() - 1);
+        }
+        return Math.max(0, Math.round(latencyMs * factor));
+    }
+
+    private boolean chance(double rate) {
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < rate;
+        }
+    }
+}
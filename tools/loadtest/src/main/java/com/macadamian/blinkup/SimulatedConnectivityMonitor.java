@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+package com.macadamian.blinkup;
+
+/*****************************************************
+ * Stand-in for the device's connectivity, switched
+ * on and off through Simulators, so going offline
+ * after a flash can be tested without touching the
+ * network.
+ *****************************************************/
+class SimulatedConnectivityMonitor implements ConnectivityMonitor {
+    private volatile boolean mConnected;
+    private volatile Listener mListener;
+
+    SimulatedConnectivityMonitor(boolean connected) {
+        mConnected = connected;
+    }
+
+    /*************************************
+     * coming back online tells the listener,
+     * like a network coming up would
+     *************************************/
+    void setConnected(boolean connected) {
+        boolean wasConnected = mConnected;
+        mConnected = connected;
+        Listener listener = mListener;
+        if (connected && !wasConnected && listener != null) {
+            listener.onConnected();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void stop() {
+        mListener = null;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import org.json.JSONObject;
+
+/*****************************************************
+ * Switches the plugin to the simulated backend and
+ * network, and back. These only exist in tools/ and
+ * reach the plugin through its package-private hooks,
+ * so apps can't turn them on. The backend settings are
+ * the SimulatedBackend.Settings keys, see the
+ * load testing section of README.md.
+ *****************************************************/
+public final class Simulators {
+    // null while the plugin uses the SDK
+    private static SimulatedBackend sBackend;
+    // null while the plugin uses the device's connectivity
+    private static SimulatedConnectivityMonitor sNetwork;
+
+    private Simulators() {
+    }
+
+    /*************************************
+     * answers the plugin's SDK calls with a new simulation
+     * @return false if a setting is out of range, in which
+     * case nothing is changed
+     *************************************/
+    public static synchronized boolean useBackend(JSONObject settings) {
+        SimulatedBackend.Settings parsed = SimulatedBackend.Settings.fromJson(settings);
+        if (parsed == null) {
+            return false;
+        }
+        SimulatedBackend previous = sBackend;
+        sBackend = new SimulatedBackend(parsed);
+        PluginConfig.setBackend(sBackend);
+        if (previous != null) {
+            previous.shutdown();
+        }
+        return true;
+    }
+
+    /*************************************
+     * lets the simulation answer polls for a token flashed
+     * by an earlier run of the app, see useBackend
+     *************************************/
+    public static synchronized void addFlashedToken(String token, long claimDelayMs) {
+        if (sBackend == null) {
+            throw new IllegalStateException("No simulated backend in use");
+        }
+        sBackend.addFlashedToken(token, claimDelayMs);
+    }
+
+    /*************************************
+     * goes back to the BlinkUp SDK
+     *************************************/
+    public static synchronized void useSdk() {
+        if (sBackend == null) {
+            return;
+        }
+        PluginConfig.setBackend(new SdkBackend());
+        sBackend.shutdown();
+        sBackend = null;
+    }
+
+    /*************************************
+     * replaces the device's connectivity with a simulated
+     * network in the given state. Coming back online
+     * acts like a network coming up.
+     *************************************/
+    public static synchronized void setNetworkConnected(boolean connected) {
+        if (sNetwork != null) {
+            // changes state in place so coming back online is seen by the listener
+            sNetwork.setConnected(connected);
+            return;
+        }
+        sNetwork = new SimulatedConnectivityMonitor(connected);
+        PendingLookups.setMonitor(sNetwork);
+    }
+
+    /*************************************
+     * goes back to the device's connectivity
+     *************************************/
+    public static synchronized void useDeviceNetwork() {
+        if (sNetwork == null) {
+            return;
+        }
+        sNetwork = null;
+        PendingLookups.setMonitor(null);
+    }
+}
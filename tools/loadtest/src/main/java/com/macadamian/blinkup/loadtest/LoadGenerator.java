@@ -0,0 +1,389 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup.loadtest;
+
+import com.macadamian.blinkup.Simulators;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*****************************************************
+ * Runs provisioning sessions through the real plugin:
+ * every session is a startBlinkUp call to
+ * BlinkUpPlugin.execute, answered by the simulated
+ * backend in place of the SDK, so CompletionHandler, the token
+ * status poller and the rate limiter are all on the
+ * path. Reports throughput, callback latency
+ * percentiles and the plugin's own metrics.
+ *
+ *   mvn -q -pl loadtest exec:java -Dexec.args="sessions=500 concurrency=50 flashMs=20"
+ *
+ * Arguments are name=value pairs: sessions, concurrency
+ * (sessions in flight), timeoutMs, headless (default
+ * true, false shows the simulated wifi selection),
+ * asyncExecution and rateLimit (passed to
+ * configureBlinkUp, rateLimit as ratePerSecond/burst),
+ * and the simulated backend's settings. compareCompletion
+ * runs the sessions through the completion activities,
+ * then again without, for the time to the first
+ * callback after the flash in both. The simulator's
+ * latencies default lower than the plugin's so a run
+ * takes seconds. Like the SDK, the plugin flashes one
+ * device at a time, so sessions overlap only while
+ * their device info is polled.
+ *****************************************************/
+public class LoadGenerator {
+    private static final int DEFAULT_SESSIONS = 200;
+    private static final int DEFAULT_CONCURRENCY = 50;
+    private static final int DEFAULT_TIMEOUT_MS = 30000;
+
+    private static final String API_KEY = "0123456789abcdef0123456789abcdef";
+    private static final String DEVELOPER_PLAN_ID = "loadtest-plan";
+    private static final long CALL_TIMEOUT_MS = 10000;
+    // another session's flash slot is released right after its final result
+    private static final long FLASH_BUSY_RETRY_MS = 1;
+
+    // status codes and error codes, see README.md
+    private static final int STATUS_DEVICE_CONNECTED = 0;
+    private static final int STATUS_GATHERING_INFO = 200;
+    private static final int STATUS_SESSION_STARTED = 204;
+    private static final int ERROR_PROCESS_TIMED_OUT = 101;
+    private static final int ERROR_VERIFY_API_KEY_FAIL = 301;
+    private static final int ERROR_FLASH_IN_PROGRESS = 310;
+
+    // simulated backend settings and their defaults for a load run
+    private static final String[] SIMULATOR_LONG_OPTIONS = {
+            "tokenAcquireMs", "flashMs", "wifiEntryMs", "claimDelayMs", "seed"
+    };
+    private static final String[] SIMULATOR_DOUBLE_OPTIONS = {
+            "jitter", "acquireErrorRate", "serverErrorRate", "unclaimedRate"
+    };
+    private static final String[][] SIMULATOR_DEFAULTS = {
+            {"tokenAcquireMs", "50"}, {"flashMs", "50"}, {"claimDelayMs", "200"}, {"seed", "42"}
+    };
+
+    // callbacks timed from the execute() call
+    private enum Stage { STARTED, FLASHED, FINISHED }
+
+    private enum Outcome { CLAIMED, TIMEOUT, VERIFY_FAILED, SDK_ERROR, OTHER_ERROR }
+
+    private final PluginHarness mHarness;
+    private final int mSessions;
+    private final String mSessionArgs;
+    private final Semaphore mConcurrency;
+    // one session flashes at a time, the next starts once its flash is done
+    private final Semaphore mFlashSlot = new Semaphore(1);
+    private final CountDownLatch mDone;
+    private final ScheduledExecutorService mRetryScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    // latency of every callback in microseconds, per stage
+    private final long[][] mLatenciesUs;
+    private final AtomicInteger[] mLatencyCounts;
+    private final AtomicLongArray mOutcomes = new AtomicLongArray(Outcome.values().length);
+    private final AtomicLong mFlashBusyRetries = new AtomicLong(0);
+
+    public static void main(String[] args) throws JSONException, InterruptedException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String[] simulatorDefault : SIMULATOR_DEFAULTS) {
+            options.put(simulatorDefault[0], simulatorDefault[1]);
+        }
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                exit("Expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        int sessions = intOption(options, "sessions", DEFAULT_SESSIONS);
+        int concurrency = intOption(options, "concurrency", DEFAULT_CONCURRENCY);
+        int timeoutMs = intOption(options, "timeoutMs", DEFAULT_TIMEOUT_MS);
+        boolean headless = !"false".equals(options.remove("headless"));
+        boolean compareCompletion = "true".equals(options.remove("compareCompletion"));
+        if (sessions <= 0 || concurrency <= 0 || timeoutMs <= 0) {
+            exit("sessions, concurrency and timeoutMs must be positive");
+        }
+
+        PluginHarness harness = new PluginHarness();
+        if (compareCompletion) {
+            // the completion activities the SDK starts, then the same sessions without them
+            for (String completeWithActivity : new String[] {"true", "false"}) {
+                options.put("completeWithActivity", completeWithActivity);
+                System.out.println("completeWithActivity=" + completeWithActivity);
+                runOnce(harness, options, sessions, concurrency, timeoutMs, headless);
+            }
+        } else {
+            runOnce(harness, options, sessions, concurrency, timeoutMs, headless);
+        }
+        Simulators.useSdk();
+        harness.shutdown();
+    }
+
+    /*************************************
+     * one run with the plugin configured from options
+     * and its metrics reset
+     *************************************/
+    private static void runOnce(PluginHarness harness, Map<String, String> options, int sessions,
+                                int concurrency, int timeoutMs, boolean headless)
+            throws JSONException, InterruptedException {
+        if (!Simulators.useBackend(simulatorSettings(options))) {
+            exit("The simulator rejected its settings");
+        }
+        JSONObject configured = harness.executeAndWait("configureBlinkUp",
+                new JSONArray().put(configureOptions(options)).toString(), CALL_TIMEOUT_MS);
+        if (configured == null || PluginHarness.isError(configured)) {
+            exit("configureBlinkUp rejected the options: " + configured);
+        }
+        harness.executeAndWait("getBlinkUpMetrics", "[true]", CALL_TIMEOUT_MS);
+
+        LoadGenerator generator = new LoadGenerator(harness, sessions, concurrency, timeoutMs, headless);
+        generator.run();
+        generator.printPluginMetrics();
+    }
+
+    private LoadGenerator(PluginHarness harness, int sessions, int concurrency, int timeoutMs, boolean headless) {
+        mHarness = harness;
+        mSessions = sessions;
+        JSONArray sessionArgs = new JSONArray().put(API_KEY).put(DEVELOPER_PLAN_ID).put(true).put(timeoutMs);
+        if (headless) {
+            Map<String, String> wifi = new HashMap<String, String>();
+            wifi.put("ssid", "loadtest");
+            wifi.put("password", "loadtest");
+            sessionArgs.put(new JSONObject(wifi));
+        }
+        mSessionArgs = sessionArgs.toString();
+        mConcurrency = new Semaphore(concurrency);
+        mDone = new CountDownLatch(sessions);
+        mLatenciesUs = new long[Stage.values().length][sessions];
+        mLatencyCounts = new AtomicInteger[Stage.values().length];
+        for (int i = 0; i < mLatencyCounts.length; i++) {
+            mLatencyCounts[i] = new AtomicInteger(0);
+        }
+    }
+
+    /*************************************
+     * @return the simulated backend's settings, with
+     * the numbers they need to be
+     *************************************/
+    private static JSONObject simulatorSettings(Map<String, String> options) throws JSONException {
+        JSONObject simulatedBackend = new JSONObject();
+        for (String name : SIMULATOR_LONG_OPTIONS) {
+            if (options.containsKey(name)) {
+                simulatedBackend.put(name, Long.parseLong(options.get(name)));
+            }
+        }
+        for (String name : SIMULATOR_DOUBLE_OPTIONS) {
+            if (options.containsKey(name)) {
+                simulatedBackend.put(name, Double.parseDouble(options.get(name)));
+            }
+        }
+        if (options.containsKey("completeWithActivity")) {
+            simulatedBackend.put("completeWithActivity", Boolean.parseBoolean(options.get("completeWithActivity")));
+        }
+        return simulatedBackend;
+    }
+
+    /*************************************
+     * @return the configureBlinkUp options
+     *************************************/
+    private static JSONObject configureOptions(Map<String, String> options) throws JSONException {
+        JSONObject configureOptions = new JSONObject();
+        if (options.containsKey("asyncExecution")) {
+            configureOptions.put("asyncExecution", Boolean.parseBoolean(options.get("asyncExecution")));
+        }
+        if (options.containsKey("rateLimit")) {
+            String[] rateLimit = options.get("rateLimit").split("/");
+            if (rateLimit.length != 2) {
+                exit("rateLimit must be ratePerSecond/burst");
+            }
+            configureOptions.put("rateLimit", new JSONObject()
+                    .put("ratePerSecond", Double.parseDouble(rateLimit[0]))
+                    .put("burst", Integer.parseInt(rateLimit[1])));
+        }
+        return configureOptions;
+    }
+
+    private void run() throws InterruptedException {
+        long startNs = System.nanoTime();
+        for (int i = 0; i < mSessions; i++) {
+            mConcurrency.acquire();
+            mFlashSlot.acquire();
+            new Session().start();
+        }
+        mDone.await();
+        long elapsedNs = System.nanoTime() - startNs;
+        mRetryScheduler.shutdownNow();
+
+        double elapsedSec = elapsedNs / 1e9;
+        System.out.println(String.format(Locale.US, "%d sessions in %.2fs, %.1f sessions/s, %d flash busy retries",
+                mSessions, elapsedSec, mSessions / elapsedSec, mFlashBusyRetries.get()));
+        for (Outcome outcome : Outcome.values()) {
+            System.out.println(String.format(Locale.US, "  %-14s %8d",
+                    outcome.name().toLowerCase(Locale.US), mOutcomes.get(outcome.ordinal())));
+        }
+
+        System.out.println("callback latency in ms     count      p50      p95      p99      max");
+        for (Stage stage : Stage.values()) {
+            int count = Math.min(mLatencyCounts[stage.ordinal()].get(), mSessions);
+            long[] latenciesUs = Arrays.copyOf(mLatenciesUs[stage.ordinal()], count);
+            Arrays.sort(latenciesUs);
+            System.out.println(String.format(Locale.US, "  %-14s %12d %8.1f %8.1f %8.1f %8.1f",
+                    stage.name().toLowerCase(Locale.US), count,
+                    percentileMs(latenciesUs, 0.50), percentileMs(latenciesUs, 0.95),
+                    percentileMs(latenciesUs, 0.99), percentileMs(latenciesUs, 1.0)));
+        }
+    }
+
+    /*************************************
+     * the phases getBlinkUpMetrics measured inside the plugin
+     *************************************/
+    private void printPluginMetrics() throws JSONException, InterruptedException {
+        JSONObject result = mHarness.executeAndWait("getBlinkUpMetrics", "[false]", CALL_TIMEOUT_MS);
+        JSONObject metrics = (result != null) ? result.optJSONObject("metrics") : null;
+        if (metrics == null) {
+            System.out.println("no plugin metrics: " + result);
+            return;
+        }
+
+        System.out.println("plugin phases in ms        count      p50      p95      p99      max");
+        Iterator<?> names = metrics.keys();
+        while (names.hasNext()) {
+            String name = (String) names.next();
+            JSONObject phase = metrics.optJSONObject(name);
+            if (phase == null || !phase.has("p50Us") || phase.optLong("count") == 0) {
+                continue;
+            }
+            System.out.println(String.format(Locale.US, "  %-20s %6d %8.1f %8.1f %8.1f %8.1f",
+                    name, phase.optLong("count"), phase.optLong("p50Us") / 1000.0, phase.optLong("p95Us") / 1000.0,
+                    phase.optLong("p99Us") / 1000.0, phase.optLong("maxUs") / 1000.0));
+        }
+    }
+
+    /*************************************
+     * One device, from startBlinkUp to its final result
+     *************************************/
+    private class Session implements PluginHarness.ResultListener {
+        private long mStartNs;
+        private boolean mFlashReleased = false;
+
+        void start() {
+            mStartNs = System.nanoTime();
+            try {
+                mHarness.execute("startBlinkUp", mSessionArgs, this);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public synchronized boolean onResult(JSONObject result) {
+            if (PluginHarness.isStarted(result)) {
+                int statusCode = PluginHarness.statusCode(result);
+                if (statusCode == STATUS_SESSION_STARTED) {
+                    record(Stage.STARTED, mStartNs);
+                } else if (statusCode == STATUS_GATHERING_INFO) {
+                    record(Stage.FLASHED, mStartNs);
+                    releaseFlash();
+                }
+                return true;
+            }
+
+            if (PluginHarness.errorCode(result) == ERROR_FLASH_IN_PROGRESS) {
+                // the previous session's final result came before its flash slot was released
+                mFlashBusyRetries.incrementAndGet();
+                mRetryScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        start();
+                    }
+                }, FLASH_BUSY_RETRY_MS, TimeUnit.MILLISECONDS);
+                return false;
+            }
+
+            record(Stage.FINISHED, mStartNs);
+            mOutcomes.incrementAndGet(outcomeOf(result).ordinal());
+            releaseFlash();
+            mConcurrency.release();
+            mDone.countDown();
+            return false;
+        }
+
+        private void releaseFlash() {
+            if (!mFlashReleased) {
+                mFlashReleased = true;
+                mFlashSlot.release();
+            }
+        }
+    }
+
+    private static Outcome outcomeOf(JSONObject result) {
+        if (!PluginHarness.isError(result)) {
+            return (PluginHarness.statusCode(result) == STATUS_DEVICE_CONNECTED) ? Outcome.CLAIMED : Outcome.OTHER_ERROR;
+        }
+        if (PluginHarness.isSdkError(result)) {
+            return Outcome.SDK_ERROR;
+        }
+        switch (PluginHarness.errorCode(result)) {
+            case ERROR_PROCESS_TIMED_OUT:
+                return Outcome.TIMEOUT;
+            case ERROR_VERIFY_API_KEY_FAIL:
+                return Outcome.VERIFY_FAILED;
+            default:
+                return Outcome.OTHER_ERROR;
+        }
+    }
+
+    private void record(Stage stage, long startNs) {
+        int index = mLatencyCounts[stage.ordinal()].getAndIncrement();
+        if (index < mSessions) {
+            mLatenciesUs[stage.ordinal()][index] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNs);
+        }
+    }
+
+    private static double percentileMs(long[] sortedUs, double fraction) {
+        if (sortedUs.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sortedUs.length * fraction) - 1;
+        return sortedUs[Math.max(0, index)] / 1000.0;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return (value != null) ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static void exit(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup.loadtest;
+
+import android.app.Activity;
+
+import com.macadamian.blinkup.BlinkUpPlugin;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterface;
+import org.apache.cordova.CordovaPreferences;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*****************************************************
+ * Hosts one BlinkUpPlugin the way Cordova does: it is
+ * initialized once, every call gets its own callback,
+ * and results arrive as the JSON javascript would get
+ *****************************************************/
+public class PluginHarness implements CordovaInterface, CordovaWebView {
+    static final String STATE_STARTED = "started";
+    static final String STATE_ERROR = "error";
+    private static final long MAIN_THREAD_TIMEOUT_MS = 5000;
+
+    /*************************************
+     * Called on whichever thread the plugin sends from
+     *************************************/
+    public interface ResultListener {
+        /*************************************
+         * @return false once the call expects no more results
+         *************************************/
+        boolean onResult(JSONObject result);
+    }
+
+    private final Activity mActivity = new Activity();
+    private final ExecutorService mThreadPool = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "CordovaThreadPool-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final BlinkUpPlugin mPlugin = new BlinkUpPlugin();
+    private final ConcurrentHashMap<String, ResultListener> mListeners = new ConcurrentHashMap<String, ResultListener>();
+    private final AtomicInteger mNextCallbackId = new AtomicInteger(0);
+
+    public PluginHarness() {
+        this(new CordovaPreferences());
+    }
+
+    public PluginHarness(CordovaPreferences preferences) {
+        mPlugin.privateInitialize("BlinkUpPlugin", this, this, preferences);
+    }
+
+    /*************************************
+     * makes the call like the bridge does, rawArgs is the
+     * JSON array of arguments blinkup.js passes to cordova.exec
+     *************************************/
+    public boolean execute(String action, String rawArgs, ResultListener listener) throws JSONException {
+        String callbackId = "BlinkUpPlugin" + mNextCallbackId.incrementAndGet();
+        mListeners.put(callbackId, listener);
+        return mPlugin.execute(action, rawArgs, new CallbackContext(callbackId, this));
+    }
+
+    /*************************************
+     * @return the call's first final result, null if
+     * none arrived within timeoutMs
+     *************************************/
+    public JSONObject executeAndWait(String action, String rawArgs, long timeoutMs)
+            throws JSONException, InterruptedException {
+        final BlockingQueue<JSONObject> finalResult = new ArrayBlockingQueue<JSONObject>(1);
+        execute(action, rawArgs, new ResultListener() {
+            @Override
+            public boolean onResult(JSONObject result) {
+                if (isStarted(result)) {
+                    return true;
+                }
+                finalResult.offer(result);
+                return false;
+            }
+        });
+        return finalResult.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /*************************************
+     * the web view navigated away, like a page reload
+     *************************************/
+    public void reset() {
+        mPlugin.onReset();
+        mListeners.clear();
+    }
+
+    /*************************************
+     * another activity, like the SDK's screens, covered the
+     * app's and closed again. Cordova tells the plugin on
+     * the main thread, this returns once it has.
+     *************************************/
+    public void coverAndReturn() throws InterruptedException {
+        final CountDownLatch returned = new CountDownLatch(1);
+        mActivity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mPlugin.onPause(false);
+                mPlugin.onResume(false);
+                returned.countDown();
+            }
+        });
+        if (!returned.await(MAIN_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("Main thread busy for " + MAIN_THREAD_TIMEOUT_MS + "ms");
+        }
+    }
+
+    public void shutdown() {
+        reset();
+        mThreadPool.shutdownNow();
+    }
+
+    @Override
+    public Activity getActivity() {
+        return mActivity;
+    }
+
+    @Override
+    public ExecutorService getThreadPool() {
+        return mThreadPool;
+    }
+
+    @Override
+    public void sendPluginResult(PluginResult cr, String callbackId) {
+        ResultListener listener = mListeners.get(callbackId);
+        if (listener == null) {
+            return;
+        }
+
+        JSONObject result;
+        try {
+            result = new JSONObject(cr.getStrMessage());
+        } catch (JSONException e) {
+            throw new IllegalStateException("Not a JSON result: " + cr.getStrMessage(), e);
+        }
+        if (!listener.onResult(result) || !cr.getKeepCallback()) {
+            mListeners.remove(callbackId);
+        }
+    }
+
+    static boolean isStarted(JSONObject result) {
+        return STATE_STARTED.equals(result.optString("state"));
+    }
+
+    static boolean isError(JSONObject result) {
+        return STATE_ERROR.equals(result.optString("state"));
+    }
+
+    /*************************************
+     * @return the statusCode of a result, -1 for errors
+     *************************************/
+    static int statusCode(JSONObject result) {
+        return result.optInt("statusCode", -1);
+    }
+
+    /*************************************
+     * @return the errorCode of an error, -1 for other results
+     *************************************/
+    static int errorCode(JSONObject result) {
+        JSONObject error = result.optJSONObject("error");
+        return (error != null) ? error.optInt("errorCode", -1) : -1;
+    }
+
+    /*************************************
+     * @return true for errors the BlinkUp SDK reported,
+     * false for the plugin's own
+     *************************************/
+    static boolean isSdkError(JSONObject result) {
+        JSONObject error = result.optJSONObject("error");
+        return error != null && "blinkup".equals(error.optString("errorType"));
+    }
+}
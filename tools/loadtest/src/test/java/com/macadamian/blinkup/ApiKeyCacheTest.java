@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+
+import com.macadamian.blinkup.loadtest.PluginHarness;
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * Which SDK errors count as the server rejecting a key,
+ * how long verdicts are trusted, when they are written
+ * to the preferences and what sessions make of them
+ *****************************************************/
+public class ApiKeyCacheTest {
+    private static final String GOOD_KEY = "0123456789abcdef0123456789abcde1";
+    private static final String BAD_KEY = "0123456789abcdef0123456789abcde2";
+    private static final String FLIPPED_KEY = "0123456789abcdef0123456789abcde3";
+    private static final String EXPIRING_KEY = "0123456789abcdef0123456789abcde4";
+    private static final String REJECTED_KEY = "0123456789abcdef0123456789abcde5";
+    private static final String HASHED_KEY = "0123456789abcdef0123456789abcde6";
+    // fails local validation, only a verdict lets it through
+    private static final String MALFORMED_KEY = "not-a-key";
+
+    private static final long RESULT_TIMEOUT_MS = 5000;
+    private static final int ERROR_VERIFY_API_KEY_FAIL = 301;
+    private static final int STATUS_SESSION_STARTED = 204;
+
+    // longer than the coalescing delay, a write has happened by then
+    private static final long PERSIST_WAIT_MS = 1500;
+
+    private static final Activity sContext = new Activity();
+
+    @BeforeClass
+    public static void setUpClass() {
+        ApiKeyCache.init(sContext);
+    }
+
+    @Test
+    public void rejectionsAreInvalidKeyErrors() {
+        String[] rejections = {
+                "401",
+                "HTTP 401 Unauthorized",
+                "Server returned 401",
+                "unauthorised",
+                "Invalid API key",
+                "invalid apikey",
+                "The API key is invalid",
+                "API key not valid",
+        };
+        for (String rejection : rejections) {
+            assertTrue(rejection, ApiKeyCache.isInvalidKeyError(rejection));
+        }
+    }
+
+    @Test
+    public void connectivityAndServerErrorsAreNot() {
+        String[] otherErrors = {
+                null,
+                "",
+                "Unable to resolve host \"api.electricimp.com\": No address associated with hostname",
+                "timeout",
+                "Network is unreachable",
+                "HTTP 500 Internal Server Error",
+                "HTTP 503 Service Unavailable",
+                "Error 4010",
+                "Invalid setup token",
+        };
+        for (String otherError : otherErrors) {
+            assertFalse(String.valueOf(otherError), ApiKeyCache.isInvalidKeyError(otherError));
+        }
+    }
+
+    @Test
+    public void repeatedVerdictIsNotRewritten() throws Exception {
+        ApiKeyCache.recordGood(GOOD_KEY);
+        assertEquals(ApiKeyCache.Verdict.KNOWN_GOOD, ApiKeyCache.lookup(GOOD_KEY));
+        awaitVerdictOf(GOOD_KEY);
+
+        clearPersistedVerdicts();
+        ApiKeyCache.recordGood(GOOD_KEY);
+        Thread.sleep(PERSIST_WAIT_MS);
+        assertNull(PreferencesHelper.getApiKeyVerdicts(sContext));
+    }
+
+    @Test
+    public void changedVerdictIsWritten() throws Exception {
+        ApiKeyCache.recordBad(FLIPPED_KEY);
+        assertEquals(ApiKeyCache.Verdict.KNOWN_BAD, ApiKeyCache.lookup(FLIPPED_KEY));
+        awaitVerdictOf(FLIPPED_KEY);
+
+        clearPersistedVerdicts();
+        ApiKeyCache.recordGood(FLIPPED_KEY);
+        assertEquals(ApiKeyCache.Verdict.KNOWN_GOOD, ApiKeyCache.lookup(FLIPPED_KEY));
+        awaitVerdictOf(FLIPPED_KEY);
+    }
+
+    @Test
+    public void goodKeyIsNotDowngraded() {
+        ApiKeyCache.recordGood(BAD_KEY);
+        ApiKeyCache.recordBad(BAD_KEY);
+        assertEquals(ApiKeyCache.Verdict.KNOWN_GOOD, ApiKeyCache.lookup(BAD_KEY));
+    }
+
+    @Test
+    public void verdictExpiresAfterItsTtl() throws Exception {
+        assertTrue(PluginConfig.update(new JSONObject("{\"apiKeyFailureTtlMs\": 50}")));
+        try {
+            ApiKeyCache.recordBad(EXPIRING_KEY);
+            assertEquals(ApiKeyCache.Verdict.KNOWN_BAD, ApiKeyCache.lookup(EXPIRING_KEY));
+            Thread.sleep(100);
+            assertEquals(ApiKeyCache.Verdict.UNKNOWN, ApiKeyCache.lookup(EXPIRING_KEY));
+        } finally {
+            assertTrue(PluginConfig.update(new JSONObject()
+                    .put("apiKeyFailureTtlMs", PluginConfig.DEFAULT_API_KEY_FAILURE_TTL_MS)));
+        }
+    }
+
+    @Test
+    public void keysAreOnlyWrittenHashed() throws Exception {
+        ApiKeyCache.recordGood(HASHED_KEY);
+        awaitVerdictOf(HASHED_KEY);
+        assertFalse(PreferencesHelper.getApiKeyVerdicts(sContext).contains(HASHED_KEY));
+    }
+
+    @Test
+    public void rejectedKeyFailsSessionsRightAway() throws Exception {
+        ApiKeyCache.recordBad(REJECTED_KEY);
+        assertEquals(ERROR_VERIFY_API_KEY_FAIL, errorCode(startSession(REJECTED_KEY)));
+    }
+
+    @Test
+    public void acceptedKeySkipsLocalValidation() throws Exception {
+        ApiKeyCache.recordGood(MALFORMED_KEY);
+        JSONObject started = startSession(MALFORMED_KEY);
+        assertEquals(-1, errorCode(started));
+        assertEquals(STATUS_SESSION_STARTED, started.optInt("statusCode", -1));
+    }
+
+    /*************************************
+     * @return the first result of a startBlinkUp with the
+     * key, before any SDK call. The session is aborted.
+     *************************************/
+    private static JSONObject startSession(String apiKey) throws Exception {
+        PluginHarness harness = new PluginHarness();
+        try {
+            final BlockingQueue<JSONObject> results = new LinkedBlockingQueue<JSONObject>();
+            harness.execute("startBlinkUp", new JSONArray().put(apiKey).put("test-plan").put(true).put(5000)
+                    .toString(), new PluginHarness.ResultListener() {
+                @Override
+                public boolean onResult(JSONObject result) {
+                    results.add(result);
+                    return true;
+                }
+            });
+            JSONObject first = results.poll(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("no result within " + RESULT_TIMEOUT_MS + "ms", first);
+            harness.executeAndWait("abortBlinkUp", "[]", RESULT_TIMEOUT_MS);
+            return first;
+        } finally {
+            harness.shutdown();
+        }
+    }
+
+    private static int errorCode(JSONObject result) {
+        JSONObject error = result.optJSONObject("error");
+        return (error != null) ? error.optInt("errorCode", -1) : -1;
+    }
+
+    /*************************************
+     * waits for the key's verdict to be written
+     *************************************/
+    private static void awaitVerdictOf(String apiKey) throws InterruptedException {
+        String hash = ApiKeyCache.hash(apiKey);
+        long deadlineMs = System.currentTimeMillis() + PERSIST_WAIT_MS;
+        String verdicts = PreferencesHelper.getApiKeyVerdicts(sContext);
+        while ((verdicts == null || !verdicts.contains(hash)) && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(10);
+            verdicts = PreferencesHelper.getApiKeyVerdicts(sContext);
+        }
+        assertNotNull("verdicts not written within " + PERSIST_WAIT_MS + "ms", verdicts);
+        assertTrue("no verdict for " + apiKey, verdicts.contains(hash));
+    }
+
+    /*************************************
+     * lets writes still pending from earlier tests
+     * happen, then forgets what was written
+     *************************************/
+    private static void clearPersistedVerdicts() throws InterruptedException {
+        Thread.sleep(PERSIST_WAIT_MS);
+        PreferencesHelper.setApiKeyVerdicts(sContext, null);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import com.macadamian.blinkup.loadtest.PluginHarness;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * Phase histograms, outcome and transition counters,
+ * and what getBlinkUpMetrics reports after a session
+ *****************************************************/
+public class BlinkUpMetricsTest {
+    private static final long RESULT_TIMEOUT_MS = 5000;
+    private static final int STATUS_DEVICE_CONNECTED = 0;
+    private static final int STATUS_METRICS = 207;
+
+    @Before
+    public void setUp() {
+        BlinkUpMetrics.snapshotJson(true);
+    }
+
+    @After
+    public void tearDown() {
+        Simulators.useSdk();
+    }
+
+    @Test
+    public void percentilesAreBucketBoundsCappedByTheMax() throws Exception {
+        // 90 samples in the 250us bucket, 10 in the 10ms one
+        for (int i = 0; i < 90; i++) {
+            BlinkUpMetrics.record(BlinkUpMetrics.Phase.POLL, nanosAgo(110), BlinkUpMetrics.Outcome.SUCCESS);
+        }
+        for (int i = 0; i < 10; i++) {
+            BlinkUpMetrics.record(BlinkUpMetrics.Phase.POLL, nanosAgo(5100), BlinkUpMetrics.Outcome.TIMEOUT);
+        }
+
+        JSONObject poll = snapshot(false).getJSONObject("poll");
+        assertEquals(100, poll.getLong("count"));
+        assertEquals(90, poll.getLong("success"));
+        assertEquals(0, poll.getLong("error"));
+        assertEquals(10, poll.getLong("timeout"));
+        assertEquals(250, poll.getLong("p50Us"));
+        long maxUs = poll.getLong("maxUs");
+        assertTrue(maxUs >= 5100 && maxUs <= 10000);
+        assertEquals(maxUs, poll.getLong("p95Us"));
+        assertEquals(maxUs, poll.getLong("p99Us"));
+    }
+
+    @Test
+    public void resetClearsAfterReporting() throws Exception {
+        BlinkUpMetrics.record(BlinkUpMetrics.Phase.PARSE, nanosAgo(10), BlinkUpMetrics.Outcome.ERROR);
+        BlinkUpMetrics.recordTransition(BlinkUpSession.State.IDLE, BlinkUpSession.State.VALIDATING);
+        BlinkUpMetrics.recordDroppedResult();
+
+        JSONObject reported = snapshot(true);
+        assertEquals(1, reported.getJSONObject("parse").getLong("error"));
+        JSONObject sessions = reported.getJSONObject("sessions");
+        assertEquals(1, sessions.getJSONObject("transitions").getLong("idle>validating"));
+        assertEquals(1, sessions.getLong("droppedResults"));
+
+        JSONObject afterReset = snapshot(false);
+        assertEquals(0, afterReset.getJSONObject("parse").getLong("count"));
+        assertEquals(0, afterReset.getJSONObject("parse").getLong("maxUs"));
+        assertEquals(0, afterReset.getJSONObject("sessions").getJSONObject("transitions").length());
+        assertEquals(0, afterReset.getJSONObject("sessions").getLong("droppedResults"));
+    }
+
+    @Test
+    public void sessionIsReportedByGetBlinkUpMetrics() throws Exception {
+        assertTrue(Simulators.useBackend(new JSONObject("{\"tokenAcquireMs\": 0, \"flashMs\": 10,"
+                + " \"claimDelayMs\": 0, \"jitter\": 0, \"seed\": 1}")));
+        PluginHarness harness = new PluginHarness();
+        try {
+            JSONObject deviceInfo = harness.executeAndWait("startBlinkUp", "[\"0123456789abcdef0123456789abcdef\","
+                    + " \"test-plan\", true, 5000, {\"ssid\": \"test\", \"password\": \"test\"}]", RESULT_TIMEOUT_MS);
+            assertNotNull(deviceInfo);
+            assertEquals(STATUS_DEVICE_CONNECTED, deviceInfo.getInt("statusCode"));
+
+            JSONObject result = harness.executeAndWait("getBlinkUpMetrics", "[true]", RESULT_TIMEOUT_MS);
+            assertNotNull(result);
+            assertEquals(STATUS_METRICS, result.getInt("statusCode"));
+            JSONObject metrics = result.getJSONObject("metrics");
+            for (String phase : new String[] {"execute", "parse", "tokenAcquire", "flash", "completion", "poll"}) {
+                assertTrue(phase, metrics.getJSONObject(phase).getLong("success") >= 1);
+            }
+            JSONObject transitions = metrics.getJSONObject("sessions").getJSONObject("transitions");
+            assertEquals(1, transitions.getLong("flashing>polling"));
+            assertEquals(1, transitions.getLong("polling>terminal"));
+
+            JSONObject afterReset = harness.executeAndWait("getBlinkUpMetrics", "[]", RESULT_TIMEOUT_MS)
+                    .getJSONObject("metrics");
+            assertEquals(0, afterReset.getJSONObject("flash").getLong("count"));
+        } finally {
+            harness.shutdown();
+        }
+    }
+
+    private static long nanosAgo(long micros) {
+        return System.nanoTime() - TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    private static JSONObject snapshot(boolean reset) throws Exception {
+        return new JSONObject(BlinkUpMetrics.snapshotJson(reset));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import com.macadamian.blinkup.loadtest.PluginHarness;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * Sessions only move on from the state a step expects,
+ * and deliver one final result however many steps race
+ * to end them
+ *****************************************************/
+public class BlinkUpSessionTest {
+    private static final long RESULT_TIMEOUT_MS = 5000;
+    private static final int RACES = 50;
+    private static final int STATUS_GATHERING_INFO = 200;
+    // long enough for a result that lost the race to show up
+    private static final long LATE_RESULT_WAIT_MS = 50;
+
+    @After
+    public void tearDown() {
+        Simulators.useSdk();
+    }
+
+    @Test
+    public void transitionNeedsTheExpectedState() {
+        BlinkUpSession session = new BlinkUpSession(1, null, true);
+        assertTrue(session.transition(BlinkUpSession.State.IDLE, BlinkUpSession.State.VALIDATING));
+        assertFalse(session.transition(BlinkUpSession.State.IDLE, BlinkUpSession.State.VALIDATING));
+        assertFalse(session.transition(BlinkUpSession.State.FLASHING, BlinkUpSession.State.POLLING));
+        assertEquals(BlinkUpSession.State.VALIDATING, session.getState());
+
+        assertTrue(session.terminate());
+        assertFalse(session.transition(BlinkUpSession.State.VALIDATING, BlinkUpSession.State.FLASHING));
+        assertEquals(BlinkUpSession.State.TERMINAL, session.getState());
+    }
+
+    @Test
+    public void terminateWinsOnce() throws Exception {
+        final BlinkUpSession session = new BlinkUpSession(1, null, true);
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicInteger winners = new AtomicInteger(0);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (session.terminate()) {
+                        winners.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join(RESULT_TIMEOUT_MS);
+        }
+        assertEquals(1, winners.get());
+    }
+
+    @Test
+    public void abortRacingTheDeviceInfoEndsTheSessionOnce() throws Exception {
+        // the device shows up 0 to 2ms into the poll, about when the abort lands
+        assertTrue(Simulators.useBackend(new JSONObject("{\"tokenAcquireMs\": 0, \"flashMs\": 0,"
+                + " \"claimDelayMs\": 1, \"jitter\": 1, \"seed\": 1}")));
+        PluginHarness harness = new PluginHarness();
+        try {
+            for (int i = 0; i < RACES; i++) {
+                final List<JSONObject> finalResults = new CopyOnWriteArrayList<JSONObject>();
+                final CountDownLatch polling = new CountDownLatch(1);
+                harness.execute("startBlinkUp", "[\"0123456789abcdef0123456789abcdef\", \"test-plan\", true, 5000,"
+                        + " {\"ssid\": \"test\", \"password\": \"test\"}]", new PluginHarness.ResultListener() {
+                    @Override
+                    public boolean onResult(JSONObject result) {
+                        if (!"started".equals(result.optString("state"))) {
+                            finalResults.add(result);
+                        } else if (result.optInt("statusCode", -1) == STATUS_GATHERING_INFO) {
+                            polling.countDown();
+                        }
+                        return true;
+                    }
+                });
+                assertTrue(polling.await(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                harness.executeAndWait("abortBlinkUp", "[]", RESULT_TIMEOUT_MS);
+
+                Thread.sleep(LATE_RESULT_WAIT_MS);
+                assertEquals(finalResults.toString(), 1, finalResults.size());
+            }
+        } finally {
+            harness.shutdown();
+        }
+    }
+}
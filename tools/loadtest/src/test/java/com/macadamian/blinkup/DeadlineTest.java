@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import com.macadamian.blinkup.loadtest.PluginHarness;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * The session deadline is off unless configured, and
+ * doesn't run while paused: for the operator in the
+ * wifi selection and for lookups held offline, which
+ * both go through pause and resume
+ *****************************************************/
+public class DeadlineTest {
+    private static final long RESULT_TIMEOUT_MS = 5000;
+    // leaves the poll at least Deadline.MIN_POLL_BUDGET_MS after the flash
+    private static final int DEADLINE_MS = 1500;
+    // past the deadline, when the paused budget would have run out
+    private static final long PAST_DEADLINE_MS = DEADLINE_MS + 500;
+    private static final int STATUS_DEVICE_CONNECTED = 0;
+    private static final int ERROR_DEADLINE_FLASH = 308;
+
+    private PluginHarness mHarness;
+
+    @Before
+    public void setUp() {
+        mHarness = new PluginHarness();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHarness.executeAndWait("configureBlinkUp", "[{\"sessionDeadline\": false}]", RESULT_TIMEOUT_MS);
+        mHarness.shutdown();
+        Simulators.useSdk();
+    }
+
+    @Test
+    public void sessionHasNoDeadlineUnlessConfigured() throws Exception {
+        BlinkUpSession session = SessionRegistry.register(null, true);
+        try {
+            Deadline.start(session, DEADLINE_MS);
+            assertEquals(0, session.getDeadlineMs());
+            assertEquals(Long.MAX_VALUE, Deadline.remainingMs(session));
+        } finally {
+            SessionRegistry.remove(session.getId());
+        }
+    }
+
+    @Test
+    public void pausedBudgetDoesNotRun() throws Exception {
+        configureDeadline();
+        BlinkUpSession session = SessionRegistry.register(null, true);
+        try {
+            Deadline.start(session, DEADLINE_MS);
+            Deadline.pause(session.getId());
+            long remainingMs = Deadline.remainingMs(session);
+            assertTrue(remainingMs > 0 && remainingMs <= DEADLINE_MS);
+
+            Thread.sleep(PAST_DEADLINE_MS);
+            assertEquals(remainingMs, Deadline.remainingMs(session));
+            assertTrue(session.getDeadlineTimer().isCancelled());
+
+            Deadline.resume(session.getId());
+            long resumedMs = Deadline.remainingMs(session);
+            assertTrue(resumedMs > 0 && resumedMs <= remainingMs);
+            assertFalse(session.getDeadlineTimer().isDone());
+        } finally {
+            // the timer finds no session when it goes off
+            SessionRegistry.remove(session.getId());
+        }
+    }
+
+    @Test
+    public void wifiSelectionIsLeftOutOfTheDeadline() throws Exception {
+        configureDeadline();
+        assertTrue(Simulators.useBackend(new JSONObject("{\"tokenAcquireMs\": 0, \"wifiEntryMs\": "
+                + PAST_DEADLINE_MS + ", \"flashMs\": 10, \"claimDelayMs\": 0, \"jitter\": 0, \"seed\": 1}")));
+
+        // no wifi given, the operator picks it in the SDK's screen
+        JSONObject result = mHarness.executeAndWait("startBlinkUp",
+                "[\"0123456789abcdef0123456789abcdef\", \"test-plan\", true, " + DEADLINE_MS + "]", RESULT_TIMEOUT_MS);
+        assertNotNull(result);
+        assertEquals(STATUS_DEVICE_CONNECTED, result.getInt("statusCode"));
+    }
+
+    @Test
+    public void flashPastTheDeadlineFails() throws Exception {
+        configureDeadline();
+        assertTrue(Simulators.useBackend(new JSONObject("{\"tokenAcquireMs\": 0, \"flashMs\": "
+                + PAST_DEADLINE_MS + ", \"claimDelayMs\": 0, \"jitter\": 0, \"seed\": 1}")));
+
+        JSONObject result = mHarness.executeAndWait("startBlinkUp", "[\"0123456789abcdef0123456789abcdef\","
+                + " \"test-plan\", true, " + DEADLINE_MS + ", {\"ssid\": \"test\", \"password\": \"test\"}]",
+                RESULT_TIMEOUT_MS);
+        assertNotNull(result);
+        assertEquals(ERROR_DEADLINE_FLASH, result.getJSONObject("error").getInt("errorCode"));
+    }
+
+    private void configureDeadline() throws Exception {
+        JSONObject configured = mHarness.executeAndWait("configureBlinkUp", "[{\"sessionDeadline\": true}]",
+                RESULT_TIMEOUT_MS);
+        assertNotNull(configured);
+        assertTrue(configured.has("statusCode"));
+    }
+}
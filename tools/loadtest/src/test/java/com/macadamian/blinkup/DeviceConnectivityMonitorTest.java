@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * A network the callback reported counts as connected
+ * before it becomes the active one, so the replay the
+ * callback triggers doesn't find the device offline
+ *****************************************************/
+public class DeviceConnectivityMonitorTest {
+    static {
+        // Build.VERSION is read once per JVM, each test class gets its own
+        System.setProperty("android.sdkInt", "21");
+    }
+
+    /*************************************
+     * has no active network, like the moment
+     * the callback hears about a new one
+     *************************************/
+    private static class OfflineConnectivityManager extends ConnectivityManager {
+        NetworkCallback mCallback;
+
+        @Override
+        public NetworkInfo getActiveNetworkInfo() {
+            return null;
+        }
+
+        @Override
+        public void registerNetworkCallback(NetworkRequest request, NetworkCallback networkCallback) {
+            mCallback = networkCallback;
+        }
+
+        @Override
+        public void unregisterNetworkCallback(NetworkCallback networkCallback) {
+            mCallback = null;
+        }
+    }
+
+    @Test
+    public void reportedNetworkCountsUntilLost() {
+        final OfflineConnectivityManager connectivityManager = new OfflineConnectivityManager();
+        Context context = new Context() {
+            @Override
+            public Object getSystemService(String name) {
+                return Context.CONNECTIVITY_SERVICE.equals(name) ? connectivityManager : null;
+            }
+        };
+        final DeviceConnectivityMonitor monitor = new DeviceConnectivityMonitor(context);
+        // the replay reads isConnected() from within the listener
+        final AtomicInteger connectedCalls = new AtomicInteger(0);
+        final AtomicBoolean connectedWhenCalled = new AtomicBoolean(false);
+        monitor.start(new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnected() {
+                connectedCalls.incrementAndGet();
+                connectedWhenCalled.set(monitor.isConnected());
+            }
+        });
+        assertNotNull(connectivityManager.mCallback);
+        assertFalse(monitor.isConnected());
+
+        Network network = new Network();
+        connectivityManager.mCallback.onAvailable(network);
+        assertEquals(1, connectedCalls.get());
+        assertTrue(connectedWhenCalled.get());
+        assertTrue(monitor.isConnected());
+
+        connectivityManager.mCallback.onLost(network);
+        assertFalse(monitor.isConnected());
+
+        monitor.stop();
+        assertFalse(monitor.isConnected());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import com.macadamian.blinkup.loadtest.PluginHarness;
+import com.macadamian.blinkup.util.JsonWriter;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * Subscriptions get the results matching their filter.
+ * One that falls behind loses its oldest events and is
+ * told how many before the next one, without holding
+ * back the others.
+ *****************************************************/
+public class EventBusTest {
+    private static final long RESULT_TIMEOUT_MS = 5000;
+    // long enough for an event that shouldn't come
+    private static final long LATE_RESULT_WAIT_MS = 200;
+    private static final int STATUS_SUBSCRIBED = 216;
+    private static final int STATUS_UNSUBSCRIBED = 217;
+    private static final int STATUS_EVENTS_DROPPED = 218;
+    // publishes as a session no subscription is
+    private static final int PUBLISHER_SESSION_ID = 999;
+
+    private PluginHarness mHarness;
+
+    @Before
+    public void setUp() throws Exception {
+        mHarness = new PluginHarness();
+        stats(true);
+    }
+
+    @After
+    public void tearDown() {
+        mHarness.shutdown();
+        EventBus.clear();
+    }
+
+    @Test
+    public void fullBufferDropsTheOldestEvents() throws Exception {
+        BlockingQueue<JSONObject> small = new LinkedBlockingQueue<JSONObject>();
+        BlockingQueue<JSONObject> large = new LinkedBlockingQueue<JSONObject>();
+        subscribe("{\"bufferSize\": 4}", small);
+        subscribe("{}", large);
+
+        // nothing is sent while the scheduler is busy
+        CountDownLatch release = blockScheduler();
+        for (int i = 0; i < 10; i++) {
+            publish(EventBus.EVENT_STARTED, i);
+        }
+        release.countDown();
+
+        JSONObject gap = next(small);
+        assertEquals(STATUS_EVENTS_DROPPED, gap.getInt("statusCode"));
+        assertEquals(6, gap.getInt("dropped"));
+        for (int i = 6; i < 10; i++) {
+            assertEquals(i, next(small).getInt("sequence"));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, next(large).getInt("sequence"));
+        }
+        assertNull(small.poll(LATE_RESULT_WAIT_MS, TimeUnit.MILLISECONDS));
+
+        JSONObject stats = stats(false);
+        assertEquals(2, stats.getLong("subscribers"));
+        assertEquals(10, stats.getLong("published"));
+        assertEquals(6, stats.getLong("dropped"));
+    }
+
+    @Test
+    public void filterPicksTheEventTypes() throws Exception {
+        BlockingQueue<JSONObject> errors = new LinkedBlockingQueue<JSONObject>();
+        subscribe("{\"events\": [\"error\"]}", errors);
+
+        publish(EventBus.EVENT_STARTED, 0);
+        publish(EventBus.EVENT_ERROR, 1);
+        publish(EventBus.EVENT_COMPLETED, 2);
+
+        assertEquals(1, next(errors).getInt("sequence"));
+        assertNull(errors.poll(LATE_RESULT_WAIT_MS, TimeUnit.MILLISECONDS));
+        // published counts the events someone was subscribed to
+        assertEquals(1, stats(false).getLong("published"));
+    }
+
+    @Test
+    public void unsubscribeEndsTheCallback() throws Exception {
+        BlockingQueue<JSONObject> events = new LinkedBlockingQueue<JSONObject>();
+        int subscriptionId = subscribe("{}", events);
+
+        JSONObject unsubscribed = mHarness.executeAndWait("unsubscribeBlinkUp", "[" + subscriptionId + "]",
+                RESULT_TIMEOUT_MS);
+        assertNotNull(unsubscribed);
+        assertEquals(STATUS_UNSUBSCRIBED, unsubscribed.getInt("statusCode"));
+        JSONObject last = next(events);
+        assertEquals(STATUS_UNSUBSCRIBED, last.getInt("statusCode"));
+        assertEquals("completed", last.getString("state"));
+        assertFalse(EventBus.isSubscription(subscriptionId));
+
+        publish(EventBus.EVENT_STARTED, 0);
+        assertNull(events.poll(LATE_RESULT_WAIT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, stats(false).getLong("published"));
+    }
+
+    /*************************************
+     * @return the subscription's ID, its later
+     * results go to the queue
+     *************************************/
+    private int subscribe(String filter, final BlockingQueue<JSONObject> results) throws Exception {
+        final BlockingQueue<JSONObject> subscribed = new LinkedBlockingQueue<JSONObject>();
+        mHarness.execute("subscribeBlinkUp", "[" + filter + "]", new PluginHarness.ResultListener() {
+            @Override
+            public boolean onResult(JSONObject result) {
+                if (result.optInt("statusCode", -1) == STATUS_SUBSCRIBED) {
+                    subscribed.add(result);
+                } else {
+                    results.add(result);
+                }
+                return true;
+            }
+        });
+        JSONObject result = next(subscribed);
+        assertTrue(EventBus.isSubscription(result.getInt("sessionId")));
+        return result.getInt("sessionId");
+    }
+
+    private static void publish(String eventType, int sequence) {
+        EventBus.publish(PUBLISHER_SESSION_ID, eventType, PluginResult.Status.OK,
+                "{\"sessionId\":" + PUBLISHER_SESSION_ID + ",\"sequence\":" + sequence + "}");
+    }
+
+    /*************************************
+     * @return a latch that frees the scheduler thread,
+     * once the scheduler is stuck waiting for it
+     *************************************/
+    private static CountDownLatch blockScheduler() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        TokenStatusPoller.getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(blocked.await(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return release;
+    }
+
+    private static JSONObject next(BlockingQueue<JSONObject> results) throws Exception {
+        JSONObject result = results.poll(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(result);
+        return result;
+    }
+
+    private static JSONObject stats(boolean reset) throws Exception {
+        JsonWriter writer = new JsonWriter(128);
+        EventBus.writeJson(writer, reset);
+        return new JSONObject(writer.toString());
+    }
+}
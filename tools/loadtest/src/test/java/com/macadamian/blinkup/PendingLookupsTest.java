@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+
+import com.macadamian.blinkup.loadtest.PluginHarness;
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * A poll that times out while the phone is offline
+ * puts its lookup on hold instead of failing, and the
+ * lookup is made again on the same callback once the
+ * network is back, unless the session was aborted
+ *****************************************************/
+public class PendingLookupsTest {
+    private static final long RESULT_TIMEOUT_MS = 5000;
+    // long enough for a result the hold should have stopped
+    private static final long LATE_RESULT_WAIT_MS = 500;
+    private static final int STATUS_DEVICE_CONNECTED = 0;
+    private static final int STATUS_WAITING_FOR_NETWORK = 215;
+    private static final int ERROR_CANCELLED = 102;
+
+    // the device claims its token after the first poll timed out
+    private static final String START_ARGS = "[\"0123456789abcdef0123456789abcdef\", \"test-plan\", true, 300,"
+            + " {\"ssid\": \"test\", \"password\": \"test\"}]";
+
+    private final BlockingQueue<JSONObject> mStatuses = new LinkedBlockingQueue<JSONObject>();
+    private final BlockingQueue<JSONObject> mFinalResults = new LinkedBlockingQueue<JSONObject>();
+    private PluginHarness mHarness;
+
+    @Before
+    public void setUp() throws Exception {
+        assertTrue(Simulators.useBackend(new JSONObject("{\"tokenAcquireMs\": 0, \"flashMs\": 10,"
+                + " \"claimDelayMs\": 600, \"jitter\": 0, \"seed\": 1}")));
+        mHarness = new PluginHarness();
+        Simulators.setNetworkConnected(false);
+    }
+
+    @After
+    public void tearDown() {
+        mHarness.shutdown();
+        Simulators.useDeviceNetwork();
+        Simulators.useSdk();
+    }
+
+    @Test
+    public void heldLookupIsMadeOnceTheNetworkIsBack() throws Exception {
+        startSession();
+        awaitWaitingForNetwork();
+
+        // the device claimed its token meanwhile, but nothing polls for it
+        assertNull(mFinalResults.poll(LATE_RESULT_WAIT_MS, TimeUnit.MILLISECONDS));
+        assertNotNull(PreferencesHelper.getPendingLookups(mHarness.getActivity()));
+
+        Simulators.setNetworkConnected(true);
+        JSONObject result = mFinalResults.poll(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(result);
+        assertEquals(STATUS_DEVICE_CONNECTED, result.getInt("statusCode"));
+        assertTrue(result.getJSONObject("deviceInfo").has("agentURL"));
+        assertNull(PreferencesHelper.getPendingLookups(mHarness.getActivity()));
+    }
+
+    @Test
+    public void abortDropsTheHeldLookup() throws Exception {
+        startSession();
+        awaitWaitingForNetwork();
+
+        mHarness.executeAndWait("abortBlinkUp", "[]", RESULT_TIMEOUT_MS);
+        JSONObject aborted = mFinalResults.poll(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(aborted);
+        assertEquals(ERROR_CANCELLED, aborted.getJSONObject("error").getInt("errorCode"));
+        assertNull(PreferencesHelper.getPendingLookups(mHarness.getActivity()));
+
+        // nothing is left to look up when the network comes back
+        Simulators.setNetworkConnected(true);
+        assertNull(mFinalResults.poll(LATE_RESULT_WAIT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void startSession() throws Exception {
+        mHarness.execute("startBlinkUp", START_ARGS, new PluginHarness.ResultListener() {
+            @Override
+            public boolean onResult(JSONObject result) {
+                if ("started".equals(result.optString("state"))) {
+                    mStatuses.add(result);
+                    return true;
+                }
+                mFinalResults.add(result);
+                return false;
+            }
+        });
+    }
+
+    private void awaitWaitingForNetwork() throws Exception {
+        long deadlineMs = System.currentTimeMillis() + RESULT_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadlineMs) {
+            JSONObject status = mStatuses.poll(10, TimeUnit.MILLISECONDS);
+            if (status != null && status.optInt("statusCode", -1) == STATUS_WAITING_FOR_NETWORK) {
+                return;
+            }
+            assertNull(mFinalResults.peek());
+        }
+        throw new AssertionError("not waiting for the network within " + RESULT_TIMEOUT_MS + "ms");
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/*****************************************************
+ * The plan ID cached by earlier versions, without its
+ * api key, goes to the first key looked up after the
+ * upgrade and to no other. The store loads once per
+ * process, so the whole upgrade is one test.
+ *****************************************************/
+public class PlanIdStoreTest {
+    private static final String FIRST_KEY = "0123456789abcdef0123456789abcde1";
+    private static final String SECOND_KEY = "0123456789abcdef0123456789abcde2";
+    private static final String DEVELOPER_PLAN_ID = "dev-plan";
+    private static final String LEGACY_PLAN_ID = "legacy-plan";
+    private static final String SECOND_PLAN_ID = "second-plan";
+
+    // longer than the coalescing delay, a write has happened by then
+    private static final long PERSIST_WAIT_MS = 1500;
+
+    private final Activity mContext = new Activity();
+
+    @Test
+    public void legacyPlanIdGoesToTheFirstKeyOnly() throws Exception {
+        PreferencesHelper.setPlanId(mContext, LEGACY_PLAN_ID);
+        PlanIdStore.init(mContext);
+
+        assertEquals(LEGACY_PLAN_ID, PlanIdStore.get(mContext, FIRST_KEY, DEVELOPER_PLAN_ID));
+        assertNull(PlanIdStore.get(mContext, SECOND_KEY, DEVELOPER_PLAN_ID));
+        // also the first key's plan for lookups without a developer plan
+        assertEquals(LEGACY_PLAN_ID, PlanIdStore.get(mContext, FIRST_KEY, null));
+
+        PlanIdStore.put(mContext, SECOND_KEY, DEVELOPER_PLAN_ID, SECOND_PLAN_ID);
+        assertEquals(SECOND_PLAN_ID, PlanIdStore.get(mContext, SECOND_KEY, DEVELOPER_PLAN_ID));
+        assertEquals(LEGACY_PLAN_ID, PlanIdStore.get(mContext, FIRST_KEY, DEVELOPER_PLAN_ID));
+
+        // the old entry is deleted once the migration is written
+        Thread.sleep(PERSIST_WAIT_MS);
+        assertNull(PreferencesHelper.getPlanId(mContext));
+        // under the first key, with and without its developer plan, and never in the clear
+        String planIds = PreferencesHelper.getPlanIds(mContext);
+        assertEquals(2, countOf(planIds, LEGACY_PLAN_ID));
+        assertEquals(0, countOf(planIds, FIRST_KEY));
+    }
+
+    private static int countOf(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import android.app.Activity;
+
+import com.macadamian.blinkup.loadtest.PluginHarness;
+import com.macadamian.blinkup.util.PreferencesHelper;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * Polls a killed run of the app left in the
+ * preferences are resumed when the plugin starts,
+ * also in lazy mode before any call, and their results
+ * are reported once by getRecoveredSessions. The
+ * plugin starts once per process, so the whole restart
+ * is one test.
+ *****************************************************/
+public class PollRecoveryTest {
+    private static final String API_KEY = "0123456789abcdef0123456789abcdef";
+    private static final String CLAIMED_TOKEN = "killed-run-token-1";
+    private static final String EXPIRED_TOKEN = "killed-run-token-2";
+    private static final int CLAIMED_SESSION_ID = 7;
+    private static final int EXPIRED_SESSION_ID = 8;
+
+    private static final long RESULT_TIMEOUT_MS = 5000;
+    private static final int STATUS_DEVICE_CONNECTED = 0;
+    private static final int STATUS_RECOVERED_SESSIONS = 211;
+    private static final int ERROR_PROCESS_TIMED_OUT = 101;
+
+    private final Activity mContext = new Activity();
+    private PluginHarness mHarness;
+
+    @After
+    public void tearDown() {
+        if (mHarness != null) {
+            mHarness.shutdown();
+        }
+        Simulators.useSdk();
+    }
+
+    @Test
+    public void pollsOfAKilledRunAreResumedAtStart() throws Exception {
+        long nowMs = System.currentTimeMillis();
+        PreferencesHelper.setInFlightPolls(mContext, new JSONArray()
+                .put(poll(CLAIMED_SESSION_ID, CLAIMED_TOKEN, nowMs + RESULT_TIMEOUT_MS))
+                .put(poll(EXPIRED_SESSION_ID, EXPIRED_TOKEN, nowMs - 1))
+                .toString());
+        assertTrue(Simulators.useBackend(new JSONObject("{\"jitter\": 0, \"seed\": 1}")));
+        Simulators.addFlashedToken(CLAIMED_TOKEN, 0);
+
+        // lazy mode, the default, and no call made
+        mHarness = new PluginHarness();
+        awaitPollsDone();
+
+        JSONObject reported = mHarness.executeAndWait("getRecoveredSessions", "[]", RESULT_TIMEOUT_MS);
+        assertNotNull(reported);
+        assertEquals(STATUS_RECOVERED_SESSIONS, reported.getInt("statusCode"));
+        JSONArray recovered = reported.getJSONArray("recovered");
+        assertEquals(2, recovered.length());
+
+        JSONObject claimed = recovered.getJSONObject(0);
+        assertEquals(CLAIMED_SESSION_ID, claimed.getInt("sessionId"));
+        assertEquals(STATUS_DEVICE_CONNECTED, claimed.getInt("statusCode"));
+        assertTrue(claimed.getJSONObject("deviceInfo").getString("agentURL").endsWith(CLAIMED_TOKEN));
+
+        JSONObject expired = recovered.getJSONObject(1);
+        assertEquals(EXPIRED_SESSION_ID, expired.getInt("sessionId"));
+        assertEquals(ERROR_PROCESS_TIMED_OUT, expired.getJSONObject("error").getInt("errorCode"));
+
+        // reported once, then nothing is left to resume
+        JSONObject reportedAgain = mHarness.executeAndWait("getRecoveredSessions", "[]", RESULT_TIMEOUT_MS);
+        assertEquals(0, reportedAgain.getJSONArray("recovered").length());
+        assertNull(PreferencesHelper.getInFlightPolls(mContext));
+    }
+
+    private static JSONObject poll(int sessionId, String token, long deadlineMs) throws Exception {
+        return new JSONObject()
+                .put("sessionId", sessionId)
+                .put("token", token)
+                .put("apiKeyHash", ApiKeyCache.hash(API_KEY))
+                .put("developerPlanId", "test-plan")
+                .put("deadline", deadlineMs)
+                .put("batchSequence", 0);
+    }
+
+    /*************************************
+     * waits for every poll's result to be written
+     *************************************/
+    private void awaitPollsDone() throws Exception {
+        long deadlineMs = System.currentTimeMillis() + RESULT_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadlineMs) {
+            JSONArray polls = new JSONArray(PreferencesHelper.getInFlightPolls(mContext));
+            boolean done = true;
+            for (int i = 0; i < polls.length(); i++) {
+                done &= polls.getJSONObject(i).has("result");
+            }
+            if (done) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("polls not done within " + RESULT_TIMEOUT_MS + "ms");
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import com.macadamian.blinkup.util.JsonWriter;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * Calls within the burst run right away, the rest wait
+ * for tokens and are taken one session at a time, per
+ * API key
+ *****************************************************/
+public class RateLimiterTest {
+    private static final long CALL_TIMEOUT_MS = 5000;
+    // longer than a token takes at the rates used here
+    private static final long TOKEN_WAIT_MS = 200;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private final List<String> mRan = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() throws Exception {
+        assertTrue(PluginConfig.update(new JSONObject().put("rateLimit", false)));
+    }
+
+    @Test
+    public void callsRunRightAwayWhenOff() throws Exception {
+        assertTrue(PluginConfig.update(new JSONObject().put("rateLimit", false)));
+        for (int i = 0; i < 20; i++) {
+            RateLimiter.submit("off", 1, DIRECT, call("call" + i, null));
+        }
+        assertEquals(20, mRan.size());
+    }
+
+    @Test
+    public void burstRunsRightAwayAndTheRestWaits() throws Exception {
+        configure(20, 2);
+        CountDownLatch done = new CountDownLatch(1);
+        long startNs = System.nanoTime();
+        RateLimiter.submit("burst", 1, DIRECT, call("first", null));
+        RateLimiter.submit("burst", 1, DIRECT, call("second", null));
+        RateLimiter.submit("burst", 1, DIRECT, call("third", done));
+        assertEquals(Arrays.asList("first", "second"), mRan);
+
+        assertTrue(done.await(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // one token at 20 per second
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs) >= 45);
+        assertEquals(Arrays.asList("first", "second", "third"), mRan);
+    }
+
+    @Test
+    public void waitingSessionsTakeTurns() throws Exception {
+        configure(100, 1);
+        CountDownLatch done = new CountDownLatch(5);
+        RateLimiter.submit("turns", 1, DIRECT, call("token", null));
+        for (int i = 1; i <= 3; i++) {
+            RateLimiter.submit("turns", 1, DIRECT, call("busy" + i, done));
+        }
+        RateLimiter.submit("turns", 2, DIRECT, call("quiet1", done));
+        RateLimiter.submit("turns", 2, DIRECT, call("quiet2", done));
+
+        assertTrue(done.await(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("token", "busy1", "quiet1", "busy2", "quiet2", "busy3"), mRan);
+    }
+
+    @Test
+    public void keysHaveTheirOwnBucket() throws Exception {
+        configure(1, 1);
+        RateLimiter.submit("busyKey", 1, DIRECT, call("busyKey1", null));
+        RateLimiter.submit("busyKey", 1, DIRECT, call("busyKey2", null));
+        RateLimiter.submit("otherKey", 1, DIRECT, call("otherKey1", null));
+        assertEquals(Arrays.asList("busyKey1", "otherKey1"), mRan);
+    }
+
+    @Test
+    public void cancelDropsTheSessionsWaitingCalls() throws Exception {
+        configure(20, 1);
+        CountDownLatch done = new CountDownLatch(1);
+        RateLimiter.submit("cancel", 1, DIRECT, call("token", null));
+        RateLimiter.submit("cancel", 1, DIRECT, call("cancelled1", null));
+        RateLimiter.submit("cancel", 1, DIRECT, call("cancelled2", null));
+        RateLimiter.submit("cancel", 2, DIRECT, call("kept", done));
+        RateLimiter.cancel(1);
+
+        assertTrue(done.await(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Thread.sleep(TOKEN_WAIT_MS);
+        assertEquals(Arrays.asList("token", "kept"), mRan);
+        assertEquals("0", metrics().getString("queued"));
+    }
+
+    private static void configure(double ratePerSecond, int burst) throws Exception {
+        assertTrue(PluginConfig.update(new JSONObject().put("rateLimit",
+                new JSONObject().put("ratePerSecond", ratePerSecond).put("burst", burst))));
+    }
+
+    private Runnable call(final String name, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRan.add(name);
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    private static JSONObject metrics() throws Exception {
+        JsonWriter writer = new JsonWriter(64);
+        RateLimiter.writeJson(writer, false);
+        return new JSONObject(writer.toString());
+    }
+}
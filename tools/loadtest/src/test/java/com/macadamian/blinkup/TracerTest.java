@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * What the ring buffer keeps and how dumpJson exports
+ * it in the Chrome trace event format
+ *****************************************************/
+public class TracerTest {
+    private static final int SESSION_ID = 3;
+
+    @Before
+    public void setUp() {
+        Tracer.setEnabled(true);
+        Tracer.dumpJson(true);
+    }
+
+    @After
+    public void tearDown() {
+        Tracer.setEnabled(false);
+        Tracer.dumpJson(true);
+    }
+
+    @Test
+    public void nothingIsRecordedWhileOff() throws Exception {
+        Tracer.setEnabled(false);
+        Tracer.dumpJson(true);
+
+        Tracer.begin(Tracer.EXECUTE, SESSION_ID);
+        Tracer.end(Tracer.EXECUTE, SESSION_ID);
+        assertEquals(Tracer.NO_COOKIE, Tracer.beginAsync(Tracer.TOKEN_ACQUIRE, SESSION_ID));
+        assertEquals(0, spans(dump(false)).size());
+    }
+
+    @Test
+    public void spansAreExportedOldestFirst() throws Exception {
+        Tracer.begin(Tracer.EXECUTE, SESSION_ID);
+        Tracer.end(Tracer.EXECUTE, SESSION_ID);
+        final int cookie = Tracer.beginAsync(Tracer.TOKEN_ACQUIRE, SESSION_ID);
+        Thread otherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Tracer.endAsync(Tracer.TOKEN_ACQUIRE, SESSION_ID, cookie);
+            }
+        }, "TracerTestThread");
+        otherThread.start();
+        otherThread.join();
+
+        JSONObject trace = dump(false);
+        List<JSONObject> spans = spans(trace);
+        assertEquals(4, spans.size());
+        String[] phases = {"B", "E", "b", "e"};
+        long lastTimestamp = 0;
+        for (int i = 0; i < phases.length; i++) {
+            JSONObject span = spans.get(i);
+            assertEquals(phases[i], span.getString("ph"));
+            assertEquals("blinkup", span.getString("cat"));
+            assertEquals(SESSION_ID, span.getJSONObject("args").getInt("sessionId"));
+            assertTrue(span.getLong("ts") >= lastTimestamp);
+            lastTimestamp = span.getLong("ts");
+        }
+        assertEquals(Tracer.EXECUTE, spans.get(0).getString("name"));
+        assertEquals(Tracer.TOKEN_ACQUIRE, spans.get(2).getString("name"));
+        assertEquals(cookie, spans.get(2).getInt("id"));
+        assertEquals(cookie, spans.get(3).getInt("id"));
+        assertTrue(spans.get(2).getLong("tid") != spans.get(3).getLong("tid"));
+
+        // the thread that ended the async span is named for the viewer
+        boolean named = false;
+        JSONArray events = trace.getJSONArray("traceEvents");
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.getJSONObject(i);
+            named |= "M".equals(event.getString("ph"))
+                    && "TracerTestThread".equals(event.getJSONObject("args").getString("name"));
+        }
+        assertTrue(named);
+        assertEquals("0", trace.getJSONObject("otherData").getString("overwrittenEvents"));
+    }
+
+    @Test
+    public void fullBufferKeepsTheNewestEvents() throws Exception {
+        int overflow = 10;
+        for (int i = 0; i < Tracer.CAPACITY + overflow; i++) {
+            Tracer.begin(Tracer.EXECUTE, i);
+        }
+
+        JSONObject trace = dump(false);
+        List<JSONObject> spans = spans(trace);
+        assertEquals(Tracer.CAPACITY, spans.size());
+        assertEquals(overflow, spans.get(0).getJSONObject("args").getInt("sessionId"));
+        assertEquals(String.valueOf(overflow), trace.getJSONObject("otherData").getString("overwrittenEvents"));
+    }
+
+    @Test
+    public void clearDropsTheDumpedEvents() throws Exception {
+        Tracer.begin(Tracer.EXECUTE, SESSION_ID);
+        assertEquals(1, spans(dump(true)).size());
+        assertEquals(0, spans(dump(false)).size());
+
+        // still on, recording goes on into the new buffer
+        Tracer.end(Tracer.EXECUTE, SESSION_ID);
+        assertEquals(1, spans(dump(false)).size());
+    }
+
+    private static JSONObject dump(boolean clear) throws Exception {
+        return new JSONObject(Tracer.dumpJson(clear));
+    }
+
+    /*************************************
+     * @return the trace events without the thread names
+     *************************************/
+    private static List<JSONObject> spans(JSONObject trace) throws Exception {
+        List<JSONObject> spans = new ArrayList<JSONObject>();
+        JSONArray events = trace.getJSONArray("traceEvents");
+        for (int i = 0; i < events.length(); i++) {
+            if (!"M".equals(events.getJSONObject(i).getString("ph"))) {
+                spans.add(events.getJSONObject(i));
+            }
+        }
+        return spans;
+    }
+}
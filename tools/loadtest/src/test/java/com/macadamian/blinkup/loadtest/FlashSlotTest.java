@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup.loadtest;
+
+import com.macadamian.blinkup.Simulators;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * The SDK flashes one device at a time: a flash or a
+ * clear started while another one runs is rejected
+ * with error 310, and the next session can start once
+ * the flash is done, cancelled or aborted.
+ *****************************************************/
+public class FlashSlotTest {
+    private static final String START_ARGS = "[\"0123456789abcdef0123456789abcdef\", \"test-plan\", true, 5000,"
+            + " {\"ssid\": \"test\", \"password\": \"test\"}]";
+    private static final long RESULT_TIMEOUT_MS = 5000;
+    // longer than any test, the flash only ends when it is cancelled
+    private static final long ENDLESS_FLASH_MS = 60000;
+
+    private static final int STATUS_DEVICE_CONNECTED = 0;
+    private static final int STATUS_GATHERING_INFO = 200;
+    private static final int STATUS_SESSION_STARTED = 204;
+    private static final int ERROR_CANCELLED_BY_USER = 102;
+    private static final int ERROR_FLASH_IN_PROGRESS = 310;
+
+    private PluginHarness mHarness;
+
+    @Before
+    public void setUp() throws Exception {
+        mHarness = new PluginHarness();
+        configureFlash(500);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHarness.reset();
+        Simulators.useSdk();
+        mHarness.shutdown();
+    }
+
+    @Test
+    public void secondFlashIsRejectedUntilTheFirstIsDone() throws Exception {
+        Results first = start();
+        assertEquals(STATUS_SESSION_STARTED, PluginHarness.statusCode(first.next()));
+
+        JSONObject rejected = mHarness.executeAndWait("startBlinkUp", START_ARGS, RESULT_TIMEOUT_MS);
+        assertTrue(PluginHarness.isError(rejected));
+        assertEquals(ERROR_FLASH_IN_PROGRESS, PluginHarness.errorCode(rejected));
+
+        JSONObject clearRejected = mHarness.executeAndWait("clearBlinkUpData", "[]", RESULT_TIMEOUT_MS);
+        assertTrue(PluginHarness.isError(clearRejected));
+        assertEquals(ERROR_FLASH_IN_PROGRESS, PluginHarness.errorCode(clearRejected));
+
+        assertEquals(STATUS_GATHERING_INFO, PluginHarness.statusCode(first.next()));
+        Results second = start();
+        assertEquals(STATUS_SESSION_STARTED, PluginHarness.statusCode(second.next()));
+
+        assertEquals(STATUS_DEVICE_CONNECTED, PluginHarness.statusCode(first.next()));
+        assertEquals(STATUS_GATHERING_INFO, PluginHarness.statusCode(second.next()));
+        assertEquals(STATUS_DEVICE_CONNECTED, PluginHarness.statusCode(second.next()));
+    }
+
+    @Test
+    public void flashLeftWithoutCompletingIsCancelledByTheNext() throws Exception {
+        configureFlash(ENDLESS_FLASH_MS);
+        Results first = start();
+        assertEquals(STATUS_SESSION_STARTED, PluginHarness.statusCode(first.next()));
+
+        // the operator backs out of the SDK's screens, the SDK reports nothing
+        mHarness.coverAndReturn();
+
+        Results second = start();
+        JSONObject cancelled = first.next();
+        assertTrue(PluginHarness.isError(cancelled));
+        assertEquals(ERROR_CANCELLED_BY_USER, PluginHarness.errorCode(cancelled));
+        assertEquals(STATUS_SESSION_STARTED, PluginHarness.statusCode(second.next()));
+    }
+
+    @Test
+    public void abortEndsAClear() throws Exception {
+        configureFlash(ENDLESS_FLASH_MS);
+        Results clear = new Results();
+        mHarness.execute("clearBlinkUpData", "[]", clear);
+
+        JSONObject aborted = mHarness.executeAndWait("abortBlinkUp", "[]", RESULT_TIMEOUT_MS);
+        assertEquals(ERROR_CANCELLED_BY_USER, PluginHarness.errorCode(aborted));
+        JSONObject cancelled = clear.next();
+        assertTrue(PluginHarness.isError(cancelled));
+        assertEquals(ERROR_CANCELLED_BY_USER, PluginHarness.errorCode(cancelled));
+
+        Results next = start();
+        assertEquals(STATUS_SESSION_STARTED, PluginHarness.statusCode(next.next()));
+    }
+
+    private void configureFlash(long flashMs) throws Exception {
+        assertTrue(Simulators.useBackend(new JSONObject("{\"tokenAcquireMs\": 0, \"flashMs\": " + flashMs
+                + ", \"claimDelayMs\": 0, \"jitter\": 0, \"seed\": 1}")));
+    }
+
+    private Results start() throws Exception {
+        Results results = new Results();
+        mHarness.execute("startBlinkUp", START_ARGS, results);
+        return results;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup.loadtest;
+
+import com.macadamian.blinkup.Simulators;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*****************************************************
+ * prepareBlinkUp acquires a setup token ahead of the
+ * session: the next startBlinkUp with the same key and
+ * plan flashes it and reports it as warm, any other
+ * session acquires its own.
+ *****************************************************/
+public class PrefetchTest {
+    private static final String API_KEY = "0123456789abcdef0123456789abcdef";
+    private static final String OTHER_API_KEY = "fedcba9876543210fedcba9876543210";
+    private static final long RESULT_TIMEOUT_MS = Results.RESULT_TIMEOUT_MS;
+    // long enough for the simulator to hand the prefetched token over
+    private static final long PREFETCH_WAIT_MS = 300;
+    // the plan the simulator issues tokens for while none is set
+    private static final String SIMULATED_PLAN_ID = "simulated-plan";
+
+    private static final int STATUS_DEVICE_CONNECTED = 0;
+    private static final int STATUS_CLEAR_COMPLETE = 202;
+    private static final int STATUS_BLINKUP_PREPARED = 203;
+
+    private PluginHarness mHarness;
+
+    @Before
+    public void setUp() throws Exception {
+        mHarness = new PluginHarness();
+        assertTrue(Simulators.useBackend(new JSONObject("{\"tokenAcquireMs\": 0, \"flashMs\": 10,"
+                + " \"claimDelayMs\": 0, \"jitter\": 0, \"seed\": 1}")));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // a clear also drops the prefetched token, so the next test starts without one
+        mHarness.executeAndWait("clearBlinkUpData", "[]", RESULT_TIMEOUT_MS);
+        mHarness.reset();
+        Simulators.useSdk();
+        mHarness.shutdown();
+    }
+
+    @Test
+    public void sessionWithoutPrepareAcquiresItsOwnToken() throws Exception {
+        assertEquals("cold", flashedTokenSource(API_KEY, SIMULATED_PLAN_ID));
+    }
+
+    @Test
+    public void preparedTokenIsReplacedAfterTheFlash() throws Exception {
+        prepare(API_KEY);
+        assertEquals("warm", flashedTokenSource(API_KEY, SIMULATED_PLAN_ID));
+        // the flash used it, the next one is acquired in the background
+        Thread.sleep(PREFETCH_WAIT_MS);
+        assertEquals("warm", flashedTokenSource(API_KEY, SIMULATED_PLAN_ID));
+    }
+
+    @Test
+    public void preparedTokenIsNotUsedForAnotherKey() throws Exception {
+        prepare(OTHER_API_KEY);
+        assertEquals("cold", flashedTokenSource(API_KEY, SIMULATED_PLAN_ID));
+    }
+
+    @Test
+    public void preparedTokenIsNotUsedForAnotherPlan() throws Exception {
+        prepare(API_KEY);
+        assertEquals("cold", flashedTokenSource(API_KEY, "another-plan"));
+    }
+
+    @Test
+    public void clearDropsThePreparedToken() throws Exception {
+        prepare(API_KEY);
+        assertEquals(STATUS_CLEAR_COMPLETE,
+                PluginHarness.statusCode(mHarness.executeAndWait("clearBlinkUpData", "[]", RESULT_TIMEOUT_MS)));
+        Thread.sleep(PREFETCH_WAIT_MS);
+        assertEquals("cold", flashedTokenSource(API_KEY, SIMULATED_PLAN_ID));
+    }
+
+    private void prepare(String apiKey) throws Exception {
+        JSONObject prepared = mHarness.executeAndWait("prepareBlinkUp", new JSONArray().put(apiKey).toString(),
+                RESULT_TIMEOUT_MS);
+        assertEquals(STATUS_BLINKUP_PREPARED, PluginHarness.statusCode(prepared));
+        Thread.sleep(PREFETCH_WAIT_MS);
+    }
+
+    /*************************************
+     * runs a headless session in development with
+     * the given plan ID through to its device info
+     * @return the device info result's tokenSource
+     *************************************/
+    private String flashedTokenSource(String apiKey, String planId) throws Exception {
+        JSONArray args = new JSONArray().put(apiKey).put(planId).put(true).put(5000)
+                .put(new JSONObject().put("ssid", "test").put("password", "test"));
+        Results results = new Results();
+        mHarness.execute("startBlinkUp", args.toString(), results);
+        JSONObject deviceInfo = results.last();
+        assertEquals(STATUS_DEVICE_CONNECTED, PluginHarness.statusCode(deviceInfo));
+        return deviceInfo.optString("tokenSource");
+    }
+}
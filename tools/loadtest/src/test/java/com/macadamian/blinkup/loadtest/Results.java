@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.macadamian.blinkup.loadtest;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+
+/*****************************************************
+ * The results of one call, in order
+ *****************************************************/
+class Results implements PluginHarness.ResultListener {
+    static final long RESULT_TIMEOUT_MS = 5000;
+
+    private final BlockingQueue<JSONObject> mResults = new LinkedBlockingQueue<JSONObject>();
+
+    @Override
+    public boolean onResult(JSONObject result) {
+        mResults.add(result);
+        return true;
+    }
+
+    JSONObject next() throws InterruptedException {
+        JSONObject result = mResults.poll(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("no result within " + RESULT_TIMEOUT_MS + "ms", result);
+        return result;
+    }
+
+    /*************************************
+     * @return the call's final result, skipping
+     * the status updates before it
+     *************************************/
+    JSONObject last() throws InterruptedException {
+        JSONObject result = next();
+        while (PluginHarness.isStarted(result)) {
+            result = next();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+/*****************************************************
+ * Activity without a window. startActivity creates
+ * the intent's activity on the main thread, hands it
+ * the intent and calls its onCreate, which is all the
+ * plugin's completion activities need
+ *****************************************************/
+public class Activity extends Context {
+    private Intent mIntent;
+    private volatile boolean mFinished = false;
+
+    public Intent getIntent() {
+        return mIntent;
+    }
+
+    public void setIntent(Intent intent) {
+        mIntent = intent;
+    }
+
+    protected void onCreate(Bundle savedInstanceState) {
+    }
+
+    public void finish() {
+        mFinished = true;
+    }
+
+    public boolean isFinishing() {
+        return mFinished;
+    }
+
+    public final void runOnUiThread(Runnable action) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            action.run();
+        } else {
+            new Handler(Looper.getMainLooper()).post(action);
+        }
+    }
+
+    public void startActivity(final Intent intent) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                String className = intent.getComponent().getClassName();
+                Activity activity;
+                try {
+                    activity = (Activity) Class.forName(className).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Cannot start " + className, e);
+                }
+                activity.setIntent(intent);
+                activity.onCreate(null);
+            }
+        });
+    }
+}
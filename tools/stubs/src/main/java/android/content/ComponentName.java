@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.content;
+
+/*****************************************************
+ * Activity an Intent starts
+ *****************************************************/
+public final class ComponentName {
+    private final String mClassName;
+
+    public ComponentName(Context packageContext, Class<?> cls) {
+        mClassName = cls.getName();
+    }
+
+    public String getClassName() {
+        return mClassName;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*****************************************************
+ * Process wide state like an Application context:
+ * preferences are kept in memory and files go to
+ * -Dandroid.filesDir, or a temporary directory
+ *****************************************************/
+public class Context {
+    public static final int MODE_PRIVATE = 0;
+    public static final String CONNECTIVITY_SERVICE = "connectivity";
+
+    private static final ConcurrentHashMap<String, SharedPreferences> sPreferences =
+            new ConcurrentHashMap<String, SharedPreferences>();
+    private static File sFilesDir;
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences preferences = sPreferences.get(name);
+        if (preferences == null) {
+            sPreferences.putIfAbsent(name, new MemorySharedPreferences());
+            preferences = sPreferences.get(name);
+        }
+        return preferences;
+    }
+
+    public File getFilesDir() {
+        synchronized (Context.class) {
+            if (sFilesDir == null) {
+                String filesDir = System.getProperty("android.filesDir");
+                try {
+                    sFilesDir = (filesDir != null) ? new File(filesDir)
+                            : Files.createTempDirectory("blinkup-files").toFile();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot create the files directory", e);
+                }
+                sFilesDir.mkdirs();
+            }
+            return sFilesDir;
+        }
+    }
+
+    /*************************************
+     * @return null, the JVM has no system services. Without
+     * a ConnectivityManager the device counts as connected
+     *************************************/
+    public Object getSystemService(String name) {
+        return null;
+    }
+}
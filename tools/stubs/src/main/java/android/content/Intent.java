@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.content;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*****************************************************
+ * Explicit intent with its extras. Like Android's,
+ * an extra read with the wrong type gives the default
+ *****************************************************/
+public class Intent {
+    public static final int FLAG_ACTIVITY_CLEAR_TOP = 0x04000000;
+    public static final int FLAG_ACTIVITY_NEW_TASK = 0x10000000;
+    public static final int FLAG_ACTIVITY_SINGLE_TOP = 0x20000000;
+
+    private final ComponentName mComponent;
+    private final Map<String, Object> mExtras = Collections.synchronizedMap(new HashMap<String, Object>());
+    private int mFlags;
+
+    public Intent(Context packageContext, Class<?> cls) {
+        mComponent = new ComponentName(packageContext, cls);
+    }
+
+    public ComponentName getComponent() {
+        return mComponent;
+    }
+
+    public Intent addFlags(int flags) {
+        mFlags |= flags;
+        return this;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public Intent putExtra(String name, String value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, int value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, long value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, boolean value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public boolean hasExtra(String name) {
+        return mExtras.containsKey(name);
+    }
+
+    public String getStringExtra(String name) {
+        return extra(name, String.class, null);
+    }
+
+    public int getIntExtra(String name, int defaultValue) {
+        return extra(name, Integer.class, defaultValue);
+    }
+
+    public long getLongExtra(String name, long defaultValue) {
+        return extra(name, Long.class, defaultValue);
+    }
+
+    public boolean getBooleanExtra(String name, boolean defaultValue) {
+        return extra(name, Boolean.class, defaultValue);
+    }
+
+    private <T> T extra(String name, Class<T> type, T defaultValue) {
+        Object value = mExtras.get(name);
+        return type.isInstance(value) ? type.cast(value) : defaultValue;
+    }
+}
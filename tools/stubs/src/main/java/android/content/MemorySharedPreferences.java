@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.content;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*****************************************************
+ * Preferences that only last as long as the JVM.
+ * Edits are applied all at once, clear() first
+ *****************************************************/
+class MemorySharedPreferences implements SharedPreferences {
+    private final Map<String, Object> mValues = new HashMap<String, Object>();
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<String, Object>(mValues);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return get(key, String.class, defValue);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return get(key, Integer.class, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return get(key, Long.class, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return get(key, Boolean.class, defValue);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new MemoryEditor();
+    }
+
+    private synchronized <T> T get(String key, Class<T> type, T defValue) {
+        Object value = mValues.get(key);
+        if (value == null) {
+            return defValue;
+        }
+        if (!type.isInstance(value)) {
+            throw new ClassCastException(key + " is a " + value.getClass().getSimpleName());
+        }
+        return type.cast(value);
+    }
+
+    private class MemoryEditor implements Editor {
+        private final Map<String, Object> mChanges = new HashMap<String, Object>();
+        private final Set<String> mRemovals = new HashSet<String>();
+        private boolean mClear = false;
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public synchronized Editor remove(String key) {
+            mRemovals.add(key);
+            mChanges.remove(key);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public synchronized boolean commit() {
+            synchronized (MemorySharedPreferences.this) {
+                if (mClear) {
+                    mValues.clear();
+                }
+                mValues.keySet().removeAll(mRemovals);
+                for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                    if (change.getValue() == null) {
+                        mValues.remove(change.getKey());
+                    } else {
+                        mValues.put(change.getKey(), change.getValue());
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+
+        private synchronized Editor put(String key, Object value) {
+            mChanges.put(key, value);
+            mRemovals.remove(key);
+            return this;
+        }
+    }
+}
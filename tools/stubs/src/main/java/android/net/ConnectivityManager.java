@@ -0,0 +1,41 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.net;
+
+/*****************************************************
+ * Never handed out, Context.getSystemService has no
+ * services. Here so the connectivity monitor compiles
+ *****************************************************/
+public class ConnectivityManager {
+    public static class NetworkCallback {
+        public void onAvailable(Network network) {
+        }
+
+        public void onLost(Network network) {
+        }
+    }
+
+    public NetworkInfo getActiveNetworkInfo() {
+        return null;
+    }
+
+    public void registerNetworkCallback(NetworkRequest request, NetworkCallback networkCallback) {
+    }
+
+    public void unregisterNetworkCallback(NetworkCallback networkCallback) {
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.os;
+
+/*****************************************************
+ * A plain JVM is no Android release. SDK_INT is 0
+ * unless -Dandroid.sdkInt is set, so paths that need
+ * the Keystore, android.os.Trace or network callbacks
+ * are skipped the way they are on old devices
+ *****************************************************/
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = Integer.getInteger("android.sdkInt", 0);
+    }
+
+    public static class VERSION_CODES {
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+        public static final int Q = 29;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*****************************************************
+ * Posts runnables to a Looper's thread, removable
+ * until they run like Android's
+ *****************************************************/
+public class Handler {
+    private final Looper mLooper;
+    // scheduled runs of each posted runnable
+    private final Map<Runnable, List<ScheduledFuture<?>>> mPending = new HashMap<Runnable, List<ScheduledFuture<?>>>();
+
+    public Handler(Looper looper) {
+        mLooper = looper;
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    public final boolean post(Runnable runnable) {
+        return postDelayed(runnable, 0);
+    }
+
+    public final boolean postDelayed(final Runnable runnable, long delayMillis) {
+        synchronized (mPending) {
+            List<ScheduledFuture<?>> futures = mPending.get(runnable);
+            if (futures == null) {
+                futures = new ArrayList<ScheduledFuture<?>>();
+                mPending.put(runnable, futures);
+            }
+
+            // set before the run can take the lock
+            final AtomicReference<ScheduledFuture<?>> self = new AtomicReference<ScheduledFuture<?>>();
+            ScheduledFuture<?> future = mLooper.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mPending) {
+                        List<ScheduledFuture<?>> futures = mPending.get(runnable);
+                        if (futures != null && futures.remove(self.get()) && futures.isEmpty()) {
+                            mPending.remove(runnable);
+                        }
+                    }
+                    runnable.run();
+                }
+            }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+            self.set(future);
+            futures.add(future);
+        }
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable runnable) {
+        synchronized (mPending) {
+            List<ScheduledFuture<?>> futures = mPending.remove(runnable);
+            if (futures != null) {
+                for (ScheduledFuture<?> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+}
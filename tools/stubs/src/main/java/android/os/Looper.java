@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.os;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/*****************************************************
+ * Stand-in for Android's main looper on a plain JVM:
+ * one daemon thread named "main" runs everything
+ * posted to the UI thread, in order
+ *****************************************************/
+public final class Looper {
+    private static final Looper sMainLooper = new Looper("main");
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private volatile Thread mThread;
+
+    private Looper(final String name) {
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                mThread = thread;
+                return thread;
+            }
+        });
+        mExecutor.prestartCoreThread();
+    }
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+
+    /*************************************
+     * @return the main looper on the main thread, null elsewhere
+     *************************************/
+    public static Looper myLooper() {
+        return (Thread.currentThread() == sMainLooper.mThread) ? sMainLooper : null;
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    ScheduledExecutorService executor() {
+        return mExecutor;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.os;
+
+import java.lang.management.ManagementFactory;
+
+public class Process {
+    /*************************************
+     * @return the JVM's process ID, 0 if it can't be told
+     *************************************/
+    public static int myPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int separator = name.indexOf('@');
+        try {
+            return Integer.parseInt((separator > 0) ? name.substring(0, separator) : name);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
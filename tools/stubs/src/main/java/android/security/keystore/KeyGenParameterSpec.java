@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.security.keystore;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+/*****************************************************
+ * Only built on API 23 and up, where the AndroidKeyStore
+ * provider takes it. The JVM has no such provider
+ *****************************************************/
+public final class KeyGenParameterSpec implements AlgorithmParameterSpec {
+    public static final class Builder {
+        public Builder(String keystoreAlias, int purposes) {
+        }
+
+        public Builder setBlockModes(String... blockModes) {
+            return this;
+        }
+
+        public Builder setEncryptionPaddings(String... paddings) {
+            return this;
+        }
+
+        public Builder setKeySize(int keySize) {
+            return this;
+        }
+
+        public KeyGenParameterSpec build() {
+            return new KeyGenParameterSpec();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package android.util;
+
+/*****************************************************
+ * Android's Base64 flags over java.util.Base64
+ *****************************************************/
+public class Base64 {
+    public static final int DEFAULT = 0;
+    public static final int NO_WRAP = 2;
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        if ((flags & NO_WRAP) != 0) {
+            return java.util.Base64.getEncoder().encodeToString(input);
+        }
+        return java.util.Base64.getMimeEncoder().encodeToString(input) + "\n";
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(str);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package com.electricimp.blinkup;
+
+import android.app.Activity;
+import android.content.Intent;
+
+/*****************************************************
+ * The SDK's controller without a device or the Electric
+ * Imp servers: every call that would reach them fails
+ * right away, on the calling thread
+ *****************************************************/
+public class BlinkupController {
+    public static final String ERROR_NO_SERVER = "BlinkUp SDK stub, no server";
+
+    private static final BlinkupController sInstance = new BlinkupController();
+
+    public Intent intentBlinkupComplete;
+    public Intent intentClearComplete;
+
+    public static BlinkupController getInstance() {
+        return sInstance;
+    }
+
+    public void setPlanID(String planId) {
+    }
+
+    public void acquireSetupToken(Activity activity, String apiKey, TokenAcquireCallback callback) {
+        callback.onError(ERROR_NO_SERVER);
+    }
+
+    public void selectWifiAndSetupDevice(Activity activity, String apiKey, ServerErrorHandler errorHandler) {
+        errorHandler.onError(ERROR_NO_SERVER);
+    }
+
+    public void setupDevice(Activity activity, String ssid, String password, String apiKey,
+                            ServerErrorHandler errorHandler) {
+        errorHandler.onError(ERROR_NO_SERVER);
+    }
+
+    public void clearDevice(Activity activity) {
+    }
+
+    public void getTokenStatus(TokenStatusCallback callback, long timeoutMs) {
+        callback.onError(ERROR_NO_SERVER);
+    }
+
+    public void getTokenStatus(String token, TokenStatusCallback callback, long timeoutMs) {
+        callback.onError(ERROR_NO_SERVER);
+    }
+
+    public void cancelTokenStatusPolling() {
+    }
+}
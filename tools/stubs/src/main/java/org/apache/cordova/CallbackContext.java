@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package org.apache.cordova;
+
+/*****************************************************
+ * Forwards results to the web view until one doesn't
+ * keep the callback, later ones are dropped like Cordova's
+ *****************************************************/
+public class CallbackContext {
+    private final String callbackId;
+    protected CordovaWebView webView;
+    private boolean finished;
+
+    public CallbackContext(String callbackId, CordovaWebView webView) {
+        this.callbackId = callbackId;
+        this.webView = webView;
+    }
+
+    public String getCallbackId() {
+        return callbackId;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public void sendPluginResult(PluginResult pluginResult) {
+        synchronized (this) {
+            if (finished) {
+                System.err.println("Attempted to send a second callback for ID: " + callbackId);
+                return;
+            }
+            finished = !pluginResult.getKeepCallback();
+        }
+        webView.sendPluginResult(pluginResult, callbackId);
+    }
+}
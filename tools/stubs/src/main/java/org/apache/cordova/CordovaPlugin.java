@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/*****************************************************
+ * Same entry points as Cordova's: privateInitialize
+ * once, then execute for every call from javascript
+ *****************************************************/
+public class CordovaPlugin {
+    public CordovaWebView webView;
+    public CordovaInterface cordova;
+    protected CordovaPreferences preferences;
+    private String serviceName;
+
+    public final void privateInitialize(String serviceName, CordovaInterface cordova, CordovaWebView webView,
+                                        CordovaPreferences preferences) {
+        this.serviceName = serviceName;
+        this.cordova = cordova;
+        this.webView = webView;
+        this.preferences = preferences;
+        pluginInitialize();
+    }
+
+    protected void pluginInitialize() {
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /*************************************
+     * what the bridge calls, with the arguments as javascript sent them
+     *************************************/
+    public boolean execute(String action, String rawArgs, CallbackContext callbackContext) throws JSONException {
+        return execute(action, new JSONArray(rawArgs), callbackContext);
+    }
+
+    public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+        return false;
+    }
+
+    public void onReset() {
+    }
+
+    public void onPause(boolean multitasking) {
+    }
+
+    public void onResume(boolean multitasking) {
+    }
+
+    public void onDestroy() {
+    }
+}
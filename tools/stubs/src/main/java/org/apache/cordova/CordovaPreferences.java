@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Copyright (c) 2015 Macadamian. All rights reserved.
+ */
+
+package org.apache.cordova;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*****************************************************
+ * config.xml preferences, names are case insensitive
+ *****************************************************/
+public class CordovaPreferences {
+    private final Map<String, String> mPrefs = new HashMap<String, String>();
+
+    public synchronized void set(String name, String value) {
+        mPrefs.put(name.toLowerCase(Locale.ENGLISH), value);
+    }
+
+    public synchronized String getString(String name, String defaultValue) {
+        String value = mPrefs.get(name.toLowerCase(Locale.ENGLISH));
+        return (value != null) ? value : defaultValue;
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        return (value != null) ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    public int getInteger(String name, int defaultValue) {
+        String value = getString(name, null);
+        return (value != null) ? Integer.decode(value) : defaultValue;
+    }
+}
@@ -33,10 +33,105 @@ module.exports = {
     invokeBlinkUp: function (apiKey, developerPlanId, timeoutMs, generateNewPlanId, successCallback, errorCallback) {
         cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "invokeBlinkUp", [apiKey, developerPlanId, timeoutMs, generateNewPlanId]);
     },
-    abortBlinkUp: function (successCallback, errorCallback) {
-        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "abortBlinkUp", []);
+    /** abortBlinkUp - cancels blinkup sessions in progress
+    * @param {sessionId}: optional, android only. sessionId of the session to cancel. Cancels all sessions when omitted
+    */
+    abortBlinkUp: function (successCallback, errorCallback, sessionId) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "abortBlinkUp", (sessionId === undefined) ? [] : [sessionId]);
     },
     clearBlinkUpData: function (successCallback, errorCallback) {
         cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "clearBlinkUpData", []);
+    },
+    /** configureBlinkUp - android only. changes plugin wide settings, see README.md for the available options
+    * @param {options}: object with the settings to change. settings not in the object keep their current value
+    */
+    configureBlinkUp: function (options, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "configureBlinkUp", [options]);
+    },
+    /** prepareBlinkUp - android only. validates the api key and acquires a setup token ahead of the next startBlinkUp
+    * @param {apiKey}: your blinkup api key
+    */
+    prepareBlinkUp: function (apiKey, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "prepareBlinkUp", [apiKey]);
+    },
+    /** startBatchBlinkUp - android only. runs blinkup sessions back to back until abortBlinkUp is called
+    * @param {tokenTtlMs}: how long a pre-acquired setup token is kept before being replaced. Default is 600000.
+    * other parameters are the same as startBlinkUp
+    */
+    startBatchBlinkUp: function (apiKey, developerPlanId, isInDevelopment, timeoutMs, tokenTtlMs, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "startBatchBlinkUp", [apiKey, developerPlanId, isInDevelopment, timeoutMs, tokenTtlMs]);
+    },
+    /** startHeadlessBlinkUp - android only. startBlinkUp without the wifi selection
+    * @param {wifi}: { site } saved with saveWifiCredentials, or { ssid, password }
+    * other parameters are the same as startBlinkUp
+    */
+    startHeadlessBlinkUp: function (apiKey, developerPlanId, isInDevelopment, timeoutMs, wifi, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "startBlinkUp", [apiKey, developerPlanId, isInDevelopment, timeoutMs, wifi]);
+    },
+    /** startHeadlessBatchBlinkUp - android only. startBatchBlinkUp flashing every device with the same network
+    * @param {wifi}: { site } saved with saveWifiCredentials, or { ssid, password }
+    * other parameters are the same as startBatchBlinkUp
+    */
+    startHeadlessBatchBlinkUp: function (apiKey, developerPlanId, isInDevelopment, timeoutMs, tokenTtlMs, wifi, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "startBatchBlinkUp", [apiKey, developerPlanId, isInDevelopment, timeoutMs, tokenTtlMs, wifi]);
+    },
+    /** reprovisionBlinkUp - android only. clears the device's wifi, then provisions it like startBlinkUp
+    * @param {wifi}: same as startHeadlessBlinkUp, or null to show the wifi selection
+    * other parameters are the same as startBlinkUp
+    */
+    reprovisionBlinkUp: function (apiKey, developerPlanId, isInDevelopment, timeoutMs, wifi, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "reprovisionBlinkUp", [apiKey, developerPlanId, isInDevelopment, timeoutMs, wifi]);
+    },
+    /** saveWifiCredentials - android only, API 23 and up. saves a network for headless sessions, the password encrypted
+    * @param {site}: name the network is saved under
+    */
+    saveWifiCredentials: function (site, ssid, password, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "saveWifiCredentials", [site, ssid, password]);
+    },
+    /** forgetWifiCredentials - android only. deletes the network saved under the site name
+    */
+    forgetWifiCredentials: function (site, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "forgetWifiCredentials", [site]);
+    },
+    /** getBlinkUpMetrics - android only. reports the latency of each provisioning phase, see README.md for the format
+    * @param {reset}: TRUE to clear the metrics once they are reported
+    */
+    getBlinkUpMetrics: function (reset, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "getBlinkUpMetrics", [reset === true]);
+    },
+    /** queryBlinkUpJournal - android only. one page of the provisioned devices journal, see README.md for the query format
+    * @param {query}: object with optional deviceId, fromMs, toMs, cursor and pageSize
+    */
+    queryBlinkUpJournal: function (query, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "queryBlinkUpJournal", [query || {}]);
+    },
+    /** exportBlinkUpJournal - android only. sends the whole provisioned devices journal in chunks
+    * @param {chunkSize}: number of records per result, default 200
+    */
+    exportBlinkUpJournal: function (chunkSize, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "exportBlinkUpJournal", [chunkSize]);
+    },
+    /** dumpBlinkUpTrace - android only. the trace recorded since the tracing option was set, as Chrome trace event JSON
+    * @param {clear}: TRUE to drop the events once they are reported
+    */
+    dumpBlinkUpTrace: function (clear, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "dumpBlinkUpTrace", [clear === true]);
+    },
+    /** getRecoveredSessions - android only. results of sessions whose device info arrived after the app was restarted
+    */
+    getRecoveredSessions: function (successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "getRecoveredSessions", []);
+    },
+    /** subscribeBlinkUp - android only. sends a copy of every result of the other calls matching the filter
+    * @param {filter}: { events, sessionId, bufferSize }, all optional
+    */
+    subscribeBlinkUp: function (filter, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "subscribeBlinkUp", [filter || {}]);
+    },
+    /** unsubscribeBlinkUp - android only. ends the subscription
+    * @param {subscriptionId}: sessionId of the subscription's first result
+    */
+    unsubscribeBlinkUp: function (subscriptionId, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "cordova-blinkup-plugin", "unsubscribeBlinkUp", [subscriptionId]);
     }
 };